@@ -23,6 +23,7 @@ import io.zorka.tdb.util.CborBufReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,7 @@ public class AgentHandler implements AgentDataProcessor {
 
     private StructuredTextIndex sindex;
     private RawTraceDataFile dataFile;
+    private TraceIngestPipeline pipeline;
     private CborDataWriter cborWriter;
 
     private Map<String,TraceDataIndexer> indexerCache;
@@ -63,6 +65,7 @@ public class AgentHandler implements AgentDataProcessor {
         this.store = store;
         this.sindex = store.getTextIndex();
         this.dataFile = store.getDataFile();
+        this.pipeline = store.getIngestPipeline();
         this.indexerCache = store.getIndexerCache();
         this.sessionId = sessionUUID;
         this.minDuration = Integer.parseInt(store.getProps().getProperty("ingest.min.duration", "1"));
@@ -89,7 +92,20 @@ public class AgentHandler implements AgentDataProcessor {
     }
 
 
-    public synchronized void handleTraceData(byte[] data, ChunkMetadata md) {
+    public void handleTraceData(byte[] data, ChunkMetadata md) {
+        handleTraceData(new CborBufReader(data), md);
+    }
+
+
+    /**
+     * Processes trace data directly from buffer (no copy is made, buffer is not used after method returns).
+     */
+    public void handleTraceData(ByteBuffer data, ChunkMetadata md) {
+        handleTraceData(new CborBufReader(data), md);
+    }
+
+
+    private synchronized void handleTraceData(CborBufReader data, ChunkMetadata md) {
 
 
         String tid = md.getTraceIdHex() + md.getSpanIdHex();
@@ -107,7 +123,7 @@ public class AgentHandler implements AgentDataProcessor {
             translator.setup(sindex, this, md.getTraceId1(), md.getTraceId2(), md.getChunkNum(), new TraceDataWriter(cborWriter), cborWriter);
 
             // Process trace data, translate symbol/string IDs etc.
-            TraceDataReader tdr = new TraceDataReader(new CborBufReader(data), translator);
+            TraceDataReader tdr = new TraceDataReader(data, translator);
             cborWriter.reset();
             tdr.run();
 
@@ -115,9 +131,10 @@ public class AgentHandler implements AgentDataProcessor {
 
             translator.commit();
 
-            long dataOffs = dataFile.write(cborWriter.getBuf(), 0, cborWriter.position());
-
             List<ChunkMetadata> tmd = translator.getTraceMetaData();
+
+            // Skip table describes whole data chunk, so it is passed along with its first metadata record
+            if (!tmd.isEmpty()) tmd.get(0).setSkipTable(translator.getSkipTable());
             for (ChunkMetadata metadata : tmd) {
 
                 if (stackSize > 0 || md.getChunkNum() > 0) {
@@ -128,10 +145,18 @@ public class AgentHandler implements AgentDataProcessor {
                     log.warn("Trace {} without spanID. Generated random one.", metadata.getTraceIdHex());
                     md.setSpanId(rand.nextLong());
                 }
+            }
 
-                metadata.setDataOffs(dataOffs);
+            if (pipeline != null) {
+                // Compression, append and metadata commit are performed asynchronously
+                pipeline.submit(cborWriter.getBuf(), cborWriter.position(), tmd);
+            } else {
+                long dataOffs = dataFile.write(cborWriter.getBuf(), 0, cborWriter.position());
 
-                store.saveChunkMetadata(metadata);
+                for (ChunkMetadata metadata : tmd) {
+                    metadata.setDataOffs(dataOffs);
+                    store.saveChunkMetadata(metadata);
+                }
             }
 
             indexerCache.remove(tid);
@@ -145,8 +170,18 @@ public class AgentHandler implements AgentDataProcessor {
     }
 
 
-    public synchronized void handleAgentData(byte[] data) {
-        AgentDataReader ar = new AgentDataReader(new CborBufReader(data), this);
+    public void handleAgentData(byte[] data) {
+        handleAgentData(new CborBufReader(data));
+    }
+
+
+    public void handleAgentData(ByteBuffer data) {
+        handleAgentData(new CborBufReader(data));
+    }
+
+
+    private synchronized void handleAgentData(CborBufReader data) {
+        AgentDataReader ar = new AgentDataReader(data, this);
         ar.run();
     }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import static io.zorka.tdb.store.ChunkMetadata.*;
+
+/**
+ * Range predicate (inclusive on both ends) on numeric or boolean attribute.
+ * Integer and boolean values are compared directly, doubles by their numeric value.
+ */
+public class AttrRange {
+
+    private final String key;
+    private final int type;
+    private final long min, max;
+    private final double dmin, dmax;
+
+
+    private AttrRange(String key, int type, long min, long max, double dmin, double dmax) {
+        this.key = key;
+        this.type = type;
+        this.min = min;
+        this.max = max;
+        this.dmin = dmin;
+        this.dmax = dmax;
+    }
+
+
+    public static AttrRange of(String key, long min, long max) {
+        return new AttrRange(key, INT_TYPE, min, max, 0, 0);
+    }
+
+
+    public static AttrRange of(String key, double min, double max) {
+        return new AttrRange(key, DBL_TYPE, 0, 0, min, max);
+    }
+
+
+    public static AttrRange of(String key, boolean val) {
+        return new AttrRange(key, BOOL_TYPE, val ? 1 : 0, val ? 1 : 0, 0, 0);
+    }
+
+
+    public String getKey() {
+        return key;
+    }
+
+
+    /** Attribute type (as in ChunkMetadata.TYPE_MASK bits). */
+    public int getType() {
+        return type;
+    }
+
+
+    /**
+     * Returns ranges of raw values (as stored in nattrs index) matching this predicate. Doubles are stored
+     * as raw bits, so negative and non-negative parts of double range map to two separate ranges.
+     */
+    public long[][] bounds() {
+        if (type != DBL_TYPE) {
+            return min <= max ? new long[][] { { min, max } } : new long[0][];
+        }
+
+        if (!(dmin <= dmax)) return new long[0][];
+
+        if (dmin > 0.0) {
+            return new long[][] { { Double.doubleToLongBits(dmin), Double.doubleToLongBits(dmax) } };
+        }
+
+        if (dmax < 0.0) {
+            return new long[][] { { Double.doubleToLongBits(dmax), Double.doubleToLongBits(dmin) } };
+        }
+
+        // Range contains zero: negative doubles (starting with -0.0) have reversed order of bits
+        return new long[][] {
+            { Double.doubleToLongBits(-0.0), Double.doubleToLongBits(Math.min(dmin, -0.0)) },
+            { Double.doubleToLongBits(0.0), Double.doubleToLongBits(Math.max(dmax, 0.0)) } };
+    }
+
+
+    @Override
+    public String toString() {
+        return type == DBL_TYPE
+            ? key + "[" + dmin + ".." + dmax + "]"
+            : key + "[" + type + ":" + min + ".." + max + "]";
+    }
+}
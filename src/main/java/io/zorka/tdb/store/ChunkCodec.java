@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.util.lz4.LZ4HCJavaSafeCompressor;
+import io.zorka.tdb.util.lz4.LZ4JavaSafeDecompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static io.zorka.tdb.store.RawTraceDataFile.*;
+
+/**
+ * Reusable codec context for trace data chunks: zlib streams, LZ4 compressor state, checksum
+ * and scratch buffers. Contexts are pooled by data file, so steady state reads and writes allocate
+ * neither native zlib streams nor buffers. Instances are not thread safe.
+ */
+class ChunkCodec {
+
+    private static final LZ4HCJavaSafeCompressor LZ4HC = new LZ4HCJavaSafeCompressor();
+
+    private final int flags;
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final LZ4HCJavaSafeCompressor.Context lz4ctx;
+
+    private final CRC32 crc = new CRC32();
+
+    /** Chunk header buffer (for reading headers from channel). */
+    private final ByteBuffer hdr = ByteBuffer.allocate(CHK_HDR_SIZE);
+
+    /** Scratch buffer for chunk records (header + compressed data). */
+    private byte[] cbuf = new byte[65536];
+
+    /** Wraps cbuf */
+    private ByteBuffer cbb = ByteBuffer.wrap(cbuf);
+
+
+    ChunkCodec(int flags) {
+        this.flags = flags;
+        boolean zlib = (flags & COMPRESSION_MASK) == ZLIB_COMPRESSION;
+        this.deflater = zlib ? new Deflater(6, true) : null;
+        this.inflater = zlib ? new Inflater(true) : null;
+        this.lz4ctx = (flags & COMPRESSION_MASK) == LZ4_COMPRESSION ? new LZ4HCJavaSafeCompressor.Context() : null;
+    }
+
+
+    ByteBuffer header() {
+        hdr.clear();
+        return hdr;
+    }
+
+
+    /**
+     * Returns scratch buffer of at least given size. Previous contents are not preserved.
+     */
+    byte[] buffer(int size) {
+        if (cbuf.length < size) {
+            cbuf = new byte[Math.max(size, cbuf.length * 2)];
+            cbb = ByteBuffer.wrap(cbuf);
+        }
+        return cbuf;
+    }
+
+
+    /**
+     * Returns scratch buffer wrapped in byte buffer with given position and limit.
+     */
+    ByteBuffer byteBuffer(int offs, int len) {
+        buffer(offs + len);
+        cbb.clear();
+        cbb.position(offs);
+        cbb.limit(offs + len);
+        return cbb;
+    }
+
+
+    /**
+     * Compresses chunk data into scratch buffer and prepends it with chunk header.
+     *
+     * @return length of chunk record (header + compressed data)
+     */
+    int compress(byte[] lbuf, int loffs, int llen) {
+        byte[] cbuf = buffer(CHK_HDR_SIZE + Math.max(llen + 1024, LZ4HC.maxCompressedLength(llen)));
+        int clen;
+
+        switch (flags & COMPRESSION_MASK) {
+            case NO_COMPRESSION: {
+                System.arraycopy(lbuf, loffs, cbuf, CHK_HDR_SIZE, llen);
+                clen = llen;
+                break;
+            }
+            case ZLIB_COMPRESSION: {
+                deflater.reset();
+                deflater.setInput(lbuf, loffs, llen);
+                clen = deflater.deflate(cbuf, CHK_HDR_SIZE, cbuf.length - CHK_HDR_SIZE, Deflater.FULL_FLUSH);
+                break;
+            }
+            case LZ4_COMPRESSION: {
+                clen = LZ4HC.compress(lbuf, loffs, llen, cbuf, CHK_HDR_SIZE, cbuf.length - CHK_HDR_SIZE, lz4ctx);
+                break;
+            }
+            default:
+                throw new ZicoException("Invalid compression algorithm: " + (flags & COMPRESSION_MASK));
+        }
+
+        int chksum = 0 != (flags & CRC32_CHECKSUM) ? (int)checksum(cbuf, CHK_HDR_SIZE, clen) : 0;
+
+        ByteBuffer blk = byteBuffer(0, CHK_HDR_SIZE);
+        blk.putInt(CHK_MAGIC);
+        blk.putInt(clen);
+        blk.putInt(llen);
+        blk.putInt(chksum);
+
+        return CHK_HDR_SIZE + clen;
+    }
+
+
+    long checksum(byte[] buf, int offs, int len) {
+        crc.reset();
+        crc.update(buf, offs, len);
+        return crc.getValue();
+    }
+
+
+    long checksum(ByteBuffer buf) {
+        crc.reset();
+        crc.update(buf);
+        return crc.getValue();
+    }
+
+
+    /**
+     * Decompresses chunk data.
+     */
+    void decompress(byte[] cbuf, int coffs, int csize, byte[] lbuf, int lsize) throws IOException {
+        switch (flags & COMPRESSION_MASK) {
+            case NO_COMPRESSION: {
+                System.arraycopy(cbuf, coffs, lbuf, 0, csize);
+                break;
+            }
+            case ZLIB_COMPRESSION: {
+                inflater.reset();
+                inflater.setInput(cbuf, coffs, csize);
+                try {
+                    if (inflater.inflate(lbuf, 0, lsize) != lsize) {
+                        throw new IOException("Invalid length of uncompressed data.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Malformed compressed chunk data", e);
+                }
+                break;
+            }
+            case LZ4_COMPRESSION: {
+                if (csize != LZ4JavaSafeDecompressor.INSTANCE.decompress(cbuf, coffs, lbuf, 0, lsize)) {
+                    throw new IOException("Malformed compressed chunk data");
+                }
+                break;
+            }
+            default:
+                throw new IOException("Invalid compression algorithm: " + (flags & COMPRESSION_MASK));
+        }
+    }
+
+
+    /**
+     * Releases native resources held by this context.
+     */
+    void end() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
@@ -21,6 +21,7 @@ import com.jitlogic.zorka.common.util.ZorkaUtil;
 import io.zorka.tdb.ZicoException;
 import io.zorka.tdb.util.CborBufReader;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static com.jitlogic.zorka.cbor.TraceDataTags.TAG_CHUNK_METADATA;
@@ -108,6 +109,9 @@ public class ChunkMetadata {
     /** Children spans. */
     private transient List<ChunkMetadata> children = null;
 
+    /** Encoded subtree skip table of data chunk (only passed from ingest to metadata index, not serialized). */
+    private transient byte[] skipTable;
+
     @Override
     public String toString() {
         return "ChunkMetadata(tid=" + getTraceIdHex() + ",sid=" + getSpanIdHex() + ",chn=" + getChunkNum()
@@ -268,6 +272,14 @@ public class ChunkMetadata {
         this.startOffs = startOffs;
     }
 
+    public int getZeroLevel() {
+        return zeroLevel;
+    }
+
+    public void setZeroLevel(int zeroLevel) {
+        this.zeroLevel = zeroLevel;
+    }
+
     public int getStackDepth() {
         return stackDepth;
     }
@@ -352,6 +364,14 @@ public class ChunkMetadata {
         this.children = children;
     }
 
+    public byte[] getSkipTable() {
+        return skipTable;
+    }
+
+    public void setSkipTable(byte[] skipTable) {
+        this.skipTable = skipTable;
+    }
+
     public void setHasChildren(boolean hasChildren) {
         this.hasChildren = hasChildren;
     }
@@ -360,7 +380,61 @@ public class ChunkMetadata {
         return hasChildren || (children != null && !children.isEmpty());
     }
 
+    /**
+     * Serializes metadata using fixed layout (see ChunkMetadataView).
+     */
     public static byte[] serialize(ChunkMetadata cm) {
+        Map<Integer,Integer> sattrs = cm.getSattrs();
+        Map<Integer,Long> nattrs = cm.getNattrs();
+        int ns = sattrs != null ? sattrs.size() : 0, nn = nattrs != null ? nattrs.size() : 0;
+
+        ByteBuffer buf = ByteBuffer.allocate(ChunkMetadataView.size(ns, nn));
+        buf.put(ChunkMetadataView.FORMAT_V1);
+        buf.position(ChunkMetadataView.OFF_TRACE_ID1);
+
+        buf.putLong(cm.traceId1);
+        buf.putLong(cm.traceId2);
+        buf.putLong(cm.parentId);
+        buf.putLong(cm.spanId);
+        buf.putLong(cm.tstamp);
+        buf.putLong(cm.duration);
+        buf.putLong(cm.dataOffs);
+        buf.putLong(cm.tstart);
+        buf.putLong(cm.tstop);
+
+        buf.putInt(cm.chunkNum);
+        buf.putInt(cm.tflags);
+        buf.putInt(cm.startOffs);
+        buf.putInt(cm.zeroLevel);
+        buf.putInt(cm.stackDepth);
+        buf.putInt(cm.calls);
+        buf.putInt(cm.errors);
+        buf.putInt(cm.recs);
+
+        buf.putInt(ns);
+        buf.putInt(nn);
+
+        if (sattrs != null) {
+            for (Map.Entry<Integer,Integer> e : sattrs.entrySet()) {
+                buf.putInt(e.getKey());
+                buf.putInt(e.getValue());
+            }
+        }
+
+        if (nattrs != null) {
+            for (Map.Entry<Integer,Long> e : nattrs.entrySet()) {
+                buf.putInt(e.getKey());
+                buf.putLong(e.getValue());
+            }
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Serializes metadata using legacy CBOR format (readable by older versions).
+     */
+    public static byte[] serializeCbor(ChunkMetadata cm) {
         CborDataWriter w = new CborDataWriter(192,128);
         w.writeTag(TAG_CHUNK_METADATA);
         w.writeLong(cm.traceId1);
@@ -396,7 +470,33 @@ public class ChunkMetadata {
             throw new ZicoException("Tried to deserialize from null or empty buffer");
         }
 
-        CborBufReader r = new CborBufReader(buf);
+        if (ChunkMetadataView.isFixedLayout(buf)) {
+            return new ChunkMetadataView().wrap(buf).toChunkMetadata();
+        }
+
+        return deserialize(new CborBufReader(buf));
+    }
+
+    /**
+     * Deserializes metadata straight from (possibly direct or mapped) buffer, reading from its position.
+     */
+    public static ChunkMetadata deserialize(ByteBuffer buf) {
+
+        if (buf == null || !buf.hasRemaining()) {
+            throw new ZicoException("Tried to deserialize from null or empty buffer");
+        }
+
+        if (buf.get(buf.position()) == ChunkMetadataView.FORMAT_V1) {
+            return new ChunkMetadataView().wrap(buf).toChunkMetadata();
+        }
+
+        return deserialize(new CborBufReader(buf));
+    }
+
+    /**
+     * Deserializes metadata in legacy CBOR format.
+     */
+    public static ChunkMetadata deserialize(CborBufReader r) {
         int tag = r.readTag();
         if (tag != TAG_CHUNK_METADATA) {
             throw new ZicoException(String.format("Expected TAG_CHUNK_METADATA, got %02x", tag));
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects chunk metadata from concurrent writers and commits it to metadata index in batches.
+ * Batch is closed when it reaches configured size or when oldest entry waits longer than configured
+ * latency. Each batch is applied in the following order: data file is synced to disk, metadata
+ * entries are inserted into index maps, index is committed. This way no chunk becomes visible
+ * to search before its data is durable. Queue holds at most a few batches, so writers are throttled
+ * when commits cannot keep up.
+ */
+public class ChunkMetadataGroupCommitter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkMetadataGroupCommitter.class);
+
+    /** Queue capacity (in batches). */
+    private static final int QUEUE_BATCHES = 4;
+
+    private final SimpleTraceStore store;
+
+    private final int batchSize;
+    private final long latencyNs;
+
+    private final BlockingQueue<Entry> queue;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+
+    private static class Entry {
+        private final ChunkMetadata md;
+        private final CompletableFuture<ChunkMetadata> future = new CompletableFuture<>();
+
+        private Entry(ChunkMetadata md) {
+            this.md = md;
+        }
+    }
+
+
+    public ChunkMetadataGroupCommitter(SimpleTraceStore store, int batchSize, int latencyMs) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.latencyNs = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        this.queue = new ArrayBlockingQueue<>(batchSize * QUEUE_BATCHES);
+
+        thread = new Thread(this::run, String.format("zico-group-commit-%06x", store.getStoreId()));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Submits chunk metadata for commit. Returned future is completed when metadata is committed.
+     * Blocks if commit queue is full.
+     */
+    public CompletableFuture<ChunkMetadata> submit(ChunkMetadata md) {
+        if (!running) {
+            throw new ZicoException("Metadata committer has been closed.");
+        }
+        Entry e = new Entry(md);
+        enqueue(e);
+        return e.future;
+    }
+
+
+    private void enqueue(Entry e) {
+        try {
+            queue.put(e);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ZicoException("Interrupted when submitting chunk metadata.", ex);
+        }
+    }
+
+
+    /**
+     * Waits until all metadata submitted so far is committed.
+     */
+    public void flush() {
+        if (!running) return;
+        Entry e = new Entry(null);
+        enqueue(e);
+        e.future.join();
+    }
+
+
+    /** Returns number of entries waiting for commit. */
+    public int getPending() {
+        return queue.size();
+    }
+
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry e = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (e == null) continue;
+
+                batch.add(e);
+
+                long deadline = System.nanoTime() + latencyNs;
+
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long t = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || t <= 0) break;
+                    e = queue.poll(t, TimeUnit.NANOSECONDS);
+                    if (e == null) break;
+                    batch.add(e);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+
+    private void commit(List<Entry> batch) {
+        List<ChunkMetadata> mds = new ArrayList<>(batch.size());
+
+        for (Entry e : batch) {
+            if (e.md != null) mds.add(e.md);
+        }
+
+        try {
+            store.commitChunkMetadata(mds);
+            for (Entry e : batch) {
+                e.future.complete(e.md);
+            }
+        } catch (Exception ex) {
+            log.error("Error committing batch of " + batch.size() + " chunks to store " + store.getStoreId(), ex);
+            for (Entry e : batch) {
+                e.future.completeExceptionally(ex);
+            }
+        }
+    }
+
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import org.mapdb.Fun;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static io.zorka.tdb.store.SimpleTraceStore.ERROR_BIT;
+
+/**
+ * Chunk metadata storage of single trace store: serialized chunk metadata records, subtree skip tables
+ * and secondary indexes used by search. Callers ensure chunk timestamps are unique.
+ *
+ * @see MapDbChunkMetadataIndex
+ * @see LogChunkMetadataIndex
+ */
+public interface ChunkMetadataIndex extends Closeable {
+
+    /** Stores serialized chunk metadata record (as produced by ChunkMetadata.serialize()) and indexes it. */
+    void add(long tstamp, long duration, byte[] data);
+
+    /** Returns serialized chunk metadata record or null if there is no such chunk. */
+    byte[] getChunk(long tstamp);
+
+    /** Points view at chunk metadata record, returns false if there is no such chunk. */
+    boolean getChunk(long tstamp, ChunkMetadataView view);
+
+    /** Iterates over all serialized chunk metadata records. */
+    void forEachChunk(Consumer<byte[]> consumer);
+
+    void addSkipTable(long dataOffs, byte[] skipTable);
+
+    byte[] getSkipTable(long dataOffs);
+
+    /** Iterates over all skip tables in data offset order. */
+    void forEachSkipTable(BiConsumer<Long,byte[]> consumer);
+
+    /** Main index: tid1+tid2+sid+chnum -> tstamp */
+    ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> getTids();
+
+    /** Sorted by timestamp: tstamp -> duration+err */
+    ConcurrentNavigableMap<Long,Long> getTstamps();
+
+    /** Duration index: duration bucket+tstamp -> duration+err (see TopDurationCollector.bucket()) */
+    ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getDurations();
+
+    /** String attributes: keyId+valId+tstamp -> duration+err */
+    ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> getSattrs();
+
+    /** For free text search: valId+tstamp -> duration+err */
+    ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getStrings();
+
+    /** Numeric/Boolean attributes: (type|keyID)+val+tstamp -> duration+err */
+    ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> getNattrs();
+
+    boolean isArchived();
+
+    void setArchived();
+
+    /** Makes all changes durable. */
+    void commit();
+
+    /**
+     * Adds chunk to secondary indexes.
+     */
+    default void index(long tst, long dur, ChunkMetadataView v) {
+        getTids().put(Fun.t4(v.getTraceId1(), v.getTraceId2(), v.getSpanId(), v.getChunkNum()), tst);
+        getTstamps().put(tst, dur);
+        getDurations().put(Fun.t2(TopDurationCollector.bucket(dur & ~ERROR_BIT), tst), dur);
+        for (int i = 0; i < v.getSattrCount(); i++) {
+            getSattrs().put(Fun.t3(v.getSattrKey(i), v.getSattrValue(i), tst), dur);
+            getStrings().put(Fun.t2(v.getSattrValue(i), tst), dur);
+        }
+        for (int i = 0; i < v.getNattrCount(); i++) {
+            getNattrs().put(Fun.t3(v.getNattrKey(i), v.getNattrValue(i), tst), dur);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.util.CborBufReader;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static com.jitlogic.zorka.cbor.TraceRecordFlags.TF_ERROR_MARK;
+import static io.zorka.tdb.util.BitUtils.*;
+
+/**
+ * Flyweight over serialized chunk metadata. Fields are read straight from fixed offsets of
+ * wrapped buffer, so search can filter and deduplicate chunks without materializing ChunkMetadata
+ * objects and their attribute maps. Single view can be rewrapped any number of times.
+ *
+ * Fixed layout (version 1, big endian): format byte and 3 reserved bytes, 9 longs (trace ID, parent ID,
+ * span ID, tstamp, duration, data offset, tstart, tstop), 8 ints (chunk number, flags, start offset,
+ * zero level, stack depth, calls, errors, recs), numbers of string and numeric attributes, then
+ * (int key, int value) string attribute pairs and (int key, long value) numeric attribute pairs.
+ *
+ * Records in legacy CBOR format are deserialized (lazily, on first access) into ChunkMetadata object
+ * that serves all getters.
+ */
+public class ChunkMetadataView {
+
+    /** Format marker of fixed layout, legacy records start with CBOR tag. */
+    public static final byte FORMAT_V1 = 0x01;
+
+    static final int OFF_TRACE_ID1 = 4;
+    static final int OFF_TRACE_ID2 = 12;
+    static final int OFF_PARENT_ID = 20;
+    static final int OFF_SPAN_ID = 28;
+    static final int OFF_TSTAMP = 36;
+    static final int OFF_DURATION = 44;
+    static final int OFF_DATA_OFFS = 52;
+    static final int OFF_TSTART = 60;
+    static final int OFF_TSTOP = 68;
+    static final int OFF_CHUNK_NUM = 76;
+    static final int OFF_FLAGS = 80;
+    static final int OFF_START_OFFS = 84;
+    static final int OFF_ZERO_LEVEL = 88;
+    static final int OFF_STACK_DEPTH = 92;
+    static final int OFF_CALLS = 96;
+    static final int OFF_ERRORS = 100;
+    static final int OFF_RECS = 104;
+    static final int OFF_NSATTRS = 108;
+    static final int OFF_NNATTRS = 112;
+    static final int HEADER_SIZE = 116;
+
+    static final int SATTR_SIZE = 8;
+    static final int NATTR_SIZE = 12;
+
+    private Object obj;
+    private Object owner;
+    private long addr;
+    private int size;
+
+    /** Wrapped legacy record (null if fixed layout record is wrapped). */
+    private CborBufReader legacySrc;
+    private ChunkMetadata legacy;
+    private int[] legacySattrs, legacyNattrKeys;
+    private long[] legacyNattrVals;
+
+    public static int size(int nsattrs, int nnattrs) {
+        return HEADER_SIZE + nsattrs * SATTR_SIZE + nnattrs * NATTR_SIZE;
+    }
+
+    public static boolean isFixedLayout(byte[] buf) {
+        return buf.length > 0 && buf[0] == FORMAT_V1;
+    }
+
+    public ChunkMetadataView wrap(byte[] buf) {
+        if (!isFixedLayout(buf)) {
+            return wrapLegacy(new CborBufReader(buf), buf.length);
+        }
+        this.legacySrc = null;
+        this.obj = buf;
+        this.owner = null;
+        this.addr = BYTE_ARRAY_OFFS;
+        this.size = buf.length;
+        check();
+        return this;
+    }
+
+    /**
+     * Wraps remaining bytes of (heap or direct) buffer. Buffer position is not changed.
+     */
+    public ChunkMetadataView wrap(ByteBuffer buf) {
+        if (!buf.hasRemaining() || buf.get(buf.position()) != FORMAT_V1) {
+            return wrapLegacy(new CborBufReader(buf), buf.remaining());
+        }
+        this.legacySrc = null;
+        if (buf.hasArray()) {
+            this.obj = buf.array();
+            this.owner = null;
+            this.addr = BYTE_ARRAY_OFFS + buf.arrayOffset() + buf.position();
+        } else {
+            this.obj = null;
+            this.owner = buf;
+            this.addr = addr(buf) + buf.position();
+        }
+        this.size = buf.remaining();
+        check();
+        return this;
+    }
+
+    /**
+     * Wraps fixed layout record at given address of direct buffer (owner keeps memory reachable).
+     */
+    ChunkMetadataView wrap(ByteBuffer owner, long addr, int size) {
+        this.legacySrc = null;
+        this.obj = null;
+        this.owner = owner;
+        this.addr = addr;
+        this.size = size;
+        check();
+        return this;
+    }
+
+    private ChunkMetadataView wrapLegacy(CborBufReader src, int size) {
+        this.legacySrc = src;
+        this.legacy = null;
+        this.obj = null;
+        this.owner = null;
+        this.size = size;
+        return this;
+    }
+
+    private ChunkMetadata legacy() {
+        if (legacy == null) {
+            legacySrc.position(0);
+            ChunkMetadata cm = ChunkMetadata.deserialize(legacySrc);
+            legacySattrs = new int[cm.getSattrs().size() * 2];
+            int i = 0;
+            for (Map.Entry<Integer,Integer> e : cm.getSattrs().entrySet()) {
+                legacySattrs[i++] = e.getKey();
+                legacySattrs[i++] = e.getValue();
+            }
+            legacyNattrKeys = new int[cm.getNattrs().size()];
+            legacyNattrVals = new long[legacyNattrKeys.length];
+            i = 0;
+            for (Map.Entry<Integer,Long> e : cm.getNattrs().entrySet()) {
+                legacyNattrKeys[i] = e.getKey();
+                legacyNattrVals[i++] = e.getValue();
+            }
+            legacy = cm;
+        }
+        return legacy;
+    }
+
+    private void check() {
+        if (size < HEADER_SIZE || size < size(getSattrCount(), getNattrCount())) {
+            throw new ZicoException("Truncated chunk metadata record: " + size + " bytes.");
+        }
+    }
+
+    private long getLong(int offs) {
+        return ntohl(UNSAFE.getLong(obj, addr + offs));
+    }
+
+    private int getInt(int offs) {
+        return ntohi(UNSAFE.getInt(obj, addr + offs));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTraceId1() {
+        return legacySrc != null ? legacy().getTraceId1() : getLong(OFF_TRACE_ID1);
+    }
+
+    public long getTraceId2() {
+        return legacySrc != null ? legacy().getTraceId2() : getLong(OFF_TRACE_ID2);
+    }
+
+    public long getParentId() {
+        return legacySrc != null ? legacy().getParentId() : getLong(OFF_PARENT_ID);
+    }
+
+    public long getSpanId() {
+        return legacySrc != null ? legacy().getSpanId() : getLong(OFF_SPAN_ID);
+    }
+
+    public long getTstamp() {
+        return legacySrc != null ? legacy().getTstamp() : getLong(OFF_TSTAMP);
+    }
+
+    public long getDuration() {
+        return legacySrc != null ? legacy().getDuration() : getLong(OFF_DURATION);
+    }
+
+    public long getDataOffs() {
+        return legacySrc != null ? legacy().getDataOffs() : getLong(OFF_DATA_OFFS);
+    }
+
+    public long getTstart() {
+        return legacySrc != null ? legacy().getTstart() : getLong(OFF_TSTART);
+    }
+
+    public long getTstop() {
+        return legacySrc != null ? legacy().getTstop() : getLong(OFF_TSTOP);
+    }
+
+    public int getChunkNum() {
+        return legacySrc != null ? legacy().getChunkNum() : getInt(OFF_CHUNK_NUM);
+    }
+
+    public int getFlags() {
+        return legacySrc != null ? legacy().getFlags() : getInt(OFF_FLAGS);
+    }
+
+    public boolean hasFlag(int flag) {
+        return flag == (getFlags() & flag);
+    }
+
+    public boolean hasError() {
+        return 0 != (getFlags() & TF_ERROR_MARK);
+    }
+
+    public int getStartOffs() {
+        return legacySrc != null ? legacy().getStartOffs() : getInt(OFF_START_OFFS);
+    }
+
+    public int getZeroLevel() {
+        return legacySrc != null ? legacy().getZeroLevel() : getInt(OFF_ZERO_LEVEL);
+    }
+
+    public int getStackDepth() {
+        return legacySrc != null ? legacy().getStackDepth() : getInt(OFF_STACK_DEPTH);
+    }
+
+    public int getCalls() {
+        return legacySrc != null ? legacy().getCalls() : getInt(OFF_CALLS);
+    }
+
+    public int getErrors() {
+        return legacySrc != null ? legacy().getErrors() : getInt(OFF_ERRORS);
+    }
+
+    public int getRecs() {
+        return legacySrc != null ? legacy().getRecs() : getInt(OFF_RECS);
+    }
+
+    public int getSattrCount() {
+        if (legacySrc != null) return legacy().getSattrs().size();
+        return getInt(OFF_NSATTRS);
+    }
+
+    public int getSattrKey(int i) {
+        if (legacySrc != null) return legacySattrs(i * 2);
+        return getInt(HEADER_SIZE + i * SATTR_SIZE);
+    }
+
+    public int getSattrValue(int i) {
+        if (legacySrc != null) return legacySattrs(i * 2 + 1);
+        return getInt(HEADER_SIZE + i * SATTR_SIZE + 4);
+    }
+
+    private int legacySattrs(int i) {
+        legacy();
+        return legacySattrs[i];
+    }
+
+    public int getNattrCount() {
+        if (legacySrc != null) return legacy().getNattrs().size();
+        return getInt(OFF_NNATTRS);
+    }
+
+    public int getNattrKey(int i) {
+        if (legacySrc != null) {
+            legacy();
+            return legacyNattrKeys[i];
+        }
+        return getInt(HEADER_SIZE + getSattrCount() * SATTR_SIZE + i * NATTR_SIZE);
+    }
+
+    public long getNattrValue(int i) {
+        if (legacySrc != null) {
+            legacy();
+            return legacyNattrVals[i];
+        }
+        return getLong(HEADER_SIZE + getSattrCount() * SATTR_SIZE + i * NATTR_SIZE + 4);
+    }
+
+    /**
+     * Materializes full metadata object.
+     */
+    public ChunkMetadata toChunkMetadata() {
+        if (legacySrc != null) {
+            // Deserialized object is handed over to caller (who might modify it)
+            ChunkMetadata cm = legacy();
+            legacy = null;
+            return cm;
+        }
+        ChunkMetadata cm = new ChunkMetadata(getTraceId1(), getTraceId2(), getParentId(), getSpanId(), getChunkNum());
+        cm.setZeroLevel(getZeroLevel());
+        cm.setFlags(getFlags());
+        cm.setTstamp(getTstamp());
+        cm.setDuration(getDuration());
+        cm.setDataOffs(getDataOffs());
+        cm.setStartOffs(getStartOffs());
+        cm.setStackDepth(getStackDepth());
+        cm.setCalls(getCalls());
+        cm.setErrors(getErrors());
+        cm.setRecs(getRecs());
+        cm.setTstart(getTstart());
+        cm.setTstop(getTstop());
+
+        for (int i = 0, n = getSattrCount(); i < n; i++) {
+            cm.getSattrs().put(getSattrKey(i), getSattrValue(i));
+        }
+
+        for (int i = 0, n = getNattrCount(); i < n; i++) {
+            cm.getNattrs().put(getNattrKey(i), getNattrValue(i));
+        }
+
+        return cm;
+    }
+}
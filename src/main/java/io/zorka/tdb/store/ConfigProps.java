@@ -45,6 +45,90 @@ public class ConfigProps {
     /** Maximum number of metadata WALs per compressed index. */
     public static final String MIDX_WAL_NUM = "store.meta.wal-num";
 
+    /** Enables pipelined trace ingest (compression, append and metadata commit performed by background threads). */
+    public static final String INGEST_PIPELINE = "store.ingest.pipeline";
+
+    /** Number of compression threads in pipelined ingest mode. */
+    public static final String INGEST_PIPELINE_THREADS = "store.ingest.pipeline.threads";
+
+    /** Maximum number of chunks waiting in each stage of ingest pipeline. */
+    public static final String INGEST_PIPELINE_QSIZE = "store.ingest.pipeline.queue-size";
+
+    /** Enables group commit of chunk metadata (metadata from concurrent writers is committed in batches). */
+    public static final String META_GROUP_COMMIT = "store.meta.group-commit";
+
+    /** Maximum number of chunks committed in a single batch. */
+    public static final String META_GROUP_COMMIT_SIZE = "store.meta.group-commit.size";
+
+    /** Maximum time (milliseconds) chunk metadata waits for its batch to be committed. */
+    public static final String META_GROUP_COMMIT_LATENCY = "store.meta.group-commit.latency";
+
+    /** Writes chunk metadata in legacy CBOR format (readable by older versions) instead of fixed layout. */
+    public static final String META_LEGACY_FORMAT = "store.meta.legacy-format";
+
+    /** Chunk metadata engine of new stores: mapdb (B-trees) or log (append-only mmapped log, in-memory indexes). */
+    public static final String META_ENGINE = "store.meta.engine";
+
+    /**
+     * Compacts chunk metadata of stores into immutable sorted tables (meta.sst) when they are archived.
+     * Compacted stores cannot be read by older versions, so this is disabled when legacy format is used.
+     */
+    public static final String META_ARCHIVE_COMPACT = "store.meta.archive-compact";
+
+    /** Also compacts metadata of stores archived before compaction was enabled (when they are opened). */
+    public static final String META_ARCHIVE_COMPACT_EXISTING = "store.meta.archive-compact.existing";
+
+    /**
+     * Size of decompressed trace chunk cache (MB), 0 (default) disables cache. Enabled cache takes up to
+     * this much heap (or direct memory if cache is kept off-heap).
+     */
+    public static final String CHUNK_CACHE_SIZE = "store.chunk-cache.size";
+
+    /** Keeps cached trace chunks in direct (off-heap) buffers. */
+    public static final String CHUNK_CACHE_OFFHEAP = "store.chunk-cache.offheap";
+
+    /** Enables parallel search across rotated stores. */
+    public static final String SEARCH_PARALLEL = "store.search.parallel";
+
+    /** Number of threads used by parallel search (and statistics aggregation). */
+    public static final String SEARCH_PARALLEL_THREADS = "store.search.parallel.threads";
+
+    /** Enables posting list index for attribute search in archived stores. */
+    public static final String SEARCH_POSTINGS = "store.search.postings";
+
+    /** Enables per store skip index for minimum duration and errors only search filters. */
+    public static final String SEARCH_SKIP_INDEX = "store.search.skip-index";
+
+    /**
+     * Size of search result cache for archived stores (MB), 0 (default) disables cache. Enabled cache takes up to
+     * this much heap for cached results plus keys of up to 4096 recently missed queries.
+     */
+    public static final String QUERY_CACHE_SIZE = "store.query-cache.size";
+
+    /**
+     * Enables global trace ID locator (trace ID to store ID index for archived stores). Disabled by default,
+     * enabled locator takes 17-34 bytes of heap per trace of each archived store.
+     */
+    public static final String TRACE_LOCATOR = "store.trace-locator";
+
+    /** Enables background maintenance scheduler (text index compression, merges and removals). */
+    public static final String MAINT_SCHEDULER = "store.maint.scheduler";
+
+    /** Number of maintenance worker threads. */
+    public static final String MAINT_THREADS = "store.maint.threads";
+
+    /** Interval (milliseconds) between checks for pending maintenance work. */
+    public static final String MAINT_INTERVAL = "store.maint.interval";
+
+    /** Maximum I/O throughput of maintenance tasks (MB/s, bytes read + written), 0 means no limit. */
+    public static final String MAINT_IO_RATE = "store.maint.io-rate";
+
+    /** Maintenance is paused when number of chunks waiting for ingest exceeds this value. */
+    public static final String MAINT_PAUSE_BACKLOG = "store.maint.pause-backlog";
+
+    /** Maximum time (milliseconds) maintenance task waits for ingest backlog to drain. */
+    public static final String MAINT_MAX_PAUSE = "store.maint.max-pause";
+
     public static final String IFLAGS = "store.iflags";
 
     public static final String DFLAGS = "store.dflags";
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static io.zorka.tdb.store.SimpleTraceStore.ERROR_BIT;
+
+/**
+ * Skip index over chunk timestamps: chunks are grouped in blocks of (roughly) BLOCK_SIZE consecutive
+ * timestamps, each block keeps maximum duration and error flag of its chunks. Searches with minimum
+ * duration or errors only filter use it to jump over blocks that cannot contain matching chunks.
+ * Block summaries are conservative (chunks are never removed), so skipping is always safe.
+ */
+public class DurationSkipIndex {
+
+    public static final int BLOCK_SIZE = 64;
+
+    private static class Block {
+        private long last;
+        private long maxDuration;
+        private boolean errors;
+        private int count;
+    }
+
+    /** Block start tstamp -> block summary. Block covers timestamps up to start of next block. */
+    private final TreeMap<Long,Block> blocks = new TreeMap<>();
+
+
+    /**
+     * Adds chunk to index.
+     *
+     * @param tstamp chunk timestamp
+     * @param duration chunk duration (with ERROR_BIT set for erroneous chunks)
+     */
+    public synchronized void add(long tstamp, long duration) {
+        Map.Entry<Long,Block> e = blocks.floorEntry(tstamp);
+        Block b;
+
+        // New blocks are started only past the last chunk, out of order chunks are added to blocks covering them
+        if (e == null || (e.getValue().count >= BLOCK_SIZE && tstamp > e.getValue().last && e.getKey().equals(blocks.lastKey()))) {
+            b = new Block();
+            b.last = tstamp;
+            blocks.put(tstamp, b);
+        } else {
+            b = e.getValue();
+        }
+
+        b.count++;
+        b.last = Math.max(b.last, tstamp);
+        b.maxDuration = Math.max(b.maxDuration, duration & ~ERROR_BIT);
+        b.errors |= 0 != (duration & ERROR_BIT);
+    }
+
+
+    /**
+     * Finds timestamp search should continue from.
+     *
+     * @param tstamp current search position
+     * @param minDuration minimum duration of matching chunks
+     * @param errorsOnly if true, only chunks with errors match
+     * @return tstamp if its block may contain matching chunks, otherwise exclusive upper bound of
+     * nearest lower block that may contain them or Long.MIN_VALUE if there is no such block
+     */
+    public synchronized long floorCandidate(long tstamp, long minDuration, boolean errorsOnly) {
+        Map.Entry<Long,Block> first = blocks.floorEntry(tstamp);
+
+        if (first == null) return tstamp;
+
+        for (Map.Entry<Long,Block> e = first; e != null; e = blocks.lowerEntry(e.getKey())) {
+            Block b = e.getValue();
+            if (b.maxDuration >= minDuration && (!errorsOnly || b.errors)) {
+                return e == first ? tstamp : blocks.higherKey(e.getKey());
+            }
+        }
+
+        return Long.MIN_VALUE;
+    }
+
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+
+    /**
+     * Builds skip index from tstamp -> duration+err map.
+     */
+    public static DurationSkipIndex build(NavigableMap<Long,Long> tstamps) {
+        DurationSkipIndex si = new DurationSkipIndex();
+        for (Map.Entry<Long,Long> e : tstamps.entrySet()) {
+            si.add(e.getKey(), e.getValue());
+        }
+        return si;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.text.StructuredTextIndex;
+
+import java.util.*;
+
+import static com.jitlogic.zorka.cbor.TraceInfoConstants.*;
+
+/**
+ * Retrieves only top part of trace call tree: records up to maxDepth levels and (optionally) only
+ * maxChildren longest children of each record. Records deeper in the tree are not materialized and
+ * are skipped without decoding if chunk skip table covers them. Each returned record carries handle
+ * (chunk number and position) and number of children left out, so its subtree can be retrieved
+ * later by RotatingTraceStore.expand().
+ */
+public class LazyTraceDataRetriever implements TraceDataRetriever<TraceRecord>, StreamingDataProcessor {
+
+    private static final Comparator<TraceRecord> BY_DURATION =
+        Comparator.comparingLong(TraceRecord::getDuration).thenComparingInt(TraceRecord::getPos);
+
+    private static final Comparator<Object> BY_POSITION =
+        Comparator.comparingInt((Object o) -> ((TraceRecord)o).getChunkNum()).thenComparingInt(o -> ((TraceRecord)o).getPos());
+
+    private static class Frame {
+        private final TraceRecord tr;
+        private final PriorityQueue<TraceRecord> children = new PriorityQueue<>(BY_DURATION);
+        private int hidden;
+
+        private Frame(TraceRecord tr) {
+            this.tr = tr;
+        }
+    }
+
+    /** Number of materialized levels (1 - root record only). */
+    private final int maxDepth;
+
+    /** Maximum number of (longest) children returned for each record. */
+    private final int maxChildren;
+
+    private final List<Frame> frames = new ArrayList<>();
+
+    /** Current depth (including records that are not materialized). */
+    private int depth;
+
+    private int chunkNum;
+
+    private StructuredTextIndex resolver;
+
+    private TraceDataReader reader;
+
+    private TraceRecord result;
+
+    /** Attributes of materialized record being decoded (null if record is not materialized). */
+    private Map<Object,Object> attrs;
+
+    private Object attrKey;
+
+    private boolean hasAttrKey;
+
+
+    /**
+     * @param maxDepth number of tree levels to retrieve (at least 1)
+     * @param maxChildren maximum number of children (longest ones) retrieved for each record
+     */
+    public LazyTraceDataRetriever(int maxDepth, int maxChildren) {
+        if (maxDepth < 1 || maxChildren < 0) {
+            throw new ZicoException("Invalid lazy retrieval limits: depth=" + maxDepth + ", children=" + maxChildren);
+        }
+        this.maxDepth = maxDepth;
+        this.maxChildren = maxChildren;
+    }
+
+
+    public LazyTraceDataRetriever(int maxDepth) {
+        this(maxDepth, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Sets number of chunk being decoded (returned in record handles).
+     */
+    public void setChunkNum(int chunkNum) {
+        this.chunkNum = chunkNum;
+    }
+
+
+    /**
+     * Returns true if top record has been fully processed.
+     */
+    public boolean isDone() {
+        return result != null;
+    }
+
+
+    @Override
+    public void traceStart(int pos) {
+        if (depth < maxDepth) {
+            TraceRecord tr = new TraceRecord(pos);
+            tr.setChunkNum(chunkNum);
+            tr.setLevel(depth);
+            frames.add(new Frame(tr));
+        } else if (depth == maxDepth) {
+            frames.get(depth - 1).hidden++;
+        }
+        depth++;
+        if (depth > maxDepth && reader != null) {
+            reader.skip();
+        }
+    }
+
+
+    @Override
+    public void traceEnd() {
+        if (depth == 0) return;
+        depth--;
+        if (depth >= maxDepth) return;
+
+        Frame f = frames.remove(depth);
+        TraceRecord tr = f.tr;
+        tr.setDuration(tr.getTstop() - tr.getTstart());
+        if (resolver != null) tr.setMethod(resolver.resolve(tr.getMid()));
+        if (!f.children.isEmpty()) {
+            List<Object> children = new ArrayList<>(f.children);
+            children.sort(BY_POSITION);
+            tr.setChildren(children);
+        }
+        tr.setHiddenChildren(f.hidden);
+
+        if (depth > 0) {
+            Frame p = frames.get(depth - 1);
+            if (p.children.size() < maxChildren) {
+                p.children.add(tr);
+            } else {
+                p.hidden++;
+                if (maxChildren > 0 && BY_DURATION.compare(tr, p.children.peek()) > 0) {
+                    p.children.poll();
+                    p.children.add(tr);
+                }
+            }
+        } else {
+            result = tr;
+            if (reader != null) reader.stop();
+        }
+    }
+
+
+    private TraceRecord current() {
+        return depth > 0 && depth <= maxDepth ? frames.get(depth - 1).tr : null;
+    }
+
+
+    @Override
+    public void traceInfo(int k, long v) {
+        TraceRecord tr = current();
+        if (tr == null) return;
+        switch (k) {
+            case TI_CHNUM:
+            case TI_CHOFFS:
+            case TI_CHLEN:
+                break;
+            case TI_TSTAMP:
+                tr.setTstamp(v);
+                break;
+            case TI_DURATION:
+                tr.setDuration(v);
+                break;
+            case TI_RECS:
+                tr.setRecs((int)v);
+                break;
+            case TI_CALLS:
+                tr.setNcalls(v);
+                break;
+            case TI_ERRORS:
+                tr.setErrors(v);
+                break;
+            case TI_FLAGS:
+                tr.setFlags((int)v);
+                break;
+            case TI_TSTART:
+                tr.setTstart(v);
+                break;
+            case TI_TSTOP:
+                tr.setTstop(v);
+                break;
+            case TI_METHOD:
+                tr.setMid((int)v);
+                break;
+            case TI_PARENT:
+                tr.setParentId(v);
+                break;
+            case TI_SPAN:
+                tr.setSpanId(v);
+                break;
+            default:
+                throw new ZicoException("Unexpected TraceInfo attribute: " + k);
+        }
+    }
+
+
+    @Override
+    public void attrStart(int size) {
+        TraceRecord tr = current();
+        if (tr != null) {
+            if (tr.getAttrs() == null) {
+                tr.setAttrs(new HashMap<>());
+            }
+            attrs = tr.getAttrs();
+        } else {
+            attrs = null;
+        }
+        hasAttrKey = false;
+    }
+
+
+    private void attrItem(Object v) {
+        if (hasAttrKey) {
+            attrs.put(attrKey, v);
+            attrKey = null;
+        } else {
+            attrKey = v;
+        }
+        hasAttrKey = !hasAttrKey;
+    }
+
+
+    @Override
+    public void attrRef(int id) {
+        if (attrs != null) attrItem(new ObjectRef(id));
+    }
+
+
+    @Override
+    public void attrLong(long v) {
+        if (attrs != null) attrItem(v);
+    }
+
+
+    @Override
+    public void attrBool(boolean v) {
+        if (attrs != null) attrItem(v);
+    }
+
+
+    @Override
+    public void attrNull() {
+        if (attrs != null) attrItem(null);
+    }
+
+
+    @Override
+    public void attrValue(Object v) {
+        if (attrs != null) attrItem(v);
+    }
+
+
+    @Override
+    public void attrEnd() {
+        attrs = null;
+        attrKey = null;
+    }
+
+
+    @Override
+    public void exceptionRef(int ref) {
+        TraceRecord tr = current();
+        if (tr != null) {
+            tr.setEid(ref);
+        }
+    }
+
+
+    @Override
+    public void exception(ExceptionData ex) {
+        TraceRecord tr = current();
+        if (tr != null) {
+            tr.setExceptionData(ex);
+        }
+    }
+
+
+    @Override
+    public void commit() {
+        while (depth > 0) {
+            traceEnd();
+        }
+    }
+
+
+    @Override
+    public void setResolver(StructuredTextIndex resolver) {
+        this.resolver = resolver;
+    }
+
+
+    @Override
+    public void clear() {
+        frames.clear();
+        depth = 0;
+        result = null;
+        attrs = null;
+        attrKey = null;
+    }
+
+
+    @Override
+    public TraceRecord getResult() {
+        return result;
+    }
+
+
+    @Override
+    public void setReader(TraceDataReader reader) {
+        this.reader = reader;
+    }
+
+
+    @Override
+    public boolean usesSkipTable() {
+        return true;
+    }
+}
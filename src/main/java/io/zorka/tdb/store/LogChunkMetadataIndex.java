@@ -0,0 +1,408 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import org.mapdb.Fun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static io.zorka.tdb.util.BitUtils.*;
+
+/**
+ * Chunk metadata kept in append-only memory mapped log (meta.log file). Secondary indexes are kept
+ * in memory (skip lists) and rebuilt from log when store is opened. Chunk records are read straight
+ * from mapped log.
+ *
+ * Log consists of fixed size segments. Each record is: int payload length, int CRC32 of payload,
+ * then payload: record type, two longs (chunk: tstamp and duration, skip table: data offset)
+ * and record data (chunk metadata in fixed layout or encoded skip table). Records do not cross
+ * segment boundaries: rest of segment is marked with PADDING length. Zero length marks end of log.
+ * Record length is written last, so torn records at the end of log are detected (and discarded)
+ * on open by CRC mismatch.
+ */
+public class LogChunkMetadataIndex implements ChunkMetadataIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(LogChunkMetadataIndex.class);
+
+    public static final String FILE_NAME = "meta.log";
+
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int PADDING = -1;
+
+    /** Record length and CRC32 */
+    private static final int REC_HEADER = 8;
+
+    /** Record type and two longs */
+    private static final int REC_FIXED = 17;
+
+    private static final byte T_CHUNK = 1;
+    private static final byte T_SKIP = 2;
+    private static final byte T_ARCHIVED = 3;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private volatile MappedByteBuffer[] segments;
+
+    /** Position of next record */
+    private long wpos;
+
+    /** First segment modified since last commit (or -1) */
+    private int dirty = -1;
+
+    private volatile boolean archived;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] wbuf = new byte[1024];
+
+    /** tstamp -> chunk record position */
+    private final ConcurrentNavigableMap<Long,Long> chunks = new ConcurrentSkipListMap<>();
+
+    /** Data chunk offset -> skip table record position */
+    private final ConcurrentNavigableMap<Long,Long> skips = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> tids = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Long,Long> tstamps = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> durations = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> strings = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> nattrs = new ConcurrentSkipListMap<>();
+
+    private final ChunkMetadataView view = new ChunkMetadataView();
+
+
+    public LogChunkMetadataIndex(File root) {
+        file = new File(root, FILE_NAME);
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            int nsegs = (int)((channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segs = new MappedByteBuffer[nsegs];
+            for (int i = 0; i < nsegs; i++) {
+                segs[i] = map(i);
+            }
+            segments = segs;
+        } catch (IOException e) {
+            throw new ZicoException("Cannot open metadata log " + file, e);
+        }
+        replay();
+    }
+
+
+    private MappedByteBuffer map(int seg) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long)seg * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+
+    /**
+     * Rebuilds in-memory indexes from log. Log is cut at first damaged record.
+     */
+    private void replay() {
+        MappedByteBuffer[] segs = segments;
+        long pos = 0, end = (long)segs.length * SEGMENT_SIZE;
+        boolean damaged = false;
+
+        while (pos < end) {
+            MappedByteBuffer seg = segs[(int)(pos / SEGMENT_SIZE)];
+            int offs = (int)(pos % SEGMENT_SIZE);
+            int len = SEGMENT_SIZE - offs >= REC_HEADER ? seg.getInt(offs) : PADDING;
+            if (len == PADDING) {
+                pos = nextSegment(pos);
+                continue;
+            }
+            if (len == 0) break;
+            if (len < REC_FIXED || offs + REC_HEADER + len > SEGMENT_SIZE || crc(seg, offs, len) != seg.getInt(offs + 4)) {
+                damaged = true;
+                break;
+            }
+            apply(seg, offs, pos, len);
+            pos += REC_HEADER + len;
+        }
+
+        wpos = pos;
+
+        if (damaged) {
+            log.warn("Damaged record in " + file + " at position " + pos + ": discarding rest of log.");
+            for (int i = (int)(pos / SEGMENT_SIZE); i < segs.length; i++) {
+                long offs = i == pos / SEGMENT_SIZE ? pos % SEGMENT_SIZE : 0;
+                UNSAFE.setMemory(addr(segs[i]) + offs, SEGMENT_SIZE - offs, (byte)0);
+                segs[i].force();
+            }
+        }
+    }
+
+
+    private static long nextSegment(long pos) {
+        return (pos / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+    }
+
+
+    private int crc(MappedByteBuffer seg, int offs, int len) {
+        ByteBuffer b = seg.duplicate();
+        b.limit(offs + REC_HEADER + len).position(offs + REC_HEADER);
+        crc.reset();
+        crc.update(b);
+        return (int)crc.getValue();
+    }
+
+
+    private void apply(MappedByteBuffer seg, int offs, long pos, int len) {
+        int p = offs + REC_HEADER;
+        long a = seg.getLong(p + 1), b = seg.getLong(p + 9);
+        switch (seg.get(p)) {
+            case T_CHUNK:
+                chunks.put(a, pos);
+                index(a, b, view.wrap(seg, addr(seg) + p + REC_FIXED, len - REC_FIXED));
+                break;
+            case T_SKIP:
+                skips.put(a, pos);
+                break;
+            case T_ARCHIVED:
+                archived = true;
+                break;
+            default:
+                throw new ZicoException("Invalid record type in " + file + " at position " + pos);
+        }
+    }
+
+
+    /**
+     * Appends record to log and returns its position.
+     */
+    private synchronized long append(byte type, long a, long b, byte[] data) {
+        MappedByteBuffer[] segs = segments;
+        if (segs == null) throw new ZicoException("Metadata log " + file + " is closed.");
+
+        int len = REC_FIXED + data.length;
+        if (REC_HEADER + len > SEGMENT_SIZE) {
+            throw new ZicoException("Metadata record too big: " + len + " bytes.");
+        }
+
+        int offs = (int)(wpos % SEGMENT_SIZE);
+        if (wpos == (long)segs.length * SEGMENT_SIZE || offs + REC_HEADER + len > SEGMENT_SIZE) {
+            if (wpos < (long)segs.length * SEGMENT_SIZE) {
+                if (SEGMENT_SIZE - offs >= 4) segs[(int)(wpos / SEGMENT_SIZE)].putInt(offs, PADDING);
+                markDirty((int)(wpos / SEGMENT_SIZE));
+                wpos = nextSegment(wpos);
+            }
+            if (wpos / SEGMENT_SIZE >= segs.length) {
+                try {
+                    segs = Arrays.copyOf(segs, segs.length + 1);
+                    segs[segs.length - 1] = map(segs.length - 1);
+                    segments = segs;
+                } catch (IOException e) {
+                    throw new ZicoException("Cannot extend metadata log " + file, e);
+                }
+            }
+            offs = 0;
+        }
+
+        if (wbuf.length < len) wbuf = new byte[Math.max(len, wbuf.length * 2)];
+        wbuf[0] = type;
+        UNSAFE.putLong(wbuf, BYTE_ARRAY_OFFS + 1, ntohl(a));
+        UNSAFE.putLong(wbuf, BYTE_ARRAY_OFFS + 9, ntohl(b));
+        System.arraycopy(data, 0, wbuf, REC_FIXED, data.length);
+        crc.reset();
+        crc.update(wbuf, 0, len);
+
+        int sn = (int)(wpos / SEGMENT_SIZE);
+        MappedByteBuffer seg = segs[sn];
+        UNSAFE.copyMemory(wbuf, BYTE_ARRAY_OFFS, null, addr(seg) + offs + REC_HEADER, len);
+        seg.putInt(offs + 4, (int)crc.getValue());
+        seg.putInt(offs, len);
+        markDirty(sn);
+
+        long pos = wpos;
+        wpos += REC_HEADER + len;
+        return pos;
+    }
+
+
+    private void markDirty(int seg) {
+        if (dirty < 0 || seg < dirty) dirty = seg;
+    }
+
+
+    private MappedByteBuffer segment(long pos) {
+        MappedByteBuffer[] segs = segments;
+        if (segs == null) throw new ZicoException("Metadata log " + file + " is closed.");
+        return segs[(int)(pos / SEGMENT_SIZE)];
+    }
+
+
+    private byte[] read(long pos) {
+        MappedByteBuffer seg = segment(pos);
+        int offs = (int)(pos % SEGMENT_SIZE);
+        byte[] b = new byte[seg.getInt(offs) - REC_FIXED];
+        UNSAFE.copyMemory(null, addr(seg) + offs + REC_HEADER + REC_FIXED, b, BYTE_ARRAY_OFFS, b.length);
+        return b;
+    }
+
+
+    @Override
+    public void add(long tstamp, long duration, byte[] data) {
+        if (!ChunkMetadataView.isFixedLayout(data)) {
+            data = ChunkMetadata.serialize(ChunkMetadata.deserialize(data));
+        }
+        long pos = append(T_CHUNK, tstamp, duration, data);
+        chunks.put(tstamp, pos);
+        synchronized (view) {
+            index(tstamp, duration, view.wrap(data));
+        }
+    }
+
+
+    @Override
+    public byte[] getChunk(long tstamp) {
+        Long pos = chunks.get(tstamp);
+        return pos != null ? read(pos) : null;
+    }
+
+
+    @Override
+    public boolean getChunk(long tstamp, ChunkMetadataView view) {
+        Long pos = chunks.get(tstamp);
+        if (pos == null) return false;
+        MappedByteBuffer seg = segment(pos);
+        int offs = (int)(pos % SEGMENT_SIZE);
+        view.wrap(seg, addr(seg) + offs + REC_HEADER + REC_FIXED, seg.getInt(offs) - REC_FIXED);
+        return true;
+    }
+
+
+    @Override
+    public void forEachChunk(Consumer<byte[]> consumer) {
+        for (Long pos : chunks.values()) {
+            consumer.accept(read(pos));
+        }
+    }
+
+
+    @Override
+    public void addSkipTable(long dataOffs, byte[] skipTable) {
+        skips.put(dataOffs, append(T_SKIP, dataOffs, 0, skipTable));
+    }
+
+
+    @Override
+    public byte[] getSkipTable(long dataOffs) {
+        Long pos = skips.get(dataOffs);
+        return pos != null ? read(pos) : null;
+    }
+
+
+    @Override
+    public void forEachSkipTable(BiConsumer<Long,byte[]> consumer) {
+        for (Map.Entry<Long,Long> e : skips.entrySet()) {
+            consumer.accept(e.getKey(), read(e.getValue()));
+        }
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> getTids() {
+        return tids;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Long,Long> getTstamps() {
+        return tstamps;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getDurations() {
+        return durations;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> getSattrs() {
+        return sattrs;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getStrings() {
+        return strings;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> getNattrs() {
+        return nattrs;
+    }
+
+
+    @Override
+    public boolean isArchived() {
+        return archived;
+    }
+
+
+    @Override
+    public synchronized void setArchived() {
+        if (!archived) {
+            append(T_ARCHIVED, 0, 0, new byte[0]);
+            archived = true;
+            commit();
+        }
+    }
+
+
+    @Override
+    public synchronized void commit() {
+        MappedByteBuffer[] segs = segments;
+        if (dirty < 0 || segs == null) return;
+        for (int i = dirty; i < segs.length; i++) {
+            segs[i].force();
+        }
+        dirty = -1;
+    }
+
+
+    /**
+     * Closes log file. Segments are unmapped by GC, not here: views wrapped over records keep their
+     * segment reachable and may still be read by searches running concurrently.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        commit();
+        segments = null;
+        raf.close();
+    }
+}
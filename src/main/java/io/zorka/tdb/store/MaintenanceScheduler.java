@@ -0,0 +1,356 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.util.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs maintenance of stores (text index compression, merges and removals) in background worker threads.
+ * Stores are periodically checked for pending work and tasks are queued by priority: compressions go
+ * before merges and merges go before removals. Tasks are throttled by token bucket (bytes read and written
+ * per second, charged after each task) and are held back while ingest backlog is too big (but no longer
+ * than maximum pause time, so maintenance is not starved by constant ingest).
+ *
+ * Task that fails is not scheduled again for the same store before its backoff time passes. Backoff
+ * starts at check interval and doubles with each consecutive failure (up to MAX_BACKOFF intervals).
+ * Only first failure is logged with stack trace.
+ */
+public class MaintenanceScheduler implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    private static final long PAUSE_POLL = 10;
+
+    /** Maximum backoff of failing task (in check intervals). */
+    private static final int MAX_BACKOFF = 64;
+
+    /** Task types in priority order. */
+    public enum TaskType {
+        COMPRESS, MERGE, REMOVE
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final SimpleTraceStore store;
+        private final TaskType type;
+        private final String key;
+        private final long seq = seqs.incrementAndGet();
+
+        private Task(SimpleTraceStore store, TaskType type, String key) {
+            this.store = store;
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            runTask(this);
+        }
+
+        @Override
+        public int compareTo(Task t) {
+            int c = type.compareTo(t.type);
+            return c != 0 ? c : Long.compare(seq, t.seq);
+        }
+
+        @Override
+        public String toString() {
+            return type + "(" + String.format("%06x", store.getStoreId()) + ")";
+        }
+    }
+
+    private static class Failure {
+        private int count;
+        private volatile long retryAt;
+    }
+
+    private final Supplier<List<SimpleTraceStore>> stores;
+    private final LongSupplier backlog;
+    private final long pauseBacklog;
+    private final long maxPause;
+    private final long interval;
+
+    /** Time source (nanoseconds) for task times, pauses and backoffs. */
+    private final LongSupplier clock;
+
+    /** I/O limiter, null if maintenance is not throttled. */
+    private final TokenBucket bucket;
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService planner;
+
+    /** Keys (store ID + task type) of queued and running tasks */
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    /** Consecutive failures of tasks (by store ID + task type) */
+    private final Map<String,Failure> failures = new ConcurrentHashMap<>();
+
+    private final AtomicLong seqs = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLongArray counts = new AtomicLongArray(TaskType.values().length);
+    private final AtomicLongArray times = new AtomicLongArray(TaskType.values().length);
+    private final AtomicLongArray maxTimes = new AtomicLongArray(TaskType.values().length);
+    private final AtomicLongArray bytes = new AtomicLongArray(TaskType.values().length);
+    private final AtomicLongArray errors = new AtomicLongArray(TaskType.values().length);
+    private final AtomicLong pausedTime = new AtomicLong();
+    private final AtomicLong throttledTime = new AtomicLong();
+
+
+    /**
+     * @param stores supplies stores to be maintained
+     * @param backlog supplies ingest backlog (number of chunks waiting to be stored)
+     * @param nthreads number of worker threads
+     * @param interval interval between checks for pending work (milliseconds)
+     * @param ioRate maximum I/O throughput (bytes per second), 0 means no limit
+     * @param pauseBacklog tasks are held back while ingest backlog is bigger than this
+     * @param maxPause maximum time (milliseconds) single task is held back
+     */
+    public MaintenanceScheduler(Supplier<List<SimpleTraceStore>> stores, LongSupplier backlog,
+                                int nthreads, long interval, long ioRate, long pauseBacklog, long maxPause) {
+        this(stores, backlog, nthreads, interval, ioRate, pauseBacklog, maxPause, System::nanoTime);
+    }
+
+
+    /**
+     * @param clock time source (nanoseconds)
+     */
+    public MaintenanceScheduler(Supplier<List<SimpleTraceStore>> stores, LongSupplier backlog,
+                                int nthreads, long interval, long ioRate, long pauseBacklog, long maxPause,
+                                LongSupplier clock) {
+        this.stores = stores;
+        this.clock = clock;
+        this.backlog = backlog;
+        this.pauseBacklog = pauseBacklog;
+        this.maxPause = maxPause * 1000000L;
+        this.interval = interval * 1000000L;
+        this.bucket = ioRate > 0 ? new TokenBucket(ioRate, ioRate) : null;
+
+        AtomicInteger n = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(nthreads, nthreads, 60, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(), r -> daemon(r, "zico-maint-" + n.incrementAndGet()));
+        this.planner = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "zico-maint-planner"));
+        this.planner.scheduleWithFixedDelay(this::schedule, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    }
+
+
+    /**
+     * Checks all stores for pending work and queues maintenance tasks.
+     */
+    public void schedule() {
+        try {
+            for (SimpleTraceStore s : stores.get()) {
+                for (TaskType t : TaskType.values()) {
+                    if (running && s.needsMaintenance(t)) submit(s, t);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error scheduling maintenance tasks", e);
+        }
+    }
+
+
+    private void submit(SimpleTraceStore store, TaskType type) {
+        String key = key(store, type);
+        Failure f = failures.get(key);
+        if (f != null && clock.getAsLong() - f.retryAt < 0) return;
+        if (running && queued.add(key)) {
+            try {
+                workers.execute(new Task(store, type, key));
+            } catch (RejectedExecutionException e) {
+                queued.remove(key);
+            }
+        }
+    }
+
+
+    private static String key(SimpleTraceStore store, TaskType type) {
+        return store.getStoreId() + ":" + type;
+    }
+
+
+    private void runTask(Task t) {
+        long n = -1;
+        active.incrementAndGet();
+        try {
+            waitForIngest();
+            if (bucket != null) throttledTime.addAndGet(bucket.await());
+            if (!running) return;
+
+            long t0 = clock.getAsLong();
+            n = t.store.runMaintenanceTask(t.type);
+            long dt = clock.getAsLong() - t0;
+
+            if (n >= 0) {
+                int i = t.type.ordinal();
+                counts.incrementAndGet(i);
+                times.addAndGet(i, dt);
+                bytes.addAndGet(i, n);
+                maxTimes.accumulateAndGet(i, dt, Math::max);
+                failures.remove(t.key);
+                if (bucket != null) bucket.charge(n);
+                if (log.isDebugEnabled()) {
+                    log.debug("Maintenance task " + t + " finished: " + n + " bytes, " + dt / 1000000 + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            failed(t, e);
+        } finally {
+            queued.remove(t.key);
+            active.decrementAndGet();
+        }
+
+        // Single task does limited amount of work, so there might be more of the same kind
+        if (n >= 0 && running && t.store.needsMaintenance(t.type)) {
+            submit(t.store, t.type);
+        }
+    }
+
+
+    private void failed(Task t, Exception e) {
+        Failure f = failures.computeIfAbsent(t.key, k -> new Failure());
+        f.count++;
+        long backoff = interval << Math.min(f.count - 1, Integer.numberOfTrailingZeros(MAX_BACKOFF));
+        f.retryAt = clock.getAsLong() + backoff;
+        errors.incrementAndGet(t.type.ordinal());
+        if (f.count == 1) {
+            log.error("Maintenance task " + t + " failed", e);
+        } else {
+            log.warn("Maintenance task " + t + " failed " + f.count + " times (" + e.getMessage()
+                + "), next attempt in " + backoff / 1000000 + " ms");
+        }
+    }
+
+
+    private void waitForIngest() throws InterruptedException {
+        long t0 = clock.getAsLong();
+        while (running && backlog.getAsLong() > pauseBacklog && clock.getAsLong() - t0 < maxPause) {
+            Thread.sleep(PAUSE_POLL);
+        }
+        pausedTime.addAndGet(clock.getAsLong() - t0);
+    }
+
+
+    /** Returns number of tasks waiting in queue. */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+
+    /** Returns number of tasks being executed (including tasks held back by throttling or ingest backlog). */
+    public int getActiveTasks() {
+        return active.get();
+    }
+
+
+    /** Returns number of finished tasks of given type. */
+    public long getTaskCount(TaskType type) {
+        return counts.get(type.ordinal());
+    }
+
+
+    /** Returns number of failed tasks of given type. */
+    public long getFailureCount(TaskType type) {
+        return errors.get(type.ordinal());
+    }
+
+
+    /**
+     * Returns time (as read from scheduler clock) after which failed task of given type can be retried on given store,
+     * or Long.MIN_VALUE if last task has not failed.
+     */
+    public long getRetryTime(SimpleTraceStore store, TaskType type) {
+        Failure f = failures.get(key(store, type));
+        return f != null ? f.retryAt : Long.MIN_VALUE;
+    }
+
+
+    /** Returns total execution time (nanoseconds) of tasks of given type. */
+    public long getTaskTime(TaskType type) {
+        return times.get(type.ordinal());
+    }
+
+
+    /** Returns longest execution time (nanoseconds) of task of given type. */
+    public long getMaxTaskTime(TaskType type) {
+        return maxTimes.get(type.ordinal());
+    }
+
+
+    /** Returns number of bytes read and written by tasks of given type. */
+    public long getTaskBytes(TaskType type) {
+        return bytes.get(type.ordinal());
+    }
+
+
+    /** Returns total time (nanoseconds) tasks were held back due to ingest backlog. */
+    public long getPausedTime() {
+        return pausedTime.get();
+    }
+
+
+    /** Returns total time (nanoseconds) tasks were held back by I/O limit. */
+    public long getThrottledTime() {
+        return throttledTime.get();
+    }
+
+
+    /**
+     * Stops scheduler. Queued tasks are discarded, waits for running tasks to finish.
+     */
+    @Override
+    public void close() {
+        running = false;
+        planner.shutdownNow();
+        workers.getQueue().clear();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+                log.warn("Maintenance tasks did not finish in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queued.clear();
+        failures.clear();
+    }
+}
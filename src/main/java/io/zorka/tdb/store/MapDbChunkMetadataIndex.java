@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Fun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static io.zorka.tdb.store.SimpleTraceStore.ERROR_BIT;
+
+/**
+ * Chunk metadata kept in MapDB B-trees (meta.db file).
+ */
+public class MapDbChunkMetadataIndex implements ChunkMetadataIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(MapDbChunkMetadataIndex.class);
+
+    public static final String FILE_NAME = "meta.db";
+
+    private final DB db;
+
+    /** tstamp -> serialized chunk. */
+    private final ConcurrentNavigableMap<Long,byte[]> chunks;
+
+    private final ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> tids;
+
+    private final ConcurrentNavigableMap<Long,Long> tstamps;
+
+    private final ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> durations;
+
+    /** Data chunk offset -> encoded subtree skip table */
+    private final ConcurrentNavigableMap<Long,byte[]> skips;
+
+    private final ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs;
+
+    private final ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> strings;
+
+    // TODO fulltext: valId+SEQ -> keyId+duration+err
+
+    private final ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> nattrs; // Types (2-bit): bool=1,long=2,double=3
+
+    private final ChunkMetadataView view = new ChunkMetadataView();
+
+
+    public MapDbChunkMetadataIndex(File root) {
+        db = DBMaker.newFileDB(new File(root, FILE_NAME))
+                // TODO mmapEnable(), segment size etc.
+                .closeOnJvmShutdown().cacheSize(8192).make();
+
+        chunks = db.getTreeMap("chunks.map");
+        tids = db.getTreeMap("tids.map");
+        tstamps = db.getTreeMap("tstamps.map");
+        sattrs = db.getTreeMap("sattrs.map");
+        nattrs = db.getTreeMap("nattrs.map");
+        strings = db.getTreeMap("strings.map");
+        durations = db.getTreeMap("durations.map");
+        skips = db.getTreeMap("skips.map");
+
+        if (durations.isEmpty() && !tstamps.isEmpty()) {
+            log.info("Building duration index of store " + root);
+            for (Map.Entry<Long,Long> e : tstamps.entrySet()) {
+                durations.put(Fun.t2(TopDurationCollector.bucket(e.getValue() & ~ERROR_BIT), e.getKey()), e.getValue());
+            }
+            db.commit();
+        }
+    }
+
+
+    @Override
+    public synchronized void add(long tstamp, long duration, byte[] data) {
+        chunks.put(tstamp, data);
+        index(tstamp, duration, view.wrap(data));
+    }
+
+
+    @Override
+    public byte[] getChunk(long tstamp) {
+        return chunks.get(tstamp);
+    }
+
+
+    @Override
+    public boolean getChunk(long tstamp, ChunkMetadataView view) {
+        byte[] b = chunks.get(tstamp);
+        if (b == null) return false;
+        view.wrap(b);
+        return true;
+    }
+
+
+    @Override
+    public void forEachChunk(Consumer<byte[]> consumer) {
+        for (byte[] b : chunks.values()) {
+            consumer.accept(b);
+        }
+    }
+
+
+    @Override
+    public void addSkipTable(long dataOffs, byte[] skipTable) {
+        skips.put(dataOffs, skipTable);
+    }
+
+
+    @Override
+    public byte[] getSkipTable(long dataOffs) {
+        return skips.get(dataOffs);
+    }
+
+
+    @Override
+    public void forEachSkipTable(BiConsumer<Long,byte[]> consumer) {
+        for (Map.Entry<Long,byte[]> e : skips.entrySet()) {
+            consumer.accept(e.getKey(), e.getValue());
+        }
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> getTids() {
+        return tids;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Long,Long> getTstamps() {
+        return tstamps;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getDurations() {
+        return durations;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> getSattrs() {
+        return sattrs;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getStrings() {
+        return strings;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> getNattrs() {
+        return nattrs;
+    }
+
+
+    @Override
+    public boolean isArchived() {
+        return db.getAtomicBoolean("archived.flag").get();
+    }
+
+
+    @Override
+    public void setArchived() {
+        db.getAtomicBoolean("archived.flag").set(true);
+        db.commit();
+    }
+
+
+    @Override
+    public void commit() {
+        db.commit();
+    }
+
+
+    @Override
+    public void close() {
+        db.close();
+    }
+}
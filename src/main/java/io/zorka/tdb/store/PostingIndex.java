@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import org.mapdb.Fun;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Posting lists of string attributes for archived (immutable) stores. Chunks are numbered with dense
+ * sequence numbers in timestamp order, so ascending sequence numbers are ascending timestamps. For each
+ * (keyId, valId) pair there is a list of sequence numbers of matching chunks, stored as delta encoded
+ * varints. Index file is memory mapped and contains:
+ *
+ * <ul>
+ *     <li>header: magic, number of chunks, number of posting lists;</li>
+ *     <li>chunk timestamps and durations (with error bit), both indexed by sequence number;</li>
+ *     <li>directory of posting lists: keyId, valId, data offset, number of entries, sorted by (keyId, valId);</li>
+ *     <li>posting list data.</li>
+ * </ul>
+ */
+public class PostingIndex implements Closeable {
+
+    public static final String FILE_NAME = "postings.dat";
+
+    private static final int MAGIC = 0x5a504930;
+
+    private static final int HDR_SIZE = 12;
+    private static final int DIR_ENTRY_SIZE = 20;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final MappedByteBuffer buf;
+
+    private final int nchunks;
+    private final int nlists;
+
+    private final int durOffs;
+    private final int dirOffs;
+    private final int dataOffs;
+
+
+    private PostingIndex(MappedByteBuffer buf) {
+        this.buf = buf;
+
+        if (buf.getInt(0) != MAGIC) {
+            throw new ZicoException("Invalid posting index file.");
+        }
+
+        nchunks = buf.getInt(4);
+        nlists = buf.getInt(8);
+        durOffs = HDR_SIZE + 8 * nchunks;
+        dirOffs = durOffs + 8 * nchunks;
+        dataOffs = dirOffs + DIR_ENTRY_SIZE * nlists;
+    }
+
+
+    /**
+     * Number of indexed chunks.
+     */
+    public int size() {
+        return nchunks;
+    }
+
+
+    public long tstamp(int seq) {
+        return buf.getLong(HDR_SIZE + 8 * seq);
+    }
+
+
+    /**
+     * Returns chunk duration (with ERROR_BIT set for erroneous chunks).
+     */
+    public long duration(int seq) {
+        return buf.getLong(durOffs + 8 * seq);
+    }
+
+
+    /**
+     * Returns sequence number of first chunk with timestamp greater or equal than given one.
+     */
+    public int ceiling(long tstamp) {
+        int lo = 0, hi = nchunks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tstamp(mid) < tstamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+
+    /**
+     * Returns sorted sequence numbers of chunks having given string attribute.
+     */
+    public int[] get(int keyId, int valId) {
+        int lo = 0, hi = nlists - 1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = dirOffs + DIR_ENTRY_SIZE * mid;
+            int k = buf.getInt(pos), v = buf.getInt(pos + 4);
+            if (k < keyId || (k == keyId && v < valId)) {
+                lo = mid + 1;
+            } else if (k > keyId || v > valId) {
+                hi = mid - 1;
+            } else {
+                return decode(dataOffs + (int)buf.getLong(pos + 8), buf.getInt(pos + 16));
+            }
+        }
+
+        return EMPTY;
+    }
+
+
+    private int[] decode(int pos, int count) {
+        int[] rslt = new int[count];
+        int seq = -1;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf.get(pos++);
+                delta |= (b & 0x7f) << shift;
+                if (b >= 0) break;
+            }
+            seq += delta;
+            rslt[i] = seq;
+        }
+        return rslt;
+    }
+
+
+    /**
+     * Intersects two sorted posting lists. Lists of very different sizes are intersected
+     * by binary searching longer list.
+     */
+    public static int[] intersect(int[] a, int[] b) {
+        if (a.length > b.length) {
+            int[] t = a; a = b; b = t;
+        }
+
+        int[] rslt = new int[a.length];
+        int n = 0;
+
+        if (b.length > a.length * 32) {
+            int j = 0;
+            for (int x : a) {
+                int p = Arrays.binarySearch(b, j, b.length, x);
+                if (p >= 0) {
+                    rslt[n++] = x;
+                    j = p + 1;
+                } else {
+                    j = -p - 1;
+                }
+                if (j >= b.length) break;
+            }
+        } else {
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    rslt[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        return n == rslt.length ? rslt : Arrays.copyOf(rslt, n);
+    }
+
+
+    private static void writeVarInt(ByteArrayOutputStream os, int v) {
+        while ((v & ~0x7f) != 0) {
+            os.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        os.write(v);
+    }
+
+
+    /**
+     * Builds posting index from store metadata maps. Store must not be modified while index is built.
+     *
+     * @param f output file
+     * @param tstamps tstamp -> duration+err map
+     * @param sattrs keyId+valId+tstamp -> duration+err map
+     */
+    public static void build(File f, NavigableMap<Long,Long> tstamps,
+                             NavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs) {
+        int nchunks = tstamps.size();
+        long[] tsts = new long[nchunks];
+        long[] durs = new long[nchunks];
+
+        int n = 0;
+        for (Map.Entry<Long,Long> e : tstamps.entrySet()) {
+            tsts[n] = e.getKey();
+            durs[n] = e.getValue();
+            n++;
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(65536);
+        ByteArrayOutputStream dir = new ByteArrayOutputStream(65536);
+        DataOutputStream dos = new DataOutputStream(dir);
+
+        int nlists = 0, k = 0, v = 0, count = 0, last = -1;
+        long offs = 0;
+
+        try {
+            for (Fun.Tuple3<Integer,Integer,Long> t : sattrs.keySet()) {
+                if (count == 0 || t.a != k || t.b != v) {
+                    if (count > 0) {
+                        writeDirEntry(dos, k, v, offs, count);
+                        nlists++;
+                    }
+                    k = t.a;
+                    v = t.b;
+                    count = 0;
+                    last = -1;
+                    offs = data.size();
+                }
+                int seq = Arrays.binarySearch(tsts, t.c);
+                if (seq < 0) {
+                    throw new ZicoException("Inconsistent store metadata: no chunk at " + t.c);
+                }
+                writeVarInt(data, seq - last);
+                last = seq;
+                count++;
+            }
+
+            if (count > 0) {
+                writeDirEntry(dos, k, v, offs, count);
+                nlists++;
+            }
+        } catch (IOException e) {
+            throw new ZicoException("Cannot build posting index: " + f, e);
+        }
+
+        if ((long)HDR_SIZE + 16L * nchunks + dir.size() + data.size() > Integer.MAX_VALUE) {
+            throw new ZicoException("Posting index too big: " + f);
+        }
+
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(nchunks);
+            os.writeInt(nlists);
+            for (long l : tsts) {
+                os.writeLong(l);
+            }
+            for (long l : durs) {
+                os.writeLong(l);
+            }
+            dir.writeTo(os);
+            data.writeTo(os);
+        } catch (IOException e) {
+            throw new ZicoException("Cannot write posting index: " + f, e);
+        }
+        if (!tmp.renameTo(f)) {
+            throw new ZicoException("Cannot rename " + tmp + " to " + f);
+        }
+    }
+
+
+    private static void writeDirEntry(DataOutputStream os, int k, int v, long offs, int count) throws IOException {
+        os.writeInt(k);
+        os.writeInt(v);
+        os.writeLong(offs);
+        os.writeInt(count);
+    }
+
+
+    public static PostingIndex open(File f) {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            return new PostingIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } catch (IOException e) {
+            throw new ZicoException("Cannot open posting index: " + f, e);
+        }
+    }
+
+
+    /**
+     * Mapped buffer is not unmapped explicitly, as searches might still be reading it. It is unmapped by GC.
+     */
+    @Override
+    public void close() {
+    }
+}
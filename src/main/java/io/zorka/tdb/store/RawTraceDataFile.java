@@ -17,20 +17,20 @@
 package io.zorka.tdb.store;
 
 import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.util.BitUtils;
 import io.zorka.tdb.util.CborBufReader;
-import io.zorka.tdb.util.lz4.LZ4Compressor;
-import io.zorka.tdb.util.lz4.LZ4Decompressor;
-import io.zorka.tdb.util.lz4.LZ4HCJavaSafeCompressor;
-import io.zorka.tdb.util.lz4.LZ4JavaSafeDecompressor;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.zip.CRC32;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -40,6 +40,9 @@ public class RawTraceDataFile implements Closeable {
     public static final int HDR_MAGIC = 0x5a545330;
     public static final int CHK_MAGIC = 0x5a434830;
 
+    /** Chunk record header: magic, compressed length, uncompressed length, checksum. */
+    public static final int CHK_HDR_SIZE = 16;
+
 
     public static final int NO_COMPRESSION   = 0x00000000;
     public static final int ZLIB_COMPRESSION = 0x00000001;
@@ -51,11 +54,29 @@ public class RawTraceDataFile implements Closeable {
 
     private final RandomAccessFile raf;
 
+    /** All reads and writes are positional, so no locking is needed when accessing the channel. */
+    private final FileChannel channel;
+
+    /** End of file (including space reserved by appends that are still in progress). */
+    private final AtomicLong fileEnd;
+
+    /** Segments of mapped file (only in read only mode) */
+    private volatile MappedByteBuffer[] segments;
+
+    /** Length of mapped part of the file. */
+    private volatile long mappedLength;
+
+    public static final long MMAP_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
     private File file;
 
     private int flags = NO_COMPRESSION;
 
-    private byte[] buffer;
+    /** Pool of codec contexts, so that zlib streams and scratch buffers are reused. */
+    private final BlockingQueue<ChunkCodec> codecs =
+        new ArrayBlockingQueue<>(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private volatile boolean closed;
 
 
     public RawTraceDataFile(File file, boolean rw) {
@@ -69,6 +90,8 @@ public class RawTraceDataFile implements Closeable {
         try {
             raf = new RandomAccessFile(file, rw ? "rw" : "r");
             readHeaders(flags);
+            channel = raf.getChannel();
+            fileEnd = new AtomicLong(raf.length());
         } catch (IOException e) {
             throw new ZicoException("Cannot open trace data file " + file, e);
         }
@@ -92,139 +115,245 @@ public class RawTraceDataFile implements Closeable {
 
 
     public CborBufReader read(long pos) {
+        return read(pos, false);
+    }
+
+
+    /**
+     * Reads and decompresses chunk at given position.
+     *
+     * @param pos chunk position
+     * @param reuse if true, thread local buffer is used for uncompressed data, so returned reader
+     *              is valid only until next read with reuse flag performed by the same thread
+     */
+    public CborBufReader read(long pos, boolean reuse) {
+        ChunkCodec codec = acquire();
         try {
-            int csize, lsize;
-            long cksum;
-            byte[] cbuf, lbuf;
-            synchronized (raf) {
-                raf.seek(pos);  // TODO synchronize only file access, not whole method
-                if (raf.readInt() != CHK_MAGIC) {
-                    throw new IOException("Invalid trace header at offset " + pos + " of " + file);
+            MappedByteBuffer[] segs = segments;
+            if (segs != null && pos < mappedLength) {
+                MappedByteBuffer seg = segs[(int)(pos / MMAP_SEGMENT_SIZE)];
+                int soffs = (int)(pos % MMAP_SEGMENT_SIZE);
+                if (soffs + CHK_HDR_SIZE <= seg.limit()
+                    && soffs + CHK_HDR_SIZE + seg.getInt(soffs + 4) <= seg.limit()) {
+                    return readMapped(codec, seg, soffs, pos, reuse);
                 }
+            }
 
-                csize = raf.readInt();
-                lsize = raf.readInt();
-                cksum = raf.readInt() & 0xFFFFFFFFL;
-                cbuf = new byte[csize];    // TODO make cbuf GC-free
+            ByteBuffer hdr = codec.header();
+            readFully(hdr, pos);
+            hdr.flip();
 
-                raf.read(cbuf);
+            if (hdr.getInt() != CHK_MAGIC) {
+                throw new IOException("Invalid trace header at offset " + pos + " of " + file);
             }
 
-            if (0 != (flags & CRC32_CHECKSUM)) {
-                CRC32 crc = new CRC32();
-                crc.update(cbuf);
+            int csize = hdr.getInt();
+            int lsize = hdr.getInt();
+            long cksum = hdr.getInt() & 0xFFFFFFFFL;
+
+            readFully(codec.byteBuffer(0, csize), pos + CHK_HDR_SIZE);
+
+            return decompress(codec, codec.buffer(csize), csize, lsize, cksum, pos, reuse);
+        } catch (IOException e) {
+            throw new ZicoException("Error reading trace chunk: " + e.getMessage(), e);
+        } finally {
+            release(codec);
+        }
+    }
 
-                if (crc.getValue() != cksum) {
+
+    private CborBufReader readMapped(ChunkCodec codec, MappedByteBuffer seg, int soffs, long pos, boolean reuse)
+        throws IOException {
+        if (seg.getInt(soffs) != CHK_MAGIC) {
+            throw new IOException("Invalid trace header at offset " + pos + " of " + file);
+        }
+
+        int csize = seg.getInt(soffs + 4);
+        int lsize = seg.getInt(soffs + 8);
+        long cksum = seg.getInt(soffs + 12) & 0xFFFFFFFFL;
+        int coffs = soffs + CHK_HDR_SIZE;
+
+        if ((flags & COMPRESSION_MASK) == NO_COMPRESSION) {
+            // Uncompressed data is read directly from mapped region
+            if (0 != (flags & CRC32_CHECKSUM)) {
+                ByteBuffer b = seg.duplicate();
+                b.position(coffs);
+                b.limit(coffs + csize);
+                if (codec.checksum(b) != cksum) {
                     throw new ZicoException("Checksum error for chunk at position " + pos + " of " + file);
                 }
             }
+            return new CborBufReader(seg, BitUtils.addr(seg) + coffs, csize);
+        }
 
+        // Inflater and LZ4 decompressor need heap arrays as input
+        byte[] cbuf = codec.buffer(csize);
+        BitUtils.UNSAFE.copyMemory(null, BitUtils.addr(seg) + coffs, cbuf, BitUtils.BYTE_ARRAY_OFFS, csize);
+
+        return decompress(codec, cbuf, csize, lsize, cksum, pos, reuse);
+    }
+
+
+    private CborBufReader decompress(ChunkCodec codec, byte[] cbuf, int csize, int lsize, long cksum,
+                                     long pos, boolean reuse) throws IOException {
+
+        if (0 != (flags & CRC32_CHECKSUM) && codec.checksum(cbuf, 0, csize) != cksum) {
+            throw new ZicoException("Checksum error for chunk at position " + pos + " of " + file);
+        }
+
+        if ((flags & COMPRESSION_MASK) == NO_COMPRESSION) {
+            lsize = csize;
+        }
+
+        byte[] lbuf = reuse ? buffer(lsize) : new byte[lsize];
+        codec.decompress(cbuf, 0, csize, lbuf, lsize);
+
+        return new CborBufReader(lbuf, 0, lsize);
+    }
 
-            switch (flags & COMPRESSION_MASK) {
-                case NO_COMPRESSION: {
-                    lbuf = cbuf;
-                    break;
-                }
-                case ZLIB_COMPRESSION: {
-                    lbuf = new byte[lsize];
-                    Inflater inflater = new Inflater(true);
-                    inflater.setInput(cbuf, 0, cbuf.length);
-                    try {
-                        if (inflater.inflate(lbuf) != lbuf.length) {
-                            throw new IOException("Invalid length of uncompressed data.");
-                        }
-                    } catch (DataFormatException e) {
-                        throw new IOException("Malformed compressed chunk data at position " + pos + " of " + file, e);
-                    }
-                    break;
-                }
-                case LZ4_COMPRESSION: {
-                    lbuf = new byte[lsize];
-                    LZ4Decompressor dec = LZ4JavaSafeDecompressor.INSTANCE;
-                    if (cbuf.length != dec.decompress(cbuf, 0, lbuf, 0, lbuf.length)) {
-                        throw new ZicoException("Malformed compressed chunk data at position " + pos + " of " + file);
-                    }
-                    break;
-                }
-                default:
-                    throw new IOException("Invalid compression algorithm: " + (flags & COMPRESSION_MASK));
-            }
 
-            return new CborBufReader(lbuf);
+    /** Thread local buffer for uncompressed data. */
+    private static final ThreadLocal<byte[]> LBUF = new ThreadLocal<>();
 
+    private static byte[] buffer(int size) {
+        byte[] buf = LBUF.get();
+        if (buf == null || buf.length < size) {
+            buf = new byte[Math.max(size, 65536)];
+            LBUF.set(buf);
+        }
+        return buf;
+    }
+
+
+    private ChunkCodec acquire() {
+        ChunkCodec codec = codecs.poll();
+        return codec != null ? codec : new ChunkCodec(flags);
+    }
+
+
+    private void release(ChunkCodec codec) {
+        if (closed || !codecs.offer(codec)) {
+            codec.end();
+        }
+    }
+
+
+    /**
+     * Maps data file into memory. Chunks written so far will be read directly from mapped memory.
+     * This should be used only for read only (archived) files as chunks appended afterwards will
+     * be read via standard (slower) path.
+     */
+    public synchronized void mmap() {
+        if (segments != null) return;
+
+        try {
+            long len = fileEnd.get();
+            MappedByteBuffer[] segs = new MappedByteBuffer[(int)((len + MMAP_SEGMENT_SIZE - 1) / MMAP_SEGMENT_SIZE)];
+            for (int i = 0; i < segs.length; i++) {
+                long offs = i * MMAP_SEGMENT_SIZE;
+                segs[i] = channel.map(FileChannel.MapMode.READ_ONLY, offs, Math.min(MMAP_SEGMENT_SIZE, len - offs));
+            }
+            mappedLength = len;
+            segments = segs;
         } catch (IOException e) {
-            throw new ZicoException("Error reading trace chunk: " + e.getMessage(), e);
+            throw new ZicoException("Cannot map trace data file " + file, e);
         }
     }
 
 
+    public boolean isMapped() {
+        return segments != null;
+    }
+
+
     public long write(byte[] lbuf) {
         return write(lbuf, 0, lbuf.length);
     }
 
 
     public long write(byte[] lbuf, int loffs, int llen)  {
+        ChunkCodec codec = acquire();
+        try {
+            return append(codec.byteBuffer(0, codec.compress(lbuf, loffs, llen)));
+        } finally {
+            release(codec);
+        }
+    }
 
-        byte[] cbuf = new byte[llen + 1024];
-        int clen = 0, chksum = 0;
 
-        switch (flags & COMPRESSION_MASK) {
-            case NO_COMPRESSION: {
-                System.arraycopy(lbuf, loffs, cbuf, 0, llen);
-                clen = llen;
-                break;
-            }
-            case ZLIB_COMPRESSION: {
-                Deflater deflater = new Deflater(6, true);
-                deflater.setInput(lbuf, loffs, llen);
-                clen = deflater.deflate(cbuf, 0, cbuf.length, Deflater.FULL_FLUSH);
-                deflater.finish();
-                break;
-            }
-            case LZ4_COMPRESSION: {
-                LZ4Compressor compressor = LZ4HCJavaSafeCompressor.INSTANCE;
-                clen = compressor.compress(lbuf, loffs, llen, cbuf, 0, cbuf.length);
-                break;
-            }
-            default:
-                throw new ZicoException("Invalid compression algorithm: " + (flags & COMPRESSION_MASK));
+    /**
+     * Compresses chunk data and prepares complete chunk record (header + compressed data)
+     * that can be later appended to data file. This method does not touch the file itself,
+     * so it can be safely called from multiple threads.
+     */
+    public ByteBuffer compress(byte[] lbuf, int loffs, int llen) {
+        ChunkCodec codec = acquire();
+        try {
+            int len = codec.compress(lbuf, loffs, llen);
+            return ByteBuffer.wrap(Arrays.copyOf(codec.buffer(len), len));
+        } finally {
+            release(codec);
         }
+    }
 
-        if (0 != (flags & CRC32_CHECKSUM)) {
-            CRC32 crc = new CRC32();
-            crc.update(cbuf, 0, clen);
-            chksum = (int)crc.getValue();
-        }
 
+    /**
+     * Appends chunk record prepared by compress() method at the end of data file.
+     *
+     * @return position of appended chunk record
+     */
+    public long append(ByteBuffer blk) {
+        // Only offset reservation is serialized, actual writes can be performed concurrently
+        long pos = fileEnd.getAndAdd(blk.remaining());
         try {
-            synchronized (raf) {
-                long pos = raf.length();
-                this.raf.seek(pos);
-                raf.writeInt(CHK_MAGIC);
-                raf.writeInt(clen);
-                raf.writeInt(llen);
-                raf.writeInt(chksum);
-                raf.write(cbuf, 0, clen);
-                return pos;
+            for (long p = pos; blk.hasRemaining(); ) {
+                p += channel.write(blk, p);
             }
+            return pos;
         } catch (IOException e) {
             throw new ZicoException("I/O exception when writing block ");
         }
     }
 
 
-    public long length() {
-        try {
-            synchronized (raf) {
-                return raf.length();
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        for (long p = pos; buf.hasRemaining(); ) {
+            int n = channel.read(buf, p);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at position " + p + " of " + file);
             }
+            p += n;
+        }
+    }
+
+
+    /**
+     * Forces all data written so far to be written to disk.
+     */
+    public void sync() {
+        try {
+            raf.getChannel().force(false);
         } catch (IOException e) {
-            throw new ZicoException("I/O error", e);
+            throw new ZicoException("Cannot sync trace data file " + file, e);
         }
     }
 
+
+    public long length() {
+        return fileEnd.get();
+    }
+
+    /**
+     * Closes data file. Mapped segments are not unmapped here: readers returned by read() may still
+     * point into them (and keep them reachable), so segments are unmapped by GC when no longer used.
+     */
     @Override
     public void close() throws IOException {
+        segments = null;
+        closed = true;
+        for (ChunkCodec codec = codecs.poll(); codec != null; codec = codecs.poll()) {
+            codec.end();
+        }
         raf.close();
     }
 }
@@ -26,7 +26,10 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -52,6 +55,21 @@ public class RotatingTraceStore implements TraceStore {
 
     private Map<String,TraceDataIndexer> indexerCache;
 
+    private TraceChunkCache chunkCache;
+
+    private TraceQueryCache queryCache;
+
+    private ForkJoinPool searchPool;
+
+    /** Pool for statistics aggregation (used when parallel search is disabled). */
+    private ForkJoinPool statsPool;
+
+    private boolean locatorEnabled;
+
+    private volatile TraceLocator locator;
+
+    private volatile MaintenanceScheduler scheduler;
+
     public RotatingTraceStore(File baseDir, Properties props, Map<String,TraceDataIndexer> indexerCache) {
         this.baseDir = baseDir;
 
@@ -63,6 +81,24 @@ public class RotatingTraceStore implements TraceStore {
 
         this.indexerCache = indexerCache;
 
+        int chunkCacheSize = Integer.parseInt(props.getProperty(CHUNK_CACHE_SIZE, "0"));
+        if (chunkCacheSize > 0) {
+            this.chunkCache = new TraceChunkCache(chunkCacheSize * CompositeIndex.MB,
+                "true".equalsIgnoreCase(props.getProperty(CHUNK_CACHE_OFFHEAP, "false")));
+        }
+
+        int queryCacheSize = Integer.parseInt(props.getProperty(QUERY_CACHE_SIZE, "0"));
+        if (queryCacheSize > 0) {
+            this.queryCache = new TraceQueryCache(queryCacheSize * CompositeIndex.MB);
+        }
+
+        this.locatorEnabled = "true".equalsIgnoreCase(props.getProperty(TRACE_LOCATOR, "false"));
+
+        if ("true".equalsIgnoreCase(props.getProperty(SEARCH_PARALLEL, "false"))) {
+            this.searchPool = new ForkJoinPool(Integer.parseInt(props.getProperty(SEARCH_PARALLEL_THREADS,
+                "" + Runtime.getRuntime().availableProcessors())));
+        }
+
         if (!baseDir.exists() || !baseDir.isDirectory()) {
             throw new ZicoException("Path " + baseDir + " does not exist or is not a directory.");
         }
@@ -94,6 +130,9 @@ public class RotatingTraceStore implements TraceStore {
                 if (RE_SDIR.matcher(s).matches()) {
                     ZorkaUtil.rmrf(new File(baseDir, s));
                 }
+                if (s.startsWith(TraceLocator.FILE_NAME)) {
+                    ZorkaUtil.rmrf(new File(baseDir, s));
+                }
             }
         }
     }
@@ -128,15 +167,49 @@ public class RotatingTraceStore implements TraceStore {
         List<SimpleTraceStore> stores = new ArrayList<>(sdirs.size()+1);
 
         for (File af : sdirs) {
-            stores.add(new SimpleTraceStore(af, props, indexerCache));
+            SimpleTraceStore s = new SimpleTraceStore(af, props, indexerCache);
+            s.setChunkCache(chunkCache);
+            s.setQueryCache(queryCache);
+            stores.add(s);
         }
 
         RotatingTraceStoreState ts = RotatingTraceStoreState.init(stores);
         ts.getCurrent().open();
 
+        if (locatorEnabled) {
+            locator = TraceLocator.open(new File(baseDir, TraceLocator.FILE_NAME), ts.getArchived());
+        }
+
         synchronized (this) {
             this.state = ts;
         }
+
+        if ("true".equalsIgnoreCase(props.getProperty(MAINT_SCHEDULER, "false"))) {
+            scheduler = new MaintenanceScheduler(this::getMaintainedStores, this::getIngestBacklog,
+                Integer.parseInt(props.getProperty(MAINT_THREADS, "1")),
+                Long.parseLong(props.getProperty(MAINT_INTERVAL, "5000")),
+                Long.parseLong(props.getProperty(MAINT_IO_RATE, "0")) * CompositeIndex.MB,
+                Long.parseLong(props.getProperty(MAINT_PAUSE_BACKLOG, "16")),
+                Long.parseLong(props.getProperty(MAINT_MAX_PAUSE, "30000")));
+        }
+    }
+
+
+    private List<SimpleTraceStore> getMaintainedStores() {
+        RotatingTraceStoreState ts = state;
+        List<SimpleTraceStore> stores = new ArrayList<>(ts.getArchived().size() + 1);
+        if (ts.getCurrent() != null) stores.add(ts.getCurrent());
+        stores.addAll(ts.getArchived());
+        return stores;
+    }
+
+
+    /**
+     * Returns number of chunks submitted to current store but not committed yet.
+     */
+    public long getIngestBacklog() {
+        SimpleTraceStore s = state.getCurrent();
+        return s != null ? s.getIngestBacklog() : 0;
     }
 
 
@@ -169,16 +242,73 @@ public class RotatingTraceStore implements TraceStore {
     }
 
 
+    /**
+     * Retrieves top part of trace (span) call tree. Subtrees left out can be retrieved using expand().
+     */
+    public TraceRecord retrieveLazy(Tid t, LazyTraceDataRetriever rtr) {
+        List<ChunkMetadata> chunks = getChunks(t);
+        return chunks.isEmpty() ? null : retrieveLazy(chunks, 0, chunks.get(0).getStartOffs(), rtr);
+    }
+
+
+    /**
+     * Retrieves subtree of record at given chunk and position (as returned in TraceRecord handle).
+     * Decoding starts right at record position, so preceding part of trace is not parsed again.
+     */
+    public TraceRecord expand(Tid t, int chunkNum, int pos, LazyTraceDataRetriever rtr) {
+        List<ChunkMetadata> chunks = getChunks(t);
+        for (int i = 0; i < chunks.size(); i++) {
+            if (chunks.get(i).getChunkNum() == chunkNum) {
+                return retrieveLazy(chunks, i, pos, rtr);
+            }
+        }
+        return null;
+    }
+
+
+    private TraceRecord retrieveLazy(List<ChunkMetadata> chunks, int idx, int pos, LazyTraceDataRetriever rtr) {
+        rtr.clear();
+
+        for (int i = idx; i < chunks.size() && !rtr.isDone(); i++) {
+            ChunkMetadata c = chunks.get(i);
+            rtr.setChunkNum(c.getChunkNum());
+            c.getStore().retrieveChunk(c, i == idx ? pos : -1, rtr);
+        }
+
+        rtr.commit();
+        return rtr.getResult();
+    }
+
+
     public List<ChunkMetadata> getChunks(Tid t) {
         checkOpen();
 
         RotatingTraceStoreState st = state;
 
         List<ChunkMetadata> chunks = new ArrayList<>();
+
+        TraceLocator tl = locator;
+        if (tl != null) {
+            if (st.getCurrent().getSummary().mayContain(t)) {
+                st.getCurrent().getChunks(t, chunks);
+            }
+            for (int storeId : tl.find(t.t1, t.t2)) {
+                SimpleTraceStore s = st.get(storeId);
+                if (s != null && s != st.getCurrent()) s.getChunks(t, chunks);
+            }
+            // Store that is just being rotated might not be in locator yet
+            for (SimpleTraceStore s : st.getArchived()) {
+                if (!tl.covers((int)s.getStoreId()) && s.getSummary().mayContain(t)) s.getChunks(t, chunks);
+            }
+            chunks.sort(Comparator.comparingInt(ChunkMetadata::getChunkNum));
+            return chunks;
+        }
+
         int count = st.getCurrent().getChunks(t,chunks);
 
         for (int i = state.getArchived().size()-1; i >= 0; i--) {
-            int cnt = state.getArchived().get(i).getChunks(t,chunks);
+            SimpleTraceStore s = state.getArchived().get(i);
+            int cnt = s.getSummary().mayContain(t) ? s.getChunks(t,chunks) : 0;
             if (count != 0 && cnt == 0) break;
             count += cnt;
         }
@@ -271,7 +401,7 @@ public class RotatingTraceStore implements TraceStore {
 
 
     @Override
-    public void handleTraceData(String sessionUUID, byte[] data, ChunkMetadata md) {
+    public void handleTraceData(String sessionUUID, ByteBuffer data, ChunkMetadata md) {
 
         if (log.isDebugEnabled()) {
             log.debug("Got trace data from for session " + sessionUUID);
@@ -287,7 +417,7 @@ public class RotatingTraceStore implements TraceStore {
 
 
     @Override
-    public void handleAgentData(String sessionId, boolean reset, byte[] data) {
+    public void handleAgentData(String sessionId, boolean reset, ByteBuffer data) {
 
         if (log.isDebugEnabled()) {
             log.debug("Got agent state for session " + sessionId + " (reset=" + reset + ")");
@@ -341,12 +471,20 @@ public class RotatingTraceStore implements TraceStore {
         } // TODO else what ?
 
         SimpleTraceStore current = new SimpleTraceStore(root, props, indexerCache);
+        current.setChunkCache(chunkCache);
+        current.setQueryCache(queryCache);
 
         current.open();
 
         state = RotatingTraceStoreState.extend(state, current);
-        if (ts.getCurrent() != null)
+        if (ts.getCurrent() != null) {
             ts.getCurrent().archive();
+            TraceLocator tl = locator;
+            if (tl != null) {
+                tl.addStore(ts.getCurrent());
+                tl.save();
+            }
+        }
     }
 
 
@@ -354,22 +492,59 @@ public class RotatingTraceStore implements TraceStore {
     public void close() throws IOException {
         log.info("Closing rotating trace store: " + baseDir);
 
+        MaintenanceScheduler ms = scheduler;
+        if (ms != null) {
+            scheduler = null;
+            ms.close();
+        }
+
         RotatingTraceStoreState ts = state;
 
         synchronized (this) {
             state = EMPTY;
+            if (statsPool != null) {
+                statsPool.shutdownNow();
+                statsPool = null;
+            }
         }
 
         if (ts.getCurrent() != null) ts.getCurrent().close();
 
         for (SimpleTraceStore s : ts.getArchived()) s.close();
 
+        if (chunkCache != null) chunkCache.clear();
+
+        if (queryCache != null) queryCache.clear();
+    }
+
+    /**
+     * Waits until all trace data submitted so far is written and indexed (in pipelined ingest mode).
+     */
+    public void flush() {
+        RotatingTraceStoreState ts = state;
+        if (ts.getCurrent() != null) ts.getCurrent().flush();
     }
 
     public Map<String,TraceDataIndexer> getIndexerCache() {
         return indexerCache;
     }
 
+    public MaintenanceScheduler getMaintenanceScheduler() {
+        return scheduler;
+    }
+
+    public TraceLocator getLocator() {
+        return locator;
+    }
+
+    public TraceChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    public TraceQueryCache getQueryCache() {
+        return queryCache;
+    }
+
     public SimpleTraceStore getCurrent() {
         return state.getCurrent();
     }
@@ -381,17 +556,186 @@ public class RotatingTraceStore implements TraceStore {
 
         RotatingTraceStoreState state = this.state;
 
+        if (query.hasOrderByDuration()) {
+            return searchTopDuration(state, query, limit, offset);
+        }
+
+        if (searchPool != null && state.getArchived() != null && !state.getArchived().isEmpty()) {
+            return searchParallel(state, query, limit, offset);
+        }
+
         new SimpleTraceStoreSearchContext(state.getCurrent(), query).search(rs);
 
         if (state.getArchived() != null && rs.needMore()) {
             for (int i = state.getArchived().size() - 1; i >= 0 && rs.needMore(); i--) {
-                new SimpleTraceStoreSearchContext(state.getArchived().get(i), query).search(rs);
+                SimpleTraceStore s = state.getArchived().get(i);
+                if (s.getSummary().mayMatch(query)) {
+                    new SimpleTraceStoreSearchContext(s, query).search(rs);
+                }
+            }
+        }
+
+        return rs;
+    }
+
+    /**
+     * Returns longest matching traces (longest first). Single bounded collector is passed through all
+     * stores, so stores with maximum duration below collected ones are skipped entirely.
+     */
+    private TraceSearchResultSet searchTopDuration(RotatingTraceStoreState state, TraceSearchQuery query,
+                                                   int limit, int offset) {
+        TopDurationCollector c = new TopDurationCollector(limit + offset, query.hasSpansOnly());
+
+        List<SimpleTraceStore> stores = new ArrayList<>(state.getArchived().size() + 1);
+        stores.add(state.getCurrent());
+        for (int i = state.getArchived().size() - 1; i >= 0; i--) {
+            stores.add(state.getArchived().get(i));
+        }
+
+        for (SimpleTraceStore s : stores) {
+            TraceStoreSummary ts = s.getSummary();
+            if (ts.mayMatch(query) && c.accepts(ts.getMaxDuration())) {
+                new SimpleTraceStoreSearchContext(s, query).searchTopDuration(c);
             }
         }
 
+        TraceSearchResultSet rs = new TraceSearchResultSet(offset, limit, query.hasSpansOnly());
+        for (ChunkMetadata cm : c.getResults()) {
+            rs.add(cm);
+        }
+
         return rs;
     }
 
+    @Override
+    public TraceSearchCursor searchCursor(TraceSearchQuery query, TraceSearchToken token) {
+        checkOpen();
+
+        RotatingTraceStoreState state = this.state;
+        List<SimpleTraceStore> stores = new ArrayList<>(state.getArchived().size() + 1);
+        stores.add(state.getCurrent());
+        for (int i = state.getArchived().size() - 1; i >= 0; i--) {
+            stores.add(state.getArchived().get(i));
+        }
+
+        return new TraceSearchCursor(stores, query, token);
+    }
+
+    /**
+     * Starts computing per method statistics over all traces matching query. Decoding runs on parallel
+     * search pool (if enabled) or on dedicated pool of the same size.
+     */
+    public TraceStatsAggregator aggregateStats(TraceSearchQuery query) {
+        checkOpen();
+
+        RotatingTraceStoreState state = this.state;
+        List<SimpleTraceStore> stores = new ArrayList<>(state.getArchived().size() + 1);
+        stores.add(state.getCurrent());
+        for (int i = state.getArchived().size() - 1; i >= 0; i--) {
+            stores.add(state.getArchived().get(i));
+        }
+
+        return new TraceStatsAggregator(this, stores, query, getStatsPool()).start();
+    }
+
+    private synchronized ForkJoinPool getStatsPool() {
+        if (searchPool != null) return searchPool;
+        if (statsPool == null) {
+            statsPool = new ForkJoinPool(Integer.parseInt(props.getProperty(SEARCH_PARALLEL_THREADS,
+                "" + Runtime.getRuntime().availableProcessors())));
+        }
+        return statsPool;
+    }
+
+    /**
+     * Searches all stores in parallel. Each store collects up to limit+offset results on its own,
+     * then results are merged in timestamp order (newest first). Searches in older stores are
+     * cancelled as soon as they cannot contribute to final result.
+     */
+    private TraceSearchResultSet searchParallel(RotatingTraceStoreState state, TraceSearchQuery query,
+                                                int limit, int offset) {
+        List<SimpleTraceStore> stores = new ArrayList<>(state.getArchived().size() + 1);
+        stores.add(state.getCurrent());
+        for (int i = state.getArchived().size() - 1; i >= 0; i--) {
+            SimpleTraceStore s = state.getArchived().get(i);
+            if (s.getSummary().mayMatch(query)) stores.add(s);
+        }
+
+        List<TraceSearchResultSet> partials = new ArrayList<>(stores.size());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(stores.size());
+
+        for (SimpleTraceStore s : stores) {
+            TraceSearchResultSet prs = new TraceSearchResultSet(0, limit + offset, query.hasSpansOnly());
+            partials.add(prs);
+            tasks.add(searchPool.submit(() -> new SimpleTraceStoreSearchContext(s, query).search(prs)));
+        }
+
+        List<ChunkMetadata> found = new ArrayList<>();
+        Comparator<ChunkMetadata> order = Comparator.comparingLong(ChunkMetadata::getTstamp).reversed();
+
+        for (int i = 0; i < stores.size(); i++) {
+            tasks.get(i).join();
+            found.addAll(partials.get(i).getResults());
+
+            if (i < stores.size() - 1) {
+                found.sort(order);
+                Long cutoff = cutoff(found, query, limit + offset);
+                if (cutoff != null && maxTstop(stores, i + 1) <= cutoff) {
+                    for (int j = i + 1; j < stores.size(); j++) {
+                        partials.get(j).cancel();
+                        tasks.get(j).cancel(false);
+                    }
+                    break;
+                }
+            }
+        }
+
+        found.sort(order);
+
+        TraceSearchResultSet rs = new TraceSearchResultSet(offset, limit, query.hasSpansOnly());
+        for (int i = 0; i < found.size() && rs.needMore(); i++) {
+            rs.add(found.get(i));
+        }
+
+        if (rs.needMore()) {
+            // Some traces span several stores, so per store limits might not be enough
+            for (TraceSearchResultSet prs : partials) {
+                if (!prs.isCancelled() && !prs.needMore()) {
+                    rs = new TraceSearchResultSet(offset, limit, query.hasSpansOnly());
+                    for (int i = 0; i < stores.size() && rs.needMore(); i++) {
+                        new SimpleTraceStoreSearchContext(stores.get(i), query).search(rs);
+                    }
+                    break;
+                }
+            }
+        }
+
+        return rs;
+    }
+
+
+    /**
+     * Returns timestamp of last result needed to fill result set, or null if there are not enough results.
+     */
+    private static Long cutoff(List<ChunkMetadata> found, TraceSearchQuery query, int n) {
+        TraceSearchResultSet rs = new TraceSearchResultSet(0, n, query.hasSpansOnly());
+        for (ChunkMetadata cm : found) {
+            rs.add(cm);
+            if (!rs.needMore()) return cm.getTstamp();
+        }
+        return null;
+    }
+
+
+    private static long maxTstop(List<SimpleTraceStore> stores, int from) {
+        long tst = Long.MIN_VALUE;
+        for (int i = from; i < stores.size(); i++) {
+            tst = Math.max(tst, stores.get(i).getSummary().getMaxTstamp());
+        }
+        return tst;
+    }
+
+
     public List<ChunkMetadata> search(TraceSearchQuery query, int limit, int offset) {
         TraceSearchResultSet rslt = searchChunks(query, limit, offset);
         List<ChunkMetadata> lst = new ArrayList<>(rslt.size());
@@ -16,6 +16,7 @@
 
 package io.zorka.tdb.store;
 
+import com.jitlogic.zorka.common.util.ZorkaUtil;
 import io.zorka.tdb.ZicoException;
 import io.zorka.tdb.text.StructuredTextIndex;
 import io.zorka.tdb.text.CachingTextIndex;
@@ -25,18 +26,21 @@ import io.zorka.tdb.util.BitmapSet;
 import io.zorka.tdb.util.CborBufReader;
 
 import io.zorka.tdb.util.ZicoUtil;
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
 import org.mapdb.Fun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.zorka.tdb.store.ChunkMetadata.BOOL_TYPE;
+import static io.zorka.tdb.store.ConfigProps.*;
 import static io.zorka.tdb.store.ChunkMetadata.INT_TYPE;
 
 /**
@@ -56,45 +60,69 @@ public class SimpleTraceStore implements TraceStore {
     private volatile StructuredTextIndex itext;
     private volatile CompositeIndex ctext;
     private volatile RawTraceDataFile fdata;
-    private volatile DB db;
+    private volatile TraceIngestPipeline pipeline;
+    private volatile ChunkMetadataGroupCommitter committer;
+    private volatile ChunkMetadataIndex meta;
+
+    /**
+     * Mutable index replaced by compacted one. Searches, cursors and aggregations started before compaction
+     * may still read it, so it is closed (and its files removed) only when store is closed.
+     */
+    private ChunkMetadataIndex retiredMeta;
 
     public static final long ERROR_BIT = 0x8000000000000000L;
 
     // Tstamp in nanoseconds, in case of conflicts it is incremented to resolve conflict
 
-    /** tstamp -> serialized chunk. */
-    private ConcurrentNavigableMap<Long,byte[]> chunks;
-
     /** Main index: tid1+tid2+sid+chnum -> tstamp */
     private ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> tids;
 
     /** Sorted by duration timestamp: tstamp -> duration+err */
     private ConcurrentNavigableMap<Long,Long> tstamps;
 
+    /** Duration index: duration bucket+tstamp -> duration+err (see TopDurationCollector.bucket()) */
+    private ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> durations;
+
     /** String attributes: keyId+valId+tstamp -> duration+err */
     private ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs;
 
     /** For free text search: valId+tstamp -> duration+err */
     private ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> strings;
 
-    // TODO fulltext: valId+SEQ -> keyId+duration+err
-
     /** Numeric/Boolean attributes: (type|keyID)+val+tstamp -> duration+err */
-    private ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> nattrs; // Types (2-bit): bool=1,long=2,double=3
+    private ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> nattrs;
 
     // TODO factor out trace/agent data handling code to separate class
     private final Map<String,AgentHandler> handlers = new ConcurrentHashMap<>();
 
     private volatile int iFlags = 0;
 
+    /** Number of chunks being ingested synchronously (when ingest pipeline is disabled). */
+    private final AtomicInteger ingesting = new AtomicInteger();
+
     private int sessionTimeout = 90000;
 
     private int textCacheSize = 16384;
 
     private Map<String,TraceDataIndexer> indexerCache;
 
+    private volatile TraceChunkCache chunkCache;
+
+    private volatile TraceQueryCache queryCache;
+
+    private volatile TraceStoreSummary summary;
+
+    private volatile PostingIndex postings;
+
+    private volatile DurationSkipIndex skipIndex;
+
+    private volatile boolean skipReady;
+
     private Properties props;
 
+    /** Chunk metadata is written in legacy CBOR format. */
+    private boolean legacyMeta;
+
 
     public SimpleTraceStore(File root, Properties props, Map<String,TraceDataIndexer> indexerCache) {
         this.indexerCache = indexerCache;
@@ -114,6 +142,7 @@ public class SimpleTraceStore implements TraceStore {
         }
 
         this.props = props;
+        this.legacyMeta = "true".equalsIgnoreCase(props.getProperty(META_LEGACY_FORMAT, "false"));
 
         if (!baseDir.isDirectory() && !baseDir.mkdir()) {
             throw new ZicoException("Cannot create directory " + root);
@@ -133,18 +162,16 @@ public class SimpleTraceStore implements TraceStore {
             return;
         }
 
-        db = DBMaker.newFileDB(new File(root, "meta.db"))
-                // TODO mmapEnable(), segment size etc.
-                .closeOnJvmShutdown().cacheSize(8192).make();
-
-        chunks = db.getTreeMap("chunks.map");
-        tids = db.getTreeMap("tids.map");
-        tstamps = db.getTreeMap("tstamps.map");
-        sattrs = db.getTreeMap("sattrs.map");
-        nattrs = db.getTreeMap("nattrs.map");
-        strings = db.getTreeMap("strings.map");
+        setMetadataIndex(openMetadataIndex());
 
-        if (db.getAtomicBoolean("archived.flag").get()) iFlags |= CTF_ARCHIVED;
+        if (meta.isArchived()) {
+            iFlags |= CTF_ARCHIVED;
+            if (!(meta instanceof SortedChunkMetadataIndex) && isCompactMetadata()
+                && "true".equalsIgnoreCase(props.getProperty(META_ARCHIVE_COMPACT_EXISTING, "false"))) {
+                compactMetadata();
+                closeRetiredMetadata();
+            }
+        }
 
         Properties ptext = ZicoUtil.props(); // TODO configure properties here
         CompositeIndexFileStore ftext = new CompositeIndexFileStore(root.getPath(), "text", ptext);
@@ -156,8 +183,293 @@ public class SimpleTraceStore implements TraceStore {
             itext = new StructuredTextIndex(ctext);
         }
 
+        openSummary();
+
         fdata = new RawTraceDataFile(new File(root, "traces.dat"), true,
             RawTraceDataFile.ZLIB_COMPRESSION | RawTraceDataFile.CRC32_CHECKSUM);
+
+        if (0 != (iFlags & CTF_ARCHIVED)) {
+            fdata.mmap();
+        }
+
+        if (0 == (iFlags & CTF_ARCHIVED) && "true".equalsIgnoreCase(props.getProperty(META_GROUP_COMMIT, "false"))) {
+            committer = new ChunkMetadataGroupCommitter(this,
+                Integer.parseInt(props.getProperty(META_GROUP_COMMIT_SIZE, "512")),
+                Integer.parseInt(props.getProperty(META_GROUP_COMMIT_LATENCY, "5")));
+        }
+
+        if (0 == (iFlags & CTF_ARCHIVED) && "true".equalsIgnoreCase(props.getProperty(INGEST_PIPELINE, "false"))) {
+            pipeline = new TraceIngestPipeline(this, fdata,
+                Integer.parseInt(props.getProperty(INGEST_PIPELINE_THREADS,
+                    "" + Math.max(1, Runtime.getRuntime().availableProcessors() - 2))),
+                Integer.parseInt(props.getProperty(INGEST_PIPELINE_QSIZE, "64")));
+        }
+    }
+
+
+    /**
+     * Opens chunk metadata index. Engine of existing store is determined by its files,
+     * new stores use engine set in configuration. Mutable index left after compaction is
+     * removed only after compacted index has been verified against it.
+     */
+    private ChunkMetadataIndex openMetadataIndex() {
+        if (SortedChunkMetadataIndex.exists(root)) {
+            SortedChunkMetadataIndex m = null;
+            try {
+                m = new SortedChunkMetadataIndex(root);
+                if (hasMutableMetadata()) {
+                    ChunkMetadataIndex src = openMutableMetadata();
+                    try {
+                        verifyMetadata(src, m);
+                    } finally {
+                        closeMetadata(src);
+                    }
+                    removeMutableMetadata();
+                }
+                return m;
+            } catch (ZicoException e) {
+                if (m != null) m.close();
+                if (!hasMutableMetadata()) throw e;
+                log.error("Cannot open compacted metadata of " + root + ", falling back to original index.", e);
+                removeSortedMetadata();
+            }
+        }
+        return openMutableMetadata();
+    }
+
+
+    private ChunkMetadataIndex openMutableMetadata() {
+        String engine = props.getProperty(META_ENGINE, "mapdb");
+        if (new File(root, LogChunkMetadataIndex.FILE_NAME).exists()) {
+            engine = "log";
+        } else if (new File(root, MapDbChunkMetadataIndex.FILE_NAME).exists()) {
+            engine = "mapdb";
+        }
+        switch (engine) {
+            case "mapdb":
+                return new MapDbChunkMetadataIndex(root);
+            case "log":
+                return new LogChunkMetadataIndex(root);
+            default:
+                throw new ZicoException("Invalid metadata engine: " + engine);
+        }
+    }
+
+
+    private void setMetadataIndex(ChunkMetadataIndex m) {
+        tids = m.getTids();
+        tstamps = m.getTstamps();
+        sattrs = m.getSattrs();
+        nattrs = m.getNattrs();
+        strings = m.getStrings();
+        durations = m.getDurations();
+        meta = m;
+    }
+
+
+    private boolean isCompactMetadata() {
+        return "true".equalsIgnoreCase(props.getProperty(META_ARCHIVE_COMPACT, "true"))
+            && !"true".equalsIgnoreCase(props.getProperty(META_LEGACY_FORMAT, "false"));
+    }
+
+
+    /**
+     * Rewrites metadata of archived store into immutable sorted tables and switches store to them.
+     * Store keeps original index if sorted tables cannot be written or do not match it.
+     */
+    private void compactMetadata() {
+        log.info("Compacting metadata of store " + root);
+        SortedChunkMetadataIndex m = null;
+        try {
+            SortedChunkMetadataIndex.write(root, meta);
+            m = new SortedChunkMetadataIndex(root);
+            verifyMetadata(meta, m);
+        } catch (ZicoException e) {
+            log.error("Cannot compact metadata of store " + root + ", keeping original index.", e);
+            if (m != null) m.close();
+            removeSortedMetadata();
+            return;
+        }
+        retiredMeta = meta;
+        setMetadataIndex(m);
+    }
+
+
+    /**
+     * Compares compacted index with original one entry by entry (chunk records, skip tables and all secondary indexes).
+     */
+    private static void verifyMetadata(ChunkMetadataIndex src, ChunkMetadataIndex dst) {
+        check("tstamps", src.getTstamps(), dst.getTstamps());
+        check("tids", src.getTids(), dst.getTids());
+        check("durations", src.getDurations(), dst.getDurations());
+        check("sattrs", src.getSattrs(), dst.getSattrs());
+        check("strings", src.getStrings(), dst.getStrings());
+        check("nattrs", src.getNattrs(), dst.getNattrs());
+
+        for (Long tst : src.getTstamps().keySet()) {
+            byte[] a = src.getChunk(tst), b = dst.getChunk(tst);
+            // Legacy records are re-encoded when compacted, so only their presence can be compared here
+            if (b == null || (ChunkMetadataView.isFixedLayout(a) && !Arrays.equals(a, b))) {
+                throw new ZicoException("Compacted chunk " + tst + " does not match original one.");
+            }
+        }
+
+        int[] nskips = { 0 };
+        src.forEachSkipTable((offs, st) -> {
+            if (!Arrays.equals(st, dst.getSkipTable(offs))) {
+                throw new ZicoException("Compacted skip table " + offs + " does not match original one.");
+            }
+            nskips[0]++;
+        });
+        dst.forEachSkipTable((offs, st) -> nskips[0]--);
+        if (nskips[0] != 0) {
+            throw new ZicoException("Compacted skip tables do not match original ones.");
+        }
+    }
+
+
+    private static void check(String name, NavigableMap<?,?> src, NavigableMap<?,?> dst) {
+        if (src.size() != dst.size()) {
+            throw new ZicoException("Compacted " + name + " index does not match original one.");
+        }
+        Iterator<? extends Map.Entry<?,?>> i1 = src.entrySet().iterator(), i2 = dst.entrySet().iterator();
+        while (i1.hasNext()) {
+            Map.Entry<?,?> e1 = i1.next(), e2 = i2.next();
+            if (!e1.getKey().equals(e2.getKey()) || !e1.getValue().equals(e2.getValue())) {
+                throw new ZicoException("Compacted " + name + " index does not match original one at " + e1.getKey());
+            }
+        }
+    }
+
+
+    private void closeMetadata(ChunkMetadataIndex m) {
+        try {
+            m.close();
+        } catch (IOException e) {
+            log.warn("Error closing metadata index of " + root, e);
+        }
+    }
+
+
+    private synchronized void closeRetiredMetadata() {
+        if (retiredMeta != null) {
+            closeMetadata(retiredMeta);
+            retiredMeta = null;
+            removeMutableMetadata();
+        }
+    }
+
+
+    private boolean hasMutableMetadata() {
+        return new File(root, MapDbChunkMetadataIndex.FILE_NAME).exists()
+            || new File(root, LogChunkMetadataIndex.FILE_NAME).exists();
+    }
+
+
+    private void removeSortedMetadata() {
+        ZorkaUtil.rmrf(new File(root, SortedChunkMetadataIndex.DIR_NAME));
+    }
+
+
+    /**
+     * Removes files of mutable metadata index (left after compaction).
+     */
+    private void removeMutableMetadata() {
+        File[] files = root.listFiles((d, n) -> n.startsWith(MapDbChunkMetadataIndex.FILE_NAME)
+            || n.equals(LogChunkMetadataIndex.FILE_NAME));
+        if (files != null) {
+            for (File f : files) {
+                if (!f.delete()) log.warn("Cannot remove " + f);
+            }
+        }
+    }
+
+
+    private void openSummary() {
+        File f = new File(root, TraceStoreSummary.FILE_NAME);
+        TraceStoreSummary ts = TraceStoreSummary.load(f);
+
+        if (ts == null) {
+            log.info("Building summary of store " + root);
+            ts = new TraceStoreSummary();
+            TraceStoreSummary t = ts;
+            meta.forEachChunk(b -> t.add(ChunkMetadata.deserialize(b), itext));
+            if (0 != (iFlags & CTF_ARCHIVED)) ts.save(f);
+        }
+
+        // Summary of active store is saved on close, so stale summary is never loaded after crash
+        if (0 == (iFlags & CTF_ARCHIVED) && f.exists() && !f.delete()) {
+            log.warn("Cannot remove " + f);
+        }
+
+        summary = ts;
+    }
+
+
+    /**
+     * Returns store summary. For archived stores it is loaded without opening the store
+     * (if summary file exists).
+     */
+    public TraceStoreSummary getSummary() {
+        TraceStoreSummary ts = summary;
+        if (ts == null) {
+            synchronized (this) {
+                if (summary == null && fdata == null) {
+                    summary = TraceStoreSummary.load(new File(root, TraceStoreSummary.FILE_NAME));
+                }
+                if (summary == null) open();
+                ts = summary;
+            }
+        }
+        return ts;
+    }
+
+
+    /**
+     * Returns posting index of archived store (building it if necessary) or null if store
+     * is not archived or posting lists are disabled.
+     */
+    public synchronized PostingIndex getPostings() {
+        checkOpen();
+        if (postings == null && 0 != (iFlags & CTF_ARCHIVED)
+            && "true".equalsIgnoreCase(props.getProperty(SEARCH_POSTINGS, "true"))) {
+            File f = new File(root, PostingIndex.FILE_NAME);
+            if (f.exists()) {
+                try {
+                    postings = PostingIndex.open(f);
+                } catch (ZicoException e) {
+                    log.warn("Cannot open posting index " + f + " (will be rebuilt)", e);
+                }
+            }
+            if (postings == null) {
+                log.info("Building posting index of store " + root);
+                PostingIndex.build(f, tstamps, sattrs);
+                postings = PostingIndex.open(f);
+            }
+        }
+        return postings;
+    }
+
+
+    /**
+     * Returns duration/error skip index (building it on first use) or null if it is disabled.
+     */
+    public DurationSkipIndex getSkipIndex() {
+        if (skipReady) return skipIndex;
+        if (!"true".equalsIgnoreCase(props.getProperty(SEARCH_SKIP_INDEX, "true"))) return null;
+        synchronized (this) {
+            checkOpen();
+            if (!skipReady) {
+                // Published to writers before scan, so concurrently added chunks are either seen by scan or added by writer
+                DurationSkipIndex si = new DurationSkipIndex();
+                skipIndex = si;
+                for (Map.Entry<Long,Long> e : tstamps.entrySet()) {
+                    si.add(e.getKey(), e.getValue());
+                }
+                skipReady = true;
+            }
+            return skipIndex;
+        }
     }
 
 
@@ -167,6 +479,7 @@ public class SimpleTraceStore implements TraceStore {
 
 
     public synchronized StructuredTextIndex getTextIndex() {
+        checkOpen();
         return itext;
     }
 
@@ -176,21 +489,85 @@ public class SimpleTraceStore implements TraceStore {
     }
 
 
+    public synchronized TraceIngestPipeline getIngestPipeline() {
+        return pipeline;
+    }
+
+
+    /**
+     * Waits until all trace data submitted so far is written and indexed. Returns immediately
+     * if pipelined ingest is not enabled.
+     */
+    public void flush() {
+        TraceIngestPipeline p = pipeline;
+        if (p != null) p.flush();
+        ChunkMetadataGroupCommitter c = committer;
+        if (c != null) c.flush();
+    }
+
+
+    /**
+     * Sets cache of decompressed chunks (shared between stores).
+     */
+    public void setChunkCache(TraceChunkCache chunkCache) {
+        this.chunkCache = chunkCache;
+    }
+
+
+    /**
+     * Sets cache of search results (shared between stores, used only when store is archived).
+     */
+    public void setQueryCache(TraceQueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+
+    public TraceQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+
+    public synchronized boolean isArchived() {
+        checkOpen();
+        return 0 != (iFlags & CTF_ARCHIVED);
+    }
+
+
     public synchronized Map<String,TraceDataIndexer> getIndexerCache() {
         return indexerCache;
     }
 
 
+    /** Returns (traceId1, traceId2, spanId, chunkNum) keys of all chunks in trace ID order. */
+    NavigableSet<Fun.Tuple4<Long,Long,Long,Integer>> getTraceKeys() {
+        checkOpen();
+        return tids.keySet();
+    }
+
+
     public ConcurrentNavigableMap<Long,Long> getTstamps() {
+        checkOpen();
         return tstamps;
     }
 
 
     public ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> getSattrs() {
+        checkOpen();
         return sattrs;
     }
 
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getDurations() {
+        checkOpen();
+        return durations;
+    }
+
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> getNattrs() {
+        checkOpen();
+        return nattrs;
+    }
+
     public ConcurrentNavigableMap<Fun.Tuple2<Integer, Long>, Long> getStrings() {
+        checkOpen();
         return strings;
     }
 
@@ -208,6 +585,12 @@ public class SimpleTraceStore implements TraceStore {
     }
 
 
+    @Override
+    public TraceSearchCursor searchCursor(TraceSearchQuery query, TraceSearchToken token) {
+        return new TraceSearchCursor(Collections.singletonList(this), query, token);
+    }
+
+
     private synchronized AgentHandler getHandler(String sessionId, boolean reset) {
         AgentHandler agentHandler = handlers.get(sessionId);
 
@@ -247,11 +630,26 @@ public class SimpleTraceStore implements TraceStore {
 
     <T> void retrieveChunk(long chunkId, boolean first, TraceDataRetriever<T> rtr) {
         ChunkMetadata cm = getChunkMetadata(chunkId);
+        if (cm != null) retrieveChunk(cm, first ? cm.getStartOffs() : -1, rtr);
+    }
+
+
+    /**
+     * Decodes chunk data starting at given position (or from current position if pos is negative).
+     */
+    <T> void retrieveChunk(ChunkMetadata cm, int pos, TraceDataRetriever<T> rtr) {
         if (cm != null) {
-            CborBufReader rdr = fdata.read(cm.getDataOffs());
-            if (first) rdr.position(cm.getStartOffs());
+            TraceChunkCache cache = chunkCache;
+            CborBufReader rdr = cache != null
+                ? cache.get(storeId, cm.getDataOffs(), fdata)
+                : fdata.read(cm.getDataOffs(), true);
+            if (pos >= 0) rdr.position(pos);
             rtr.setResolver(itext);
             TraceDataReader tdr = new TraceDataReader(rdr, rtr);
+            if (rtr.usesSkipTable()) {
+                byte[] st = meta.getSkipTable(cm.getDataOffs());
+                if (st != null) tdr.setSkipTable(SubtreeSkipTable.decode(st));
+            }
             rtr.setReader(tdr);
             tdr.run();
         }
@@ -259,6 +657,47 @@ public class SimpleTraceStore implements TraceStore {
 
 
     void saveChunkMetadata(ChunkMetadata cm) {
+        if (committer != null) {
+            try {
+                committer.submit(cm).join();
+            } catch (CompletionException e) {
+                throw new ZicoException("Error committing chunk metadata", e.getCause());
+            }
+        } else {
+            putChunkMetadata(cm);
+            meta.commit();
+        }
+    }
+
+
+    /**
+     * Saves chunk metadata asynchronously. Returned future is completed when metadata has been committed.
+     * If group commit is not enabled, metadata is committed immediately.
+     */
+    CompletableFuture<ChunkMetadata> submitChunkMetadata(ChunkMetadata cm) {
+        if (committer != null) {
+            return committer.submit(cm);
+        } else {
+            saveChunkMetadata(cm);
+            return CompletableFuture.completedFuture(cm);
+        }
+    }
+
+
+    /**
+     * Commits batch of chunk metadata records. Data file is synced before metadata is inserted
+     * into index, so chunks cannot be found before their data is durable.
+     */
+    void commitChunkMetadata(List<ChunkMetadata> cms) {
+        fdata.sync();
+        for (ChunkMetadata cm : cms) {
+            putChunkMetadata(cm);
+        }
+        meta.commit();
+    }
+
+
+    private void putChunkMetadata(ChunkMetadata cm) {
 
         // Ensure tstamp is unique
         long tst = cm.getTstamp();
@@ -266,28 +705,21 @@ public class SimpleTraceStore implements TraceStore {
         cm.setTstamp(tst);
 
         long dur = cm.getDuration()|(cm.hasError()?ERROR_BIT:0);
-        chunks.put(tst,ChunkMetadata.serialize(cm));
-        tids.put(Fun.t4(cm.getTraceId1(),cm.getTraceId2(),cm.getSpanId(),cm.getChunkNum()),tst);
-        tstamps.put(tst,dur);
-        if (cm.getSattrs() != null) {
-            for (Map.Entry<Integer,Integer> e : cm.getSattrs().entrySet()) {
-                sattrs.put(Fun.t3(e.getKey(),e.getValue(),tst),dur);
-                strings.put(Fun.t2(e.getValue(),tst),dur);
-            }
+        if (cm.getSkipTable() != null) {
+            meta.addSkipTable(cm.getDataOffs(), cm.getSkipTable());
+            cm.setSkipTable(null);
         }
-        if (cm.getNattrs() != null) {
-            for (Map.Entry<Integer,Long> e : cm.getNattrs().entrySet()) {
-                nattrs.put(Fun.t3(e.getKey(),e.getValue(),tst),dur);
-            }
-        }
-        db.commit();
+        meta.add(tst, dur, legacyMeta ? ChunkMetadata.serializeCbor(cm) : ChunkMetadata.serialize(cm));
+        DurationSkipIndex si = skipIndex;
+        if (si != null) si.add(tst, dur);
+        summary.add(cm, itext);
     }
 
 
     public ChunkMetadata getChunkMetadata(long tstamp) {
         if (tstamp ==-1) return null;
         checkOpen();
-        byte[] b = chunks.get(tstamp);
+        byte[] b = meta.getChunk(tstamp);
         if (b == null) return null;
         ChunkMetadata c = ChunkMetadata.deserialize(b);
         c.setStore(this);
@@ -295,6 +727,17 @@ public class SimpleTraceStore implements TraceStore {
     }
 
 
+    /**
+     * Points view at metadata of chunk with given timestamp without materializing it.
+     *
+     * @return false if there is no such chunk
+     */
+    public boolean getChunkMetadata(long tstamp, ChunkMetadataView view) {
+        checkOpen();
+        return meta.getChunk(tstamp, view);
+    }
+
+
     int getChunks(Tid t, List<ChunkMetadata> acc) {
 
         checkOpen();
@@ -377,13 +820,27 @@ public class SimpleTraceStore implements TraceStore {
 
 
     @Override
-    public void handleTraceData(String sessionUUID, byte[] data, ChunkMetadata md) {
-        getHandler(sessionUUID, false).handleTraceData(data, md);
+    public void handleTraceData(String sessionUUID, ByteBuffer data, ChunkMetadata md) {
+        ingesting.incrementAndGet();
+        try {
+            getHandler(sessionUUID, false).handleTraceData(data, md);
+        } finally {
+            ingesting.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Returns number of chunks submitted to store but not committed yet (ingest backpressure indicator).
+     */
+    public long getIngestBacklog() {
+        TraceIngestPipeline p = pipeline;
+        return p != null ? p.getPending() : ingesting.get();
     }
 
 
     @Override
-    public void handleAgentData(String sessionUUID, boolean reset, byte[] data) {
+    public void handleAgentData(String sessionUUID, boolean reset, ByteBuffer data) {
         AgentHandler handler = getHandler(sessionUUID, reset);
         handler.handleAgentData(data);
     }
@@ -392,11 +849,16 @@ public class SimpleTraceStore implements TraceStore {
     public synchronized void archive() {
         if (0 == (iFlags & CTF_ARCHIVED)) {
             checkOpen();
+            flush();
+            closeIngest();
             iFlags |= CTF_ARCHIVED;
-            db.getAtomicBoolean("archived.flag").set(true);
-            db.commit();
+            meta.setArchived();
+            if (isCompactMetadata()) compactMetadata();
+            summary.save(new File(root, TraceStoreSummary.FILE_NAME));
             ctext.archive();
             itext = new StructuredTextIndex(ctext);
+            fdata.mmap();
+            getPostings();
         }
     }
 
@@ -406,16 +868,89 @@ public class SimpleTraceStore implements TraceStore {
         return ctext.runMaintenance();
     }
 
+    /**
+     * Returns true if store has pending maintenance work of given type. Stores that are not open are not opened.
+     */
+    public boolean needsMaintenance(MaintenanceScheduler.TaskType type) {
+        CompositeIndex ci = ctext;
+        if (fdata == null || ci == null) return false;
+        switch (type) {
+            case COMPRESS:
+                return ci.needsCompression();
+            case MERGE:
+                return ci.needsMerge();
+            case REMOVE:
+                return ci.needsRemoval();
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Runs single maintenance task of given type (used by maintenance scheduler).
+     *
+     * @return number of bytes read and written by task or -1 if nothing has been done
+     */
+    public long runMaintenanceTask(MaintenanceScheduler.TaskType type) {
+        CompositeIndex ci = ctext;
+        if (fdata == null || ci == null) return -1;
+        switch (type) {
+            case COMPRESS:
+                return ci.runCompressTask();
+            case MERGE:
+                return ci.runMergeTask();
+            case REMOVE:
+                cleanupSessions();
+                return ci.runRemovalTask() > 0 ? 0 : -1;
+            default:
+                return -1;
+        }
+    }
+
     public long length() {
         return fdata.length() + ctext.length();
     }
 
 
+    /**
+     * Stops ingest pipeline and group committer threads (if any). Chunks submitted later are written synchronously.
+     */
+    private void closeIngest() {
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        if (committer != null) {
+            committer.close();
+            committer = null;
+        }
+    }
+
+
     @Override
     public synchronized void close() throws IOException {
+        if (fdata == null) return;
+        closeIngest();
+        if (fdata != null && 0 == (iFlags & CTF_ARCHIVED)) {
+            summary.save(new File(root, TraceStoreSummary.FILE_NAME));
+        }
+        if (postings != null) {
+            postings.close();
+            postings = null;
+        }
+        skipReady = false;
+        skipIndex = null;
         ctext.close();
         fdata.close();
-        db.close();
+        meta.close();
+        closeRetiredMetadata();
+        if (chunkCache != null) {
+            chunkCache.invalidate(storeId);
+        }
+        if (queryCache != null) {
+            queryCache.invalidate(storeId);
+        }
     }
 
     private synchronized void cleanupSessions() {
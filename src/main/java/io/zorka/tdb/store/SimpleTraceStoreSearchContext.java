@@ -3,9 +3,8 @@ package io.zorka.tdb.store;
 import io.zorka.tdb.util.BitmapSet;
 import org.mapdb.Fun;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.LongPredicate;
 import java.util.concurrent.ConcurrentNavigableMap;
 
 import static io.zorka.tdb.store.SimpleTraceStore.ERROR_BIT;
@@ -22,6 +21,9 @@ public class SimpleTraceStoreSearchContext {
     private List<Fun.Tuple3<Integer,Integer,Long>> sattrC = new ArrayList<>();
 
     private BitmapSet stringIds;
+
+    /** Timestamps (ascending) of chunks matching all numeric attribute ranges, null if there are none. */
+    private long[] ranged;
     private ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> strings;
 
     public SimpleTraceStoreSearchContext(SimpleTraceStore store, TraceSearchQuery query) {
@@ -53,11 +55,6 @@ public class SimpleTraceStoreSearchContext {
             sattrC.add(m.lastKey());
         }
 
-        if (query.getText() != null) {
-            stringIds = new BitmapSet();
-            store.getTextIndex().search(query.getText(), query.hasMatchStart(), query.hasMatchEnd(), stringIds);
-        }
-
         return true;
     }
 
@@ -81,8 +78,16 @@ public class SimpleTraceStoreSearchContext {
         long md = query.getMinDuration();
         boolean ef = query.hasErrorsOnly();
         boolean cde = md != 0 || ef;
+        DurationSkipIndex si = cde ? store.getSkipIndex() : null;
 
         for (Long tst = lowestTstamp(); tst != null; tst = lowestTstamp()) {
+            if (si != null) {
+                long bound = si.floorCandidate(tst, md, ef);
+                if (bound != tst) {
+                    tstampC = bound != Long.MIN_VALUE ? tstamps.lowerKey(bound) : null;
+                    continue;
+                }
+            }
             if (cde) {
                 long dur = tstamps.get(tst);
                 if ((dur & ~ERROR_BIT) < md) {
@@ -106,19 +111,8 @@ public class SimpleTraceStoreSearchContext {
             }
 
             if (match) {
-                boolean smatch = stringIds == null;
-                if (!smatch) {
-                    for (int id = stringIds.first(); id > 0; id = stringIds.next(id)) {
-                        if (strings.containsKey(Fun.t2(id, tst))) {
-                            smatch = true;
-                            break;
-                        }
-                    }
-                }
-                if (smatch) {
-                    tstampC = tst;
-                    return true;
-                }
+                tstampC = tst;
+                return true;
             }
             tstampC = tstamps.lowerKey(tst);
         }
@@ -126,15 +120,341 @@ public class SimpleTraceStoreSearchContext {
         return false;
     }
 
-    public void search(TraceSearchResultSet acc) {
+    /**
+     * Attribute search over posting lists of archived store: posting lists of all matched attributes
+     * are intersected first, then timestamp range, duration and error filters are applied.
+     */
+    private void scan(PostingIndex pi, LongPredicate sink) {
+        int[] seqs = null;
+
+        for (Map.Entry<String,String> am : query.getAttrMatches().entrySet()) {
+            int k = store.getTextIndex().get(am.getKey());
+            int v = store.getTextIndex().get(am.getValue());
+            if (k <= 0 || v <= 0) return;
+            int[] p = pi.get(k, v);
+            seqs = seqs != null ? PostingIndex.intersect(seqs, p) : p;
+            if (seqs.length == 0) return;
+        }
+
+        if (ranged != null) {
+            int[] p = new int[ranged.length];
+            for (int i = 0; i < ranged.length; i++) {
+                p[i] = pi.ceiling(ranged[i]);
+            }
+            seqs = PostingIndex.intersect(seqs, p);
+        }
+
+        int lo = pi.ceiling(query.getMinTstamp()), hi = pi.ceiling(query.getMaxTstamp());
+        long md = query.getMinDuration();
+        boolean ef = query.hasErrorsOnly();
+
+        for (int i = seqs.length - 1; i >= 0; i--) {
+            int seq = seqs[i];
+            if (seq >= hi) continue;
+            if (seq < lo) break;
+
+            long dur = pi.duration(seq);
+            if ((dur & ~ERROR_BIT) < md) continue;
+            if (ef && 0 == (dur & ERROR_BIT)) continue;
+
+            if (!sink.test(pi.tstamp(seq))) return;
+        }
+    }
+
+    /**
+     * Cursor over (valId, tstamp) entries of a single string, in descending timestamp order.
+     */
+    private static class TextCursor implements Comparable<TextCursor> {
+        private final Iterator<Map.Entry<Fun.Tuple2<Integer,Long>,Long>> iter;
+        private long tstamp, duration;
+
+        private TextCursor(Iterator<Map.Entry<Fun.Tuple2<Integer,Long>,Long>> iter) {
+            this.iter = iter;
+        }
+
+        private boolean next() {
+            if (!iter.hasNext()) return false;
+            Map.Entry<Fun.Tuple2<Integer,Long>,Long> e = iter.next();
+            tstamp = e.getKey().b;
+            duration = e.getValue();
+            return true;
+        }
+
+        @Override
+        public int compareTo(TextCursor c) {
+            return Long.compare(c.tstamp, tstamp);
+        }
+    }
+
+    /**
+     * Free text search driven by text index: postings of all matching strings are merged into a
+     * descending sequence of candidate timestamps, which is then checked against remaining filters.
+     * Merge is lazy, so its cost follows number of hits consumed rather than number of chunks in store.
+     */
+    private void scanText(PostingIndex pi, LongPredicate sink) {
+        int[] seqs = null;
+        List<Fun.Tuple2<Integer,Integer>> kvs = new ArrayList<>();
+
+        for (Map.Entry<String,String> am : query.getAttrMatches().entrySet()) {
+            int k = store.getTextIndex().get(am.getKey());
+            int v = store.getTextIndex().get(am.getValue());
+            if (k <= 0 || v <= 0) return;
+            if (pi != null) {
+                int[] p = pi.get(k, v);
+                seqs = seqs != null ? PostingIndex.intersect(seqs, p) : p;
+                if (seqs.length == 0) return;
+            } else {
+                kvs.add(Fun.t2(k, v));
+            }
+        }
+
+        stringIds = new BitmapSet();
+        store.getTextIndex().search(query.getText(), query.hasMatchStart(), query.hasMatchEnd(), stringIds);
+
+        PriorityQueue<TextCursor> queue = new PriorityQueue<>();
+
+        for (int id = stringIds.first(); id > 0; id = stringIds.next(id)) {
+            TextCursor c = new TextCursor(strings.subMap(Fun.t2(id, query.getMinTstamp()),
+                Fun.t2(id, query.getMaxTstamp())).descendingMap().entrySet().iterator());
+            if (c.next()) queue.add(c);
+        }
+
+        ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs = store.getSattrs();
+        long md = query.getMinDuration();
+        boolean ef = query.hasErrorsOnly();
+        boolean first = true;
+        long last = 0;
+
+        while (!queue.isEmpty()) {
+            TextCursor c = queue.poll();
+            long tst = c.tstamp, dur = c.duration;
+            if (c.next()) queue.add(c);
+
+            if (!first && tst == last) continue;
+            first = false;
+            last = tst;
+
+            if ((dur & ~ERROR_BIT) < md) continue;
+            if (ef && 0 == (dur & ERROR_BIT)) continue;
+
+            if (seqs != null && Arrays.binarySearch(seqs, pi.ceiling(tst)) < 0) continue;
+
+            if (ranged != null && Arrays.binarySearch(ranged, tst) < 0) continue;
+
+            boolean match = true;
+            for (Fun.Tuple2<Integer,Integer> kv : kvs) {
+                if (!sattrs.containsKey(Fun.t3(kv.a, kv.b, tst))) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (match && !sink.test(tst)) return;
+        }
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] rslt = new long[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                rslt[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(rslt, n);
+    }
+
+    /**
+     * Performs range scans over numeric attributes index for all attribute ranges of query.
+     *
+     * @return sorted timestamps of chunks (within query time window) matching all ranges
+     */
+    private long[] rangeMatches() {
+        ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> nattrs = store.getNattrs();
+        long minTstamp = query.getMinTstamp(), maxTstamp = query.getMaxTstamp();
+        long[] rslt = null;
+
+        for (AttrRange r : query.getAttrRanges()) {
+            int k = store.getTextIndex().get(r.getKey());
+            if (k <= 0) return new long[0];
+
+            long[] tsts = new long[64];
+            int n = 0;
+
+            for (long[] b : r.bounds()) {
+                for (Fun.Tuple3<Integer,Long,Long> t : nattrs.subMap(
+                    Fun.t3(k | r.getType(), b[0], Long.MIN_VALUE), true,
+                    Fun.t3(k | r.getType(), b[1], Long.MAX_VALUE), true).keySet()) {
+                    if (t.c >= minTstamp && t.c < maxTstamp) {
+                        if (n == tsts.length) tsts = Arrays.copyOf(tsts, n * 2);
+                        tsts[n++] = t.c;
+                    }
+                }
+            }
+
+            tsts = Arrays.copyOf(tsts, n);
+            Arrays.sort(tsts);
+            rslt = rslt != null ? intersect(rslt, tsts) : tsts;
+            if (rslt.length == 0) break;
+        }
+
+        return rslt;
+    }
+
+    /**
+     * Search driven by results of numeric attribute range scans. Remaining filters are checked
+     * for each candidate.
+     */
+    private void scanRanged(LongPredicate sink) {
+        List<Fun.Tuple2<Integer,Integer>> kvs = new ArrayList<>();
+
+        for (Map.Entry<String,String> am : query.getAttrMatches().entrySet()) {
+            int k = store.getTextIndex().get(am.getKey());
+            int v = store.getTextIndex().get(am.getValue());
+            if (k <= 0 || v <= 0) return;
+            kvs.add(Fun.t2(k, v));
+        }
+
+        ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs = store.getSattrs();
+        long md = query.getMinDuration();
+        boolean ef = query.hasErrorsOnly();
+
+        for (int i = ranged.length - 1; i >= 0; i--) {
+            long tst = ranged[i];
+
+            Long dur = tstamps.get(tst);
+            if (dur == null) continue;
+            if ((dur & ~ERROR_BIT) < md) continue;
+            if (ef && 0 == (dur & ERROR_BIT)) continue;
+
+            boolean match = true;
+            for (Fun.Tuple2<Integer,Integer> kv : kvs) {
+                if (!sattrs.containsKey(Fun.t3(kv.a, kv.b, tst))) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (match && !sink.test(tst)) return;
+        }
+    }
+
+    /**
+     * Passes timestamps of matching chunks (newest first) to sink until sink returns false.
+     */
+    void scan(LongPredicate sink) {
+
+        if (!query.getAttrRanges().isEmpty()) {
+            ranged = rangeMatches();
+            if (ranged.length == 0) return;
+        }
+
+        PostingIndex pi = query.getAttrMatches().isEmpty() ? null : store.getPostings();
+
+        if (query.getText() != null) {
+            scanText(pi, sink);
+            return;
+        }
+
+        if (pi != null) {
+            scan(pi, sink);
+            return;
+        }
+
+        if (ranged != null) {
+            scanRanged(sink);
+            return;
+        }
 
         if (!init()) return;
 
-        while (tstampC != null && acc.needMore()) {
+        while (tstampC != null) {
             if (!align()) break;
-            acc.add(store.getChunkMetadata(tstampC));
+            if (!sink.test(tstampC)) break;
             tstampC = tstamps.lowerKey(tstampC);
         }
     }
 
+    /**
+     * Returns cached results of query (without time window) for archived store,
+     * or null if they are not available. Entry is built only if query missed before.
+     */
+    private byte[] cached(TraceQueryCache cache) {
+        String key = TraceQueryCache.key(query);
+        byte[] data = cache.get(store.getStoreId(), key);
+
+        if (data == null) {
+            if (!cache.admit(store.getStoreId(), key)) return null;
+            TraceQueryCache.Builder b = cache.builder();
+            TraceSearchQuery q = query.copy().setMinTstamp(Long.MIN_VALUE).setMaxTstamp(Long.MAX_VALUE);
+            new SimpleTraceStoreSearchContext(store, q).scan(b);
+            data = b.build();
+            cache.put(store.getStoreId(), key, data);
+        }
+
+        return data != TraceQueryCache.TOO_BIG ? data : null;
+    }
+
+    /**
+     * Collects longest matching chunks. Queries with attribute or text filters scan matching chunks,
+     * other queries walk duration index from the longest bucket down and stop as soon as remaining
+     * buckets cannot contain chunks longer than ones already collected.
+     */
+    public void searchTopDuration(TopDurationCollector c) {
+        if (!query.getAttrMatches().isEmpty() || !query.getAttrRanges().isEmpty() || query.getText() != null) {
+            scan(tst -> {
+                Long dur = tstamps.get(tst);
+                if (dur != null && c.accepts(dur & ~ERROR_BIT)) c.offer(store.getChunkMetadata(tst));
+                return true;
+            });
+            return;
+        }
+
+        ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> durations = store.getDurations();
+        if (durations.isEmpty()) return;
+
+        long md = query.getMinDuration();
+        boolean ef = query.hasErrorsOnly();
+
+        for (int b = durations.lastKey().a; b >= 0; b--) {
+            long bmax = TopDurationCollector.bucketMax(b);
+            if (bmax < md || !c.accepts(bmax)) break;
+
+            for (Map.Entry<Fun.Tuple2<Integer,Long>,Long> e : durations.subMap(
+                Fun.t2(b, query.getMinTstamp()), Fun.t2(b, query.getMaxTstamp())).entrySet()) {
+                long dur = e.getValue();
+                if ((dur & ~ERROR_BIT) < md) continue;
+                if (ef && 0 == (dur & ERROR_BIT)) continue;
+                if (c.accepts(dur & ~ERROR_BIT)) c.offer(store.getChunkMetadata(e.getKey().b));
+            }
+        }
+    }
+
+    public void search(TraceSearchResultSet acc) {
+
+        if (!acc.needMore()) return;
+
+        ChunkMetadataView view = new ChunkMetadataView();
+
+        LongPredicate sink = tst -> {
+            if (store.getChunkMetadata(tst, view)) acc.add(view, store);
+            return acc.needMore();
+        };
+
+        TraceQueryCache cache = store.getQueryCache();
+        byte[] data = cache != null && store.isArchived() ? cached(cache) : null;
+
+        if (data != null) {
+            TraceQueryCache.scan(data, query.getMinTstamp(), query.getMaxTstamp(), sink);
+        } else {
+            scan(sink);
+        }
+    }
+
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import org.mapdb.Fun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static io.zorka.tdb.store.SortedTable.BYTES_VALUE;
+import static io.zorka.tdb.store.SortedTable.LONG_VALUE;
+
+/**
+ * Read only chunk metadata of archived store: each index is an immutable sorted table file
+ * (see SortedTable) in meta.sst directory. Written by compacting mutable index when store is archived.
+ */
+public class SortedChunkMetadataIndex implements ChunkMetadataIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(SortedChunkMetadataIndex.class);
+
+    public static final String DIR_NAME = "meta.sst";
+
+    private static final String CHUNKS = "chunks.sst";
+    private static final String SKIPS = "skips.sst";
+    private static final String TIDS = "tids.sst";
+    private static final String TSTAMPS = "tstamps.sst";
+    private static final String DURATIONS = "durations.sst";
+    private static final String SATTRS = "sattrs.sst";
+    private static final String STRINGS = "strings.sst";
+    private static final String NATTRS = "nattrs.sst";
+
+    private final File dir;
+
+    private final List<SortedTable> tables = new ArrayList<>();
+
+    private final SortedTableMap<Long,byte[]> chunks;
+    private final SortedTableMap<Long,byte[]> skips;
+    private final SortedTableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> tids;
+    private final SortedTableMap<Long,Long> tstamps;
+    private final SortedTableMap<Fun.Tuple2<Integer,Long>,Long> durations;
+    private final SortedTableMap<Fun.Tuple3<Integer,Integer,Long>,Long> sattrs;
+    private final SortedTableMap<Fun.Tuple2<Integer,Long>,Long> strings;
+    private final SortedTableMap<Fun.Tuple3<Integer,Long,Long>,Long> nattrs;
+
+
+    public SortedChunkMetadataIndex(File root) {
+        dir = new File(root, DIR_NAME);
+        try {
+            chunks = open(CHUNKS);
+            skips = open(SKIPS);
+            tids = open(TIDS);
+            tstamps = open(TSTAMPS);
+            durations = open(DURATIONS);
+            sattrs = open(SATTRS);
+            strings = open(STRINGS);
+            nattrs = open(NATTRS);
+        } catch (ZicoException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    private <K,V> SortedTableMap<K,V> open(String name) {
+        SortedTable t = new SortedTable(new File(dir, name));
+        tables.add(t);
+        return new SortedTableMap<>(t);
+    }
+
+
+    /**
+     * Returns true if store directory contains compacted metadata.
+     */
+    public static boolean exists(File root) {
+        return new File(root, DIR_NAME).isDirectory();
+    }
+
+
+    /**
+     * Writes all metadata of given index into sorted tables. Tables are written into temporary
+     * directory which is then renamed, so metadata directory is either complete or missing.
+     * Both directories are synced, so renamed directory survives crash.
+     */
+    public static void write(File root, ChunkMetadataIndex src) {
+        File tmp = new File(root, DIR_NAME + ".tmp");
+        if (tmp.exists()) {
+            for (File f : tmp.listFiles()) {
+                if (!f.delete()) throw new ZicoException("Cannot remove " + f);
+            }
+        } else if (!tmp.mkdirs()) {
+            throw new ZicoException("Cannot create directory " + tmp);
+        }
+
+        try (SortedTable.Writer w = new SortedTable.Writer(new File(tmp, CHUNKS), "L", BYTES_VALUE, 16)) {
+            for (Long tst : src.getTstamps().keySet()) {
+                byte[] b = src.getChunk(tst);
+                w.add(tst, ChunkMetadataView.isFixedLayout(b) ? b : ChunkMetadata.serialize(ChunkMetadata.deserialize(b)));
+            }
+        } catch (IOException e) {
+            throw new ZicoException("Cannot write chunk metadata table in " + tmp, e);
+        }
+
+        try (SortedTable.Writer w = new SortedTable.Writer(new File(tmp, SKIPS), "L", BYTES_VALUE, 16)) {
+            src.forEachSkipTable((offs, st) -> {
+                try {
+                    w.add(offs, st);
+                } catch (IOException e) {
+                    throw new ZicoException("Cannot write skip table in " + tmp, e);
+                }
+            });
+        } catch (IOException e) {
+            throw new ZicoException("Cannot write skip tables in " + tmp, e);
+        }
+
+        SortedTable.write(new File(tmp, TIDS), "LLLI", LONG_VALUE, 256, src.getTids());
+        SortedTable.write(new File(tmp, TSTAMPS), "L", LONG_VALUE, 256, src.getTstamps());
+        SortedTable.write(new File(tmp, DURATIONS), "IL", LONG_VALUE, 256, src.getDurations());
+        SortedTable.write(new File(tmp, SATTRS), "IIL", LONG_VALUE, 256, src.getSattrs());
+        SortedTable.write(new File(tmp, STRINGS), "IL", LONG_VALUE, 256, src.getStrings());
+        SortedTable.write(new File(tmp, NATTRS), "ILL", LONG_VALUE, 256, src.getNattrs());
+
+        syncDir(tmp);
+
+        if (!tmp.renameTo(new File(root, DIR_NAME))) {
+            throw new ZicoException("Cannot rename " + tmp + " to " + DIR_NAME);
+        }
+
+        syncDir(root);
+    }
+
+
+    private static void syncDir(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // Some platforms (eg. Windows) cannot open directories, nothing more can be done there
+            log.debug("Cannot sync directory " + dir, e);
+        }
+    }
+
+
+    @Override
+    public void add(long tstamp, long duration, byte[] data) {
+        throw new ZicoException("Metadata of archived store " + dir + " is read only.");
+    }
+
+
+    @Override
+    public byte[] getChunk(long tstamp) {
+        return chunks.get(tstamp);
+    }
+
+
+    @Override
+    public boolean getChunk(long tstamp, ChunkMetadataView view) {
+        byte[] b = chunks.get(tstamp);
+        if (b == null) return false;
+        view.wrap(b);
+        return true;
+    }
+
+
+    @Override
+    public void forEachChunk(Consumer<byte[]> consumer) {
+        for (byte[] b : chunks.values()) {
+            consumer.accept(b);
+        }
+    }
+
+
+    @Override
+    public void addSkipTable(long dataOffs, byte[] skipTable) {
+        throw new ZicoException("Metadata of archived store " + dir + " is read only.");
+    }
+
+
+    @Override
+    public byte[] getSkipTable(long dataOffs) {
+        return skips.get(dataOffs);
+    }
+
+
+    @Override
+    public void forEachSkipTable(BiConsumer<Long,byte[]> consumer) {
+        skips.forEach(consumer);
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple4<Long,Long,Long,Integer>,Long> getTids() {
+        return tids;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Long,Long> getTstamps() {
+        return tstamps;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getDurations() {
+        return durations;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Integer,Long>,Long> getSattrs() {
+        return sattrs;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple2<Integer,Long>,Long> getStrings() {
+        return strings;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<Fun.Tuple3<Integer,Long,Long>,Long> getNattrs() {
+        return nattrs;
+    }
+
+
+    @Override
+    public boolean isArchived() {
+        return true;
+    }
+
+
+    @Override
+    public void setArchived() {
+    }
+
+
+    @Override
+    public void commit() {
+    }
+
+
+    @Override
+    public void close() {
+        for (SortedTable t : tables) {
+            try {
+                t.close();
+            } catch (IOException e) {
+                // Ignore this
+            }
+        }
+        tables.clear();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.util.lz4.LZ4HCJavaSafeCompressor;
+import io.zorka.tdb.util.lz4.LZ4JavaSafeDecompressor;
+import org.mapdb.Fun;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static io.zorka.tdb.util.BitUtils.*;
+
+/**
+ * Immutable sorted table file of (key, value) pairs, used for metadata of archived stores. Keys are longs,
+ * ints or MapDB tuples of longs and ints (described by key layout string, eg. "IIL" for Tuple3 of two ints
+ * and long), values are longs or byte arrays. Entries are stored in LZ4 compressed blocks of fixed number
+ * of entries, so entries can be addressed by their ordinal numbers. File is memory mapped, first keys and
+ * positions of all blocks (sparse index) are kept in memory, recently used blocks are cached decoded.
+ *
+ * File layout: header (magic, entries per block, value type, key layout), compressed blocks, block index
+ * (block offset, compressed and uncompressed length, first key) and footer (index offset, number of entries,
+ * number of blocks, magic). Uncompressed block contains fixed width keys (big endian), then either values
+ * (longs) or value offsets (ints) followed by value bytes.
+ */
+public class SortedTable implements Closeable {
+
+    private static final int MAGIC = 0x5a535354;
+
+    private static final int HDR_SIZE = 16;
+    private static final int FTR_SIZE = 20;
+
+    public static final char LONG_VALUE = 'L';
+    public static final char BYTES_VALUE = 'B';
+
+    private static final int CACHE_SIZE = 64;
+
+    private static final LZ4HCJavaSafeCompressor LZ4HC = new LZ4HCJavaSafeCompressor();
+
+    @SuppressWarnings("unchecked")
+    static final Comparator<Object> COMPARATOR = (a, b) -> ((Comparable<Object>)a).compareTo(b);
+
+    private static class Block {
+        private final int num;
+        private final Object[] keys;
+        private final long[] lvals;
+
+        /** Uncompressed block data and offset of first value byte (for byte array values) */
+        private final byte[] data;
+        private final int[] voffs;
+
+        private Block(int num, Object[] keys, long[] lvals, byte[] data, int[] voffs) {
+            this.num = num;
+            this.keys = keys;
+            this.lvals = lvals;
+            this.data = data;
+            this.voffs = voffs;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buf;
+
+    private final String keyLayout;
+    private final int keyWidth;
+    private final char valType;
+    private final int blockEntries;
+    private final int nentries;
+    private final int nblocks;
+
+    private final int[] offsets;
+    private final int[] clens;
+    private final int[] llens;
+    private final Object[] firstKeys;
+
+    private final AtomicReferenceArray<Block> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+
+
+    public SortedTable(File file) {
+        this.file = file;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.length() > Integer.MAX_VALUE || raf.length() < HDR_SIZE + FTR_SIZE) {
+                throw new ZicoException("Invalid size of sorted table " + file + ": " + raf.length());
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } catch (IOException e) {
+            throw new ZicoException("Cannot open sorted table " + file, e);
+        }
+
+        int ftr = buf.capacity() - FTR_SIZE;
+        if (buf.getInt(0) != MAGIC || buf.getInt(ftr + 16) != MAGIC) {
+            throw new ZicoException("Invalid sorted table file: " + file);
+        }
+
+        blockEntries = buf.getInt(4);
+        valType = (char)buf.get(8);
+        byte[] kl = new byte[buf.get(9)];
+        for (int i = 0; i < kl.length; i++) {
+            kl[i] = buf.get(10 + i);
+        }
+        keyLayout = new String(kl);
+        keyWidth = keyWidth(keyLayout);
+
+        int idx = (int)buf.getLong(ftr);
+        nentries = buf.getInt(ftr + 8);
+        nblocks = buf.getInt(ftr + 12);
+
+        offsets = new int[nblocks];
+        clens = new int[nblocks];
+        llens = new int[nblocks];
+        firstKeys = new Object[nblocks];
+
+        for (int i = 0; i < nblocks; i++) {
+            int p = idx + i * (12 + keyWidth);
+            offsets[i] = buf.getInt(p);
+            clens[i] = buf.getInt(p + 4);
+            llens[i] = buf.getInt(p + 8);
+            firstKeys[i] = readKey(buf, p + 12, keyLayout);
+        }
+    }
+
+
+    private static int keyWidth(String layout) {
+        int w = 0;
+        for (int i = 0; i < layout.length(); i++) {
+            w += layout.charAt(i) == 'I' ? 4 : 8;
+        }
+        return w;
+    }
+
+
+    private static Object readKey(ByteBuffer b, int p, String layout) {
+        Object[] c = new Object[layout.length()];
+        for (int i = 0; i < c.length; i++) {
+            if (layout.charAt(i) == 'I') {
+                c[i] = b.getInt(p);
+                p += 4;
+            } else {
+                c[i] = b.getLong(p);
+                p += 8;
+            }
+        }
+        switch (c.length) {
+            case 1: return c[0];
+            case 2: return Fun.t2(c[0], c[1]);
+            case 3: return Fun.t3(c[0], c[1], c[2]);
+            case 4: return Fun.t4(c[0], c[1], c[2], c[3]);
+            default: throw new ZicoException("Invalid key layout: " + layout);
+        }
+    }
+
+
+    private static Object component(Object key, int i) {
+        if (key instanceof Fun.Tuple2) {
+            Fun.Tuple2<?,?> t = (Fun.Tuple2<?,?>)key;
+            return i == 0 ? t.a : t.b;
+        } else if (key instanceof Fun.Tuple3) {
+            Fun.Tuple3<?,?,?> t = (Fun.Tuple3<?,?,?>)key;
+            return i == 0 ? t.a : i == 1 ? t.b : t.c;
+        } else if (key instanceof Fun.Tuple4) {
+            Fun.Tuple4<?,?,?,?> t = (Fun.Tuple4<?,?,?,?>)key;
+            return i == 0 ? t.a : i == 1 ? t.b : i == 2 ? t.c : t.d;
+        }
+        return key;
+    }
+
+
+    private static void writeKey(ByteBuffer b, Object key, String layout) {
+        for (int i = 0; i < layout.length(); i++) {
+            Object c = component(key, i);
+            if (layout.charAt(i) == 'I') {
+                b.putInt((Integer)c);
+            } else {
+                b.putLong((Long)c);
+            }
+        }
+    }
+
+
+    public int size() {
+        return nentries;
+    }
+
+
+    public char getValueType() {
+        return valType;
+    }
+
+
+    private Block block(int num) {
+        int slot = num % CACHE_SIZE;
+        Block b = cache.get(slot);
+        if (b != null && b.num == num) return b;
+
+        byte[] cbuf = new byte[clens[num]], lbuf = new byte[llens[num]];
+        UNSAFE.copyMemory(null, addr(buf) + offsets[num], cbuf, BYTE_ARRAY_OFFS, cbuf.length);
+        if (LZ4JavaSafeDecompressor.INSTANCE.decompress(cbuf, 0, lbuf, 0, lbuf.length) != cbuf.length) {
+            throw new ZicoException("Malformed block " + num + " of sorted table " + file);
+        }
+
+        int n = Math.min(blockEntries, nentries - num * blockEntries);
+        ByteBuffer lb = ByteBuffer.wrap(lbuf);
+        Object[] keys = new Object[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = readKey(lb, i * keyWidth, keyLayout);
+        }
+        lb.position(n * keyWidth);
+
+        long[] lvals = null;
+        int[] voffs = null;
+        if (valType == LONG_VALUE) {
+            lvals = new long[n];
+            for (int i = 0; i < n; i++) {
+                lvals[i] = lb.getLong();
+            }
+        } else {
+            voffs = new int[n + 1];
+            int base = n * keyWidth + (n + 1) * 4;
+            for (int i = 0; i <= n; i++) {
+                voffs[i] = base + lb.getInt();
+            }
+        }
+
+        b = new Block(num, keys, lvals, valType == LONG_VALUE ? null : lbuf, voffs);
+        cache.set(slot, b);
+        return b;
+    }
+
+
+    public Object key(int i) {
+        return block(i / blockEntries).keys[i % blockEntries];
+    }
+
+
+    public Object value(int i) {
+        Block b = block(i / blockEntries);
+        int j = i % blockEntries;
+        return b.lvals != null ? (Object)b.lvals[j] : Arrays.copyOfRange(b.data, b.voffs[j], b.voffs[j + 1]);
+    }
+
+
+    /**
+     * Returns ordinal of first entry with key greater or equal to given key (or greater if not inclusive).
+     */
+    public int search(Object key, boolean inclusive) {
+        int bn = Arrays.binarySearch(firstKeys, 0, nblocks, key, COMPARATOR);
+        if (bn >= 0) return bn * blockEntries + (inclusive ? 0 : 1);
+        bn = -bn - 2;
+        if (bn < 0) return 0;
+        Block b = block(bn);
+        int i = Arrays.binarySearch(b.keys, key, COMPARATOR);
+        return bn * blockEntries + (i >= 0 ? (inclusive ? i : i + 1) : -i - 1);
+    }
+
+
+    /**
+     * Closes table file. Mapped buffer is unmapped by GC, as blocks might still be read by concurrent searches.
+     */
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+
+    /**
+     * Writes sorted table from (ordered) map.
+     */
+    public static void write(File file, String keyLayout, char valType, int blockEntries, Map<?,?> data) {
+        try (Writer w = new Writer(file, keyLayout, valType, blockEntries)) {
+            for (Map.Entry<?,?> e : data.entrySet()) {
+                w.add(e.getKey(), e.getValue());
+            }
+        } catch (IOException e) {
+            throw new ZicoException("Cannot write sorted table " + file, e);
+        }
+    }
+
+
+    /**
+     * Writes sorted table. Entries must be added in ascending key order.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileOutputStream fos;
+        private final OutputStream os;
+        private final String keyLayout;
+        private final int keyWidth;
+        private final char valType;
+        private final int blockEntries;
+
+        private final Object[] keys;
+        private final Object[] vals;
+        private int n;
+
+        private long pos, nentries;
+        private Object last;
+
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private int nblocks;
+
+        private final LZ4HCJavaSafeCompressor.Context lz4ctx = new LZ4HCJavaSafeCompressor.Context();
+
+
+        public Writer(File file, String keyLayout, char valType, int blockEntries) throws IOException {
+            if (keyLayout.isEmpty() || keyLayout.length() > 4 || !keyLayout.matches("[IL]+")) {
+                throw new ZicoException("Invalid key layout: " + keyLayout);
+            }
+            this.fos = new FileOutputStream(file);
+            this.os = new BufferedOutputStream(fos, 65536);
+            this.keyLayout = keyLayout;
+            this.keyWidth = keyWidth(keyLayout);
+            this.valType = valType;
+            this.blockEntries = blockEntries;
+            this.keys = new Object[blockEntries];
+            this.vals = new Object[blockEntries];
+
+            ByteBuffer hdr = ByteBuffer.allocate(HDR_SIZE);
+            hdr.putInt(MAGIC).putInt(blockEntries).put((byte)valType).put((byte)keyLayout.length());
+            hdr.put(keyLayout.getBytes());
+            write(hdr.array());
+        }
+
+
+        private void write(byte[] b) throws IOException {
+            write(b, b.length);
+        }
+
+
+        private void write(byte[] b, int len) throws IOException {
+            os.write(b, 0, len);
+            pos += len;
+        }
+
+
+        public void add(Object key, Object val) throws IOException {
+            if (last != null && COMPARATOR.compare(last, key) >= 0) {
+                throw new ZicoException("Keys not in ascending order: " + last + ", " + key);
+            }
+            keys[n] = key;
+            vals[n] = val;
+            last = key;
+            nentries++;
+            if (++n == blockEntries) flush();
+        }
+
+
+        private void flush() throws IOException {
+            if (n == 0) return;
+
+            int vlen = 0;
+            if (valType == BYTES_VALUE) {
+                for (int i = 0; i < n; i++) {
+                    vlen += ((byte[])vals[i]).length;
+                }
+            }
+            int llen = n * keyWidth + (valType == LONG_VALUE ? n * 8 : (n + 1) * 4 + vlen);
+            ByteBuffer lb = ByteBuffer.allocate(llen);
+
+            for (int i = 0; i < n; i++) {
+                writeKey(lb, keys[i], keyLayout);
+            }
+            if (valType == LONG_VALUE) {
+                for (int i = 0; i < n; i++) {
+                    lb.putLong((Long)vals[i]);
+                }
+            } else {
+                int offs = 0;
+                for (int i = 0; i < n; i++) {
+                    lb.putInt(offs);
+                    offs += ((byte[])vals[i]).length;
+                }
+                lb.putInt(offs);
+                for (int i = 0; i < n; i++) {
+                    lb.put((byte[])vals[i]);
+                }
+            }
+
+            byte[] cbuf = new byte[LZ4HC.maxCompressedLength(llen)];
+            int clen = LZ4HC.compress(lb.array(), 0, llen, cbuf, 0, cbuf.length, lz4ctx);
+
+            ByteBuffer ie = ByteBuffer.allocate(12 + keyWidth);
+            ie.putInt((int)pos).putInt(clen).putInt(llen);
+            writeKey(ie, keys[0], keyLayout);
+            index.write(ie.array());
+            nblocks++;
+
+            write(cbuf, clen);
+            Arrays.fill(keys, null);
+            Arrays.fill(vals, null);
+            n = 0;
+
+            if (pos > Integer.MAX_VALUE) {
+                throw new ZicoException("Sorted table too big.");
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            long idx = pos;
+            write(index.toByteArray());
+            ByteBuffer ftr = ByteBuffer.allocate(FTR_SIZE);
+            ftr.putLong(idx).putInt((int)nentries).putInt(nblocks).putInt(MAGIC);
+            write(ftr.array());
+            os.flush();
+            fos.getFD().sync();
+            os.close();
+        }
+    }
+}
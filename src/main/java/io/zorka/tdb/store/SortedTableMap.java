@@ -0,0 +1,387 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.store;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Read only navigable map view of sorted table (or its range of ordinals). As table is immutable,
+ * submaps are just narrower ranges of ordinals and all lookups are binary searches.
+ */
+@SuppressWarnings("unchecked")
+public class SortedTableMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavigableMap<K,V> {
+
+    private final SortedTable table;
+
+    /** Range of ordinals: lo (inclusive) to hi (exclusive) */
+    private final int lo, hi;
+
+    private final boolean descending;
+
+
+    public SortedTableMap(SortedTable table) {
+        this(table, 0, table.size(), false);
+    }
+
+
+    private SortedTableMap(SortedTable table, int lo, int hi, boolean descending) {
+        this.table = table;
+        this.lo = lo;
+        this.hi = Math.max(lo, hi);
+        this.descending = descending;
+    }
+
+
+    /** Ordinal of n-th entry of this map (in map order) */
+    private int ord(int n) {
+        return descending ? hi - 1 - n : lo + n;
+    }
+
+
+    private K key(int ord) {
+        return ord >= lo && ord < hi ? (K)table.key(ord) : null;
+    }
+
+
+    private Entry<K,V> entry(int ord) {
+        return ord >= lo && ord < hi ? new SimpleImmutableEntry<>((K)table.key(ord), (V)table.value(ord)) : null;
+    }
+
+
+    // Ordinals of neighbours of given key in natural (ascending) order, clamped to range of this map
+
+    private int ceilingOrd(Object key) {
+        return Math.max(lo, table.search(key, true));
+    }
+
+    private int higherOrd(Object key) {
+        return Math.max(lo, table.search(key, false));
+    }
+
+    private int floorOrd(Object key) {
+        return Math.min(hi, table.search(key, false)) - 1;
+    }
+
+    private int lowerOrd(Object key) {
+        return Math.min(hi, table.search(key, true)) - 1;
+    }
+
+
+    @Override
+    public int size() {
+        return hi - lo;
+    }
+
+
+    @Override
+    public boolean isEmpty() {
+        return hi == lo;
+    }
+
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+
+    @Override
+    public V get(Object key) {
+        int i = ceilingOrd(key);
+        return i >= lo && i < hi && SortedTable.COMPARATOR.compare(table.key(i), key) == 0 ? (V)table.value(i) : null;
+    }
+
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        return new AbstractSet<Entry<K,V>>() {
+            @Override
+            public Iterator<Entry<K,V>> iterator() {
+                return new Iterator<Entry<K,V>>() {
+                    private int n = 0;
+                    @Override public boolean hasNext() { return n < size(); }
+                    @Override public Entry<K,V> next() {
+                        if (n >= size()) throw new NoSuchElementException();
+                        return entry(ord(n++));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SortedTableMap.this.size();
+            }
+        };
+    }
+
+
+    @Override
+    public Entry<K,V> lowerEntry(K key) {
+        return entry(descending ? higherOrd(key) : lowerOrd(key));
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return key(descending ? higherOrd(key) : lowerOrd(key));
+    }
+
+    @Override
+    public Entry<K,V> floorEntry(K key) {
+        return entry(descending ? ceilingOrd(key) : floorOrd(key));
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return key(descending ? ceilingOrd(key) : floorOrd(key));
+    }
+
+    @Override
+    public Entry<K,V> ceilingEntry(K key) {
+        return entry(descending ? floorOrd(key) : ceilingOrd(key));
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return key(descending ? floorOrd(key) : ceilingOrd(key));
+    }
+
+    @Override
+    public Entry<K,V> higherEntry(K key) {
+        return entry(descending ? lowerOrd(key) : higherOrd(key));
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return key(descending ? lowerOrd(key) : higherOrd(key));
+    }
+
+    @Override
+    public Entry<K,V> firstEntry() {
+        return isEmpty() ? null : entry(ord(0));
+    }
+
+    @Override
+    public Entry<K,V> lastEntry() {
+        return isEmpty() ? null : entry(ord(size() - 1));
+    }
+
+    @Override
+    public K firstKey() {
+        if (isEmpty()) throw new NoSuchElementException();
+        return key(ord(0));
+    }
+
+    @Override
+    public K lastKey() {
+        if (isEmpty()) throw new NoSuchElementException();
+        return key(ord(size() - 1));
+    }
+
+    @Override
+    public Entry<K,V> pollFirstEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Entry<K,V> pollLastEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return descending ? (Comparator<? super K>)SortedTable.COMPARATOR.reversed() : null;
+    }
+
+
+    @Override
+    public ConcurrentNavigableMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (descending) {
+            return new SortedTableMap<>(table,
+                Math.max(lo, toInclusive ? ceilingOrd(toKey) : higherOrd(toKey)),
+                Math.min(hi, fromInclusive ? higherOrd(fromKey) : ceilingOrd(fromKey)), true);
+        } else {
+            return new SortedTableMap<>(table,
+                Math.max(lo, fromInclusive ? ceilingOrd(fromKey) : higherOrd(fromKey)),
+                Math.min(hi, toInclusive ? higherOrd(toKey) : ceilingOrd(toKey)), false);
+        }
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> headMap(K toKey, boolean inclusive) {
+        if (descending) {
+            return new SortedTableMap<>(table, Math.max(lo, inclusive ? ceilingOrd(toKey) : higherOrd(toKey)), hi, true);
+        } else {
+            return new SortedTableMap<>(table, lo, Math.min(hi, inclusive ? higherOrd(toKey) : ceilingOrd(toKey)), false);
+        }
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> tailMap(K fromKey, boolean inclusive) {
+        if (descending) {
+            return new SortedTableMap<>(table, lo, Math.min(hi, inclusive ? higherOrd(fromKey) : ceilingOrd(fromKey)), true);
+        } else {
+            return new SortedTableMap<>(table, Math.max(lo, inclusive ? ceilingOrd(fromKey) : higherOrd(fromKey)), hi, false);
+        }
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public ConcurrentNavigableMap<K,V> descendingMap() {
+        return new SortedTableMap<>(table, lo, hi, !descending);
+    }
+
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new KeySet<>(this);
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return new KeySet<>(this);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return new KeySet<>(descendingMap());
+    }
+
+
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        throw new UnsupportedOperationException();
+    }
+
+
+    private static class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+
+        private final ConcurrentNavigableMap<K,?> m;
+
+        private KeySet(ConcurrentNavigableMap<K,?> m) {
+            this.m = m;
+        }
+
+        @Override public int size() { return m.size(); }
+        @Override public boolean isEmpty() { return m.isEmpty(); }
+        @Override public boolean contains(Object o) { return m.containsKey(o); }
+        @Override public K lower(K k) { return m.lowerKey(k); }
+        @Override public K floor(K k) { return m.floorKey(k); }
+        @Override public K ceiling(K k) { return m.ceilingKey(k); }
+        @Override public K higher(K k) { return m.higherKey(k); }
+        @Override public K first() { return m.firstKey(); }
+        @Override public K last() { return m.lastKey(); }
+        @Override public Comparator<? super K> comparator() { return m.comparator(); }
+        @Override public K pollFirst() { throw new UnsupportedOperationException(); }
+        @Override public K pollLast() { throw new UnsupportedOperationException(); }
+
+        @Override
+        public Iterator<K> iterator() {
+            Iterator<? extends Entry<K,?>> it = m.entrySet().iterator();
+            return new Iterator<K>() {
+                @Override public boolean hasNext() { return it.hasNext(); }
+                @Override public K next() { return it.next().getKey(); }
+            };
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return new KeySet<>(m.descendingMap());
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return new KeySet<>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+            return new KeySet<>(m.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+            return new KeySet<>(m.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds attribute maps from primitive attribute events, so plain StatelessDataProcessor
+ * implementations can be fed from streaming TraceDataReader.
+ */
+public class StatelessDataProcessorAdapter implements StreamingDataProcessor {
+
+    private final StatelessDataProcessor output;
+
+    private Map<Object,Object> attrs;
+    private Object key;
+    private boolean hasKey;
+
+    public StatelessDataProcessorAdapter(StatelessDataProcessor output) {
+        this.output = output;
+    }
+
+    /**
+     * Returns processor itself if it already handles primitive events or adapter wrapping it otherwise.
+     */
+    public static StreamingDataProcessor wrap(StatelessDataProcessor output) {
+        return output instanceof StreamingDataProcessor
+            ? (StreamingDataProcessor)output
+            : new StatelessDataProcessorAdapter(output);
+    }
+
+    public StatelessDataProcessor getOutput() {
+        return output;
+    }
+
+    private void item(Object v) {
+        if (hasKey) {
+            attrs.put(key, v);
+            key = null;
+            hasKey = false;
+        } else {
+            key = v;
+            hasKey = true;
+        }
+    }
+
+    @Override
+    public void traceStart(int pos) {
+        output.traceStart(pos);
+    }
+
+    @Override
+    public void traceEnd() {
+        output.traceEnd();
+    }
+
+    @Override
+    public void traceInfo(int k, long v) {
+        output.traceInfo(k, v);
+    }
+
+    @Override
+    public void attr(Map<Object, Object> data) {
+        output.attr(data);
+    }
+
+    @Override
+    public void attrStart(int size) {
+        attrs = size >= 0 ? new HashMap<>(size * 4 / 3 + 1) : new HashMap<>();
+        key = null;
+        hasKey = false;
+    }
+
+    @Override
+    public void attrRef(int id) {
+        item(new ObjectRef(id));
+    }
+
+    @Override
+    public void attrLong(long v) {
+        item(v);
+    }
+
+    @Override
+    public void attrBool(boolean v) {
+        item(v);
+    }
+
+    @Override
+    public void attrNull() {
+        item(null);
+    }
+
+    @Override
+    public void attrValue(Object v) {
+        item(v);
+    }
+
+    @Override
+    public void attrEnd() {
+        Map<Object,Object> m = attrs;
+        attrs = null;
+        output.attr(m);
+    }
+
+    @Override
+    public void exceptionRef(int ref) {
+        output.exceptionRef(ref);
+    }
+
+    @Override
+    public void exception(ExceptionData ex) {
+        output.exception(ex);
+    }
+
+    @Override
+    public void commit() {
+        output.commit();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import java.util.Map;
+
+/**
+ * Stateless data processor receiving attributes as a stream of primitive events instead of maps, so that
+ * integers, string refs and attribute keys can be decoded without per-record allocation. TraceDataReader
+ * emits events directly to processors implementing this interface, other processors get attribute maps
+ * via StatelessDataProcessorAdapter.
+ *
+ * Attribute map is passed as attrStart() followed by alternating key and value items and attrEnd().
+ */
+public interface StreamingDataProcessor extends StatelessDataProcessor {
+
+    /**
+     * Starts attribute map.
+     * @param size number of key-value pairs or -1 if not known in advance
+     */
+    void attrStart(int size);
+
+    /** String ref item. */
+    void attrRef(int id);
+
+    void attrLong(long v);
+
+    void attrBool(boolean v);
+
+    void attrNull();
+
+    /** Other items: strings, byte arrays, nested lists and maps. */
+    void attrValue(Object v);
+
+    void attrEnd();
+
+    /**
+     * Replays attribute map as a sequence of primitive events.
+     */
+    @Override
+    default void attr(Map<Object,Object> data) {
+        attrStart(data.size());
+        for (Map.Entry<Object,Object> e : data.entrySet()) {
+            attrItem(this, e.getKey());
+            attrItem(this, e.getValue());
+        }
+        attrEnd();
+    }
+
+    static void attrItem(StreamingDataProcessor p, Object v) {
+        if (v == null) {
+            p.attrNull();
+        } else if (v instanceof ObjectRef) {
+            p.attrRef(((ObjectRef) v).id);
+        } else if (v instanceof Long || v instanceof Integer) {
+            p.attrLong(((Number) v).longValue());
+        } else if (v instanceof Boolean) {
+            p.attrBool((Boolean) v);
+        } else {
+            p.attrValue(v);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Start and end offsets of trace records inside stored data chunk. Built by TraceDataIndexer at ingest
+ * time and kept in store sidecar index, so readers can jump over whole subtrees instead of decoding them.
+ * Only records that start and end in the same chunk and are at least MIN_LENGTH bytes long are kept.
+ *
+ * Encoded form: number of entries, then (start delta, length) pairs as varints, ordered by start offset.
+ */
+public class SubtreeSkipTable {
+
+    /** Minimum length of record (in bytes) worth registering in skip table. */
+    public static final int MIN_LENGTH = 256;
+
+    private final int[] starts;
+    private final int[] ends;
+
+
+    private SubtreeSkipTable(int[] starts, int[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+
+    /**
+     * Returns end offset (first byte after record) of record starting at given offset, or -1 if not known.
+     */
+    public int end(int start) {
+        int i = Arrays.binarySearch(starts, start);
+        return i >= 0 ? ends[i] : -1;
+    }
+
+
+    public int size() {
+        return starts.length;
+    }
+
+
+    public static SubtreeSkipTable decode(byte[] data) {
+        int[] p = { 0 };
+        int n = readVarInt(data, p);
+        int[] starts = new int[n], ends = new int[n];
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            start += readVarInt(data, p);
+            starts[i] = start;
+            ends[i] = start + readVarInt(data, p);
+        }
+        return new SubtreeSkipTable(starts, ends);
+    }
+
+
+    private static int readVarInt(byte[] data, int[] p) {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (p[0] >= data.length) throw new ZicoException("Truncated subtree skip table.");
+            byte b = data[p[0]++];
+            v |= (b & 0x7f) << shift;
+            if (b >= 0) return v;
+        }
+        throw new ZicoException("Malformed subtree skip table.");
+    }
+
+
+    private static void writeVarInt(ByteArrayOutputStream os, int v) {
+        while ((v & ~0x7f) != 0) {
+            os.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        os.write(v);
+    }
+
+
+    /**
+     * Collects record offsets while chunk is being written. Records are registered when they end,
+     * so inner records come before outer ones.
+     */
+    public static class Builder {
+
+        private long[] entries = new long[16];
+        private int size;
+
+        public void add(int start, int end) {
+            if (start < 0 || end - start < MIN_LENGTH) return;
+            if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = ((long)start << 32) | (end - start);
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public byte[] build() {
+            long[] e = Arrays.copyOf(entries, size);
+            Arrays.sort(e);
+            ByteArrayOutputStream os = new ByteArrayOutputStream(size * 4 + 4);
+            writeVarInt(os, size);
+            int last = 0;
+            for (long l : e) {
+                int start = (int)(l >>> 32);
+                writeVarInt(os, start - last);
+                writeVarInt(os, (int)l);
+                last = start;
+            }
+            return os.toByteArray();
+        }
+    }
+}
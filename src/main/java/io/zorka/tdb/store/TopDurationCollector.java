@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import java.util.*;
+
+/**
+ * Collects K longest traces (or spans) using bounded min-heap. Only the longest chunk of each trace
+ * is kept. Also defines duration buckets of per store duration index: 4 buckets per power of 2,
+ * so bucket boundaries are within 25% of actual durations.
+ */
+public class TopDurationCollector {
+
+    private final int limit;
+
+    private final boolean spansOnly;
+
+    private final PriorityQueue<ChunkMetadata> heap = new PriorityQueue<>(
+        Comparator.comparingLong(ChunkMetadata::getDuration).thenComparingLong(ChunkMetadata::getTstamp));
+
+    private final Map<String,ChunkMetadata> byKey = new HashMap<>();
+
+
+    public TopDurationCollector(int limit, boolean spansOnly) {
+        this.limit = limit;
+        this.spansOnly = spansOnly;
+    }
+
+
+    /**
+     * Returns duration bucket number.
+     */
+    public static int bucket(long duration) {
+        if (duration < 4) return (int)Math.max(duration, 0);
+        int e = 63 - Long.numberOfLeadingZeros(duration);
+        return 4 * (e - 1) + (int)((duration >>> (e - 2)) & 3);
+    }
+
+
+    /**
+     * Returns maximum duration falling into given bucket.
+     */
+    public static long bucketMax(int bucket) {
+        if (bucket < 3) return bucket;
+        int b = bucket + 1, e = b / 4 + 1;
+        return e >= 63 ? Long.MAX_VALUE : ((4L + b % 4) << (e - 2)) - 1;
+    }
+
+
+    public boolean isFull() {
+        return heap.size() >= limit;
+    }
+
+
+    /**
+     * Returns duration of shortest collected chunk (if collector is full) or -1.
+     */
+    public long threshold() {
+        return isFull() ? heap.peek().getDuration() : -1;
+    }
+
+
+    /**
+     * Returns true if chunk of given duration would be collected.
+     */
+    public boolean accepts(long duration) {
+        return limit > 0 && (!isFull() || duration > heap.peek().getDuration());
+    }
+
+
+    public void offer(ChunkMetadata cm) {
+        if (cm == null || !accepts(cm.getDuration())) return;
+
+        String key = cm.getTraceIdHex() + (spansOnly ? cm.getSpanIdHex() : "");
+        ChunkMetadata old = byKey.get(key);
+
+        if (old != null) {
+            if (old.getDuration() >= cm.getDuration()) return;
+            heap.remove(old);
+        } else if (isFull()) {
+            ChunkMetadata c = heap.poll();
+            byKey.remove(c.getTraceIdHex() + (spansOnly ? c.getSpanIdHex() : ""));
+        }
+
+        byKey.put(key, cm);
+        heap.add(cm);
+    }
+
+
+    /**
+     * Returns collected chunks, longest first.
+     */
+    public List<ChunkMetadata> getResults() {
+        List<ChunkMetadata> rslt = new ArrayList<>(heap);
+        rslt.sort(heap.comparator().reversed());
+        return rslt;
+    }
+}
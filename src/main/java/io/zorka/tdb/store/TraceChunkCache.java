@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.util.BitUtils;
+import io.zorka.tdb.util.CborBufReader;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of decompressed trace data chunks, keyed by store ID and chunk position
+ * in data file. Chunks can be kept on heap or in direct (off-heap) buffers. Evicted off-heap buffers
+ * are released by GC, so readers still using them stay valid.
+ */
+public class TraceChunkCache {
+
+    private final long maxSize;
+
+    private final boolean offHeap;
+
+    private long size;
+
+    private final LinkedHashMap<Key,Object> chunks = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+
+    private static class Key {
+        private final long storeId;
+        private final long dataOffs;
+
+        private Key(long storeId, long dataOffs) {
+            this.storeId = storeId;
+            this.dataOffs = dataOffs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).storeId == storeId && ((Key) o).dataOffs == dataOffs;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)((storeId * 31 + dataOffs) ^ (dataOffs >>> 32));
+        }
+    }
+
+
+    /**
+     * @param maxSize maximum size of cached data (bytes)
+     * @param offHeap if true, chunks will be kept in direct buffers
+     */
+    public TraceChunkCache(long maxSize, boolean offHeap) {
+        this.maxSize = maxSize;
+        this.offHeap = offHeap;
+    }
+
+
+    /**
+     * Returns reader for cached chunk. On cache miss, chunk is read from data file and
+     * (if it is not too big) added to cache.
+     */
+    public CborBufReader get(long storeId, long dataOffs, RawTraceDataFile fdata) {
+        Key key = new Key(storeId, dataOffs);
+        Object chunk;
+
+        synchronized (this) {
+            chunk = chunks.get(key);
+        }
+
+        if (chunk != null) {
+            hits.incrementAndGet();
+            return reader(chunk);
+        }
+
+        misses.incrementAndGet();
+
+        // Cached chunk must not share thread local buffer with data file
+        CborBufReader rdr = fdata.read(dataOffs, false);
+
+        if (rdr.size() > maxSize / 8) {
+            return rdr;
+        }
+
+        byte[] buf = rdr.getRawBytes();
+
+        if (offHeap) {
+            ByteBuffer bb = ByteBuffer.allocateDirect(buf.length);
+            bb.put(buf);
+            chunk = bb;
+        } else {
+            chunk = buf;
+        }
+
+        put(key, chunk);
+
+        return reader(chunk);
+    }
+
+
+    private static CborBufReader reader(Object chunk) {
+        if (chunk instanceof byte[]) {
+            return new CborBufReader((byte[]) chunk);
+        } else {
+            ByteBuffer bb = (ByteBuffer) chunk;
+            return new CborBufReader(bb, BitUtils.addr(bb), bb.capacity());
+        }
+    }
+
+
+    private static int length(Object chunk) {
+        return chunk instanceof byte[] ? ((byte[]) chunk).length : ((ByteBuffer) chunk).capacity();
+    }
+
+
+    private synchronized void put(Key key, Object chunk) {
+        Object old = chunks.put(key, chunk);
+
+        if (old != null) {
+            size -= length(old);
+        }
+
+        size += length(chunk);
+
+        Iterator<Map.Entry<Key,Object>> iter = chunks.entrySet().iterator();
+        while (size > maxSize && iter.hasNext()) {
+            Map.Entry<Key,Object> e = iter.next();
+            size -= length(e.getValue());
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Removes all chunks of given store from cache.
+     */
+    public synchronized void invalidate(long storeId) {
+        Iterator<Map.Entry<Key,Object>> iter = chunks.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key,Object> e = iter.next();
+            if (e.getKey().storeId == storeId) {
+                size -= length(e.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+
+    public synchronized void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    public synchronized int getCount() {
+        return chunks.size();
+    }
+
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
@@ -35,7 +35,7 @@ import static io.zorka.tdb.store.ChunkMetadata.*;
 /**
  * Normalizes all strings and translates IDs. Extract
  */
-public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProcessor {
+public class TraceDataIndexer implements StreamingDataProcessor, AgentDataProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(TraceDataIndexer.class);
 
@@ -54,7 +54,7 @@ public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProces
     private int stackDepth;
 
     private StructuredTextIndex index;
-    private StatelessDataProcessor output;
+    private StreamingDataProcessor output;
     private CborDataWriter writer;
     private AgentHandler ah;
 
@@ -73,16 +73,29 @@ public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProces
 
     private long tstamp;
 
+    /** Output offsets of records on current call stack (-1 for records started in previous chunks). */
+    private int[] startOffs = new int[64];
+
+    private SubtreeSkipTable.Builder skips = new SubtreeSkipTable.Builder();
+
+    /** Number of items (keys and values) of currently processed attribute map. */
+    private int attrItems;
+
+    /** String ref of current attribute key or -1 if key is not a string. */
+    private int attrKey = -1;
+
     public void setup(StructuredTextIndex index, AgentHandler ah, long traceId1, long traceId2, int chnum,
                       StatelessDataProcessor output, CborDataWriter writer) {
         this.index = index;
-        this.output = output;
+        this.output = StatelessDataProcessorAdapter.wrap(output);
         this.ah = ah;
         this.traceId1 = traceId1;
         this.traceId2 = traceId2;
         this.chnum = chnum;
         this.writer = writer;
         this.lastPos = -1;
+        Arrays.fill(startOffs, 0, Math.min(stackDepth, startOffs.length), -1);
+        skips.clear();
         this.methoCallKey = index.add(TraceAttributes.CALL_METHOD);
         mrslt.clear();
         if (mrecs.size() > 0) {
@@ -142,6 +155,8 @@ public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProces
     public void traceStart(int pos) {
         stackDepth++;
         lastPos = writer.position();
+        if (stackDepth > startOffs.length) startOffs = Arrays.copyOf(startOffs, startOffs.length * 2);
+        startOffs[stackDepth-1] = lastPos;
         if (mtop != null) mtop.addRecs(1);
         output.traceStart(pos);
     }
@@ -154,6 +169,9 @@ public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProces
         }
         stackDepth--;
         output.traceEnd();
+        if (stackDepth >= 0 && stackDepth < startOffs.length) {
+            skips.add(startOffs[stackDepth], writer.position());
+        }
     }
 
     private void traceBegin() {
@@ -257,32 +275,104 @@ public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProces
         }
     }
 
+    /**
+     * Registers attribute item. Returns key ref if item is a value of string keyed attribute, -1 otherwise.
+     */
+    private int attrItem(int ref) {
+        if ((attrItems++ & 1) == 0) {
+            attrKey = ref;
+            return -1;
+        }
+        return attrKey;
+    }
+
+
+    private boolean topAttrs() {
+        return mtop != null && mtop.getStackDepth() == stackDepth;
+    }
+
+
+    private void attrString(int id) {
+        int k = attrItem(id);
+        if (k >= 0) {
+            index.addKRPair(k, id);
+            if (topAttrs()) mtop.getSattrs().put(k, id);
+        }
+        output.attrRef(id);
+    }
+
+
     @Override
-    public void attr(Map<Object, Object> data) {
-        Map<Object, Object> d1 = (Map<Object,Object>)translate(data);
-        if (mtop != null) {
-            if (mtop.getStackDepth() == stackDepth) {
-                for (Map.Entry<Object,Object> e : d1.entrySet()) {
-                    if (e.getKey() instanceof ObjectRef) {
-                        int k = ((ObjectRef) e.getKey()).id;
-                        if (e.getValue() instanceof ObjectRef) {
-                            mtop.getSattrs().put(k, ((ObjectRef) e.getValue()).id);
-                        } else if (e.getValue() instanceof Integer) {
-                            mtop.getNattrs().put(k|INT_TYPE, ((Integer)e.getValue()).longValue());
-                        } else if (e.getValue() instanceof Long) {
-                            mtop.getNattrs().put(k|INT_TYPE, (Long)e.getValue());
-                        } else if (e.getValue() instanceof Boolean) {
-                            mtop.getNattrs().put(k|BOOL_TYPE, Boolean.TRUE.equals(e.getValue()) ? 1L : 0L);
-                        } else if (e.getValue() instanceof Double) {
-                            mtop.getNattrs().put(k|DBL_TYPE, Double.doubleToLongBits((Double)e.getValue()));
-                        }
-                    }
-                }
-            } else if (mtop.getStackDepth() < stackDepth) {
-                log.info("TBD register deep attributes: {}", d1);
+    public void attrStart(int size) {
+        attrItems = 0;
+        attrKey = -1;
+        output.attrStart(size);
+    }
+
+
+    @Override
+    public void attrRef(int id) {
+        attrString(stringRef(id));
+    }
+
+
+    @Override
+    public void attrLong(long v) {
+        int k = attrItem(-1);
+        if (k >= 0) {
+            index.addKVPair(k, Long.toString(v));
+            if (topAttrs()) mtop.getNattrs().put(k|INT_TYPE, v);
+        }
+        output.attrLong(v);
+    }
+
+
+    @Override
+    public void attrBool(boolean v) {
+        int k = attrItem(-1);
+        if (k >= 0) {
+            index.addKVPair(k, Boolean.toString(v));
+            if (topAttrs()) mtop.getNattrs().put(k|BOOL_TYPE, v ? 1L : 0L);
+        }
+        output.attrBool(v);
+    }
+
+
+    @Override
+    public void attrNull() {
+        attrItem(-1);
+        output.attrNull();
+    }
+
+
+    @Override
+    public void attrValue(Object v) {
+        if (v instanceof String) {
+            String s = (String)v;
+            int id = 0;
+            if (s.length() != 0) {
+                id = index.add(s);
+            } else {
+                EMPTY_ATTR_STRINGS.incrementAndGet();
             }
+            attrString(id);
+        } else if (v instanceof Double) {
+            int k = attrItem(-1);
+            if (k >= 0 && topAttrs()) mtop.getNattrs().put(k|DBL_TYPE, Double.doubleToLongBits((Double)v));
+            output.attrValue(v);
+        } else {
+            attrItem(-1);
+            output.attrValue(translate(v));
         }
-        output.attr(d1);
+    }
+
+
+    @Override
+    public void attrEnd() {
+        if (mtop != null && mtop.getStackDepth() < stackDepth) {
+            log.info("TBD register deep attributes ({} items)", attrItems / 2);
+        }
+        output.attrEnd();
     }
 
 
@@ -354,6 +444,13 @@ public class TraceDataIndexer implements StatelessDataProcessor, AgentDataProces
         return rslt;
     }
 
+    /**
+     * Returns encoded skip table of records written in current chunk or null if there are none.
+     */
+    public byte[] getSkipTable() {
+        return skips.isEmpty() ? null : skips.build();
+    }
+
     public List<ChunkMetadata> getTraceStackRecs() {
         return mrecs;
     }
@@ -43,15 +43,23 @@ public class TraceDataReader implements Runnable {
     private final static Logger log = LoggerFactory.getLogger(TraceDataReader.class);
 
     private CborBufReader reader;
-    private StatelessDataProcessor output;
+    private StreamingDataProcessor output;
 
     private boolean running = true;
 
+    private SubtreeSkipTable skipTable;
+
+    private boolean skipRequested;
+
     // TODO use CborDataReader instead of implementing things by hand
 
+    /**
+     * Processors implementing StreamingDataProcessor receive attributes as primitive events,
+     * others get attribute maps via adapter.
+     */
     public TraceDataReader(CborBufReader reader, StatelessDataProcessor output) {
         this.reader = reader;
-        this.output = output;
+        this.output = StatelessDataProcessorAdapter.wrap(output);
     }
 
     private void checked(boolean cond) {
@@ -75,6 +83,18 @@ public class TraceDataReader implements Runnable {
         running = false;
     }
 
+    public void setSkipTable(SubtreeSkipTable skipTable) {
+        this.skipTable = skipTable;
+    }
+
+    /**
+     * Called from output's traceStart() to skip the rest of just started record. If record is found
+     * in skip table, reader jumps right past its end and calls traceEnd(), otherwise record is decoded as usual.
+     */
+    public void skip() {
+        skipRequested = true;
+    }
+
     @Override
     public void run() {
         while (running && reader.size() - reader.position() > 0) {
@@ -163,6 +183,62 @@ public class TraceDataReader implements Runnable {
     }
 
 
+    private void readAttrs() {
+        int peek = reader.peek();
+        checked((peek & TYPE_MASK) == MAP_BASE, "Expected map as trace attributes.");
+        if (peek == MAP_VCODE) {
+            reader.read();
+            output.attrStart(-1);
+            while (reader.peek() != BREAK_CODE) {
+                readAttrItem();
+                readAttrItem();
+            }
+            reader.read();
+        } else {
+            int len = reader.readInt();
+            output.attrStart(len);
+            for (int i = 0; i < len; i++) {
+                readAttrItem();
+                readAttrItem();
+            }
+        }
+        output.attrEnd();
+    }
+
+
+    private void readAttrItem() {
+        int peek = reader.peek();
+        switch (peek & TYPE_MASK) {
+            case UINT_BASE:
+            case NINT_BASE:
+                output.attrLong(reader.readLong());
+                return;
+            case TAG_BASE:
+                if (peek == TAG_BASE+TAG_STRING_REF) {
+                    reader.readInt();
+                    output.attrRef(reader.readInt());
+                    return;
+                }
+                break;
+            case SIMPLE_BASE:
+                switch (peek) {
+                    case FALSE_CODE:
+                    case TRUE_CODE:
+                        reader.read();
+                        output.attrBool(peek == TRUE_CODE);
+                        return;
+                    case NULL_CODE:
+                    case UNKNOWN_CODE:
+                        reader.read();
+                        output.attrNull();
+                        return;
+                }
+                break;
+        }
+        output.attrValue(read());
+    }
+
+
     private void process() {
         int peek = reader.peek();
         int type = peek & TYPE_MASK;
@@ -186,6 +262,14 @@ public class TraceDataReader implements Runnable {
                 int pos = reader.position();
                 reader.read();
                 output.traceStart(pos - 1);
+                if (skipRequested) {
+                    skipRequested = false;
+                    int end = skipTable != null ? skipTable.end(pos - 1) : -1;
+                    if (end > 0) {
+                        reader.position(end);
+                        output.traceEnd();
+                    }
+                }
                 break;
             }
             case TAG_PROLOG_BE:
@@ -226,8 +310,7 @@ public class TraceDataReader implements Runnable {
                 break;
             }
             case TAG_TRACE_ATTR: {
-                Object attrs = read();
-                output.attr((Map)attrs);
+                readAttrs();
                 break;
             }
             case TAG_TRACE_BEGIN: {
@@ -31,4 +31,12 @@ public interface TraceDataRetriever<T> extends StatelessDataProcessor {
     T getResult();
 
     void setReader(TraceDataReader reader);
+
+    /**
+     * Returns true if retriever skips subtrees (using TraceDataReader.skip()), so reader should be supplied
+     * with skip table of retrieved chunk.
+     */
+    default boolean usesSkipTable() {
+        return false;
+    }
 }
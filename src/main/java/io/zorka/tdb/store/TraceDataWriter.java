@@ -27,10 +27,13 @@ import static com.jitlogic.zorka.cbor.TraceDataTags.*;
 /**
  *
  */
-public class TraceDataWriter implements StatelessDataProcessor {
+public class TraceDataWriter implements StreamingDataProcessor {
 
     private CborDataWriter writer;
 
+    /** True if attribute map currently written is unbounded and needs break marker. */
+    private boolean attrBreak;
+
     public TraceDataWriter(CborDataWriter writer) {
         this.writer = writer;
     }
@@ -70,6 +73,58 @@ public class TraceDataWriter implements StatelessDataProcessor {
     }
 
 
+    @Override
+    public void attrStart(int size) {
+        writer.writeTag(TAG_TRACE_ATTR);
+        attrBreak = size < 0;
+        if (attrBreak) {
+            writer.write(MAP_VCODE);
+        } else {
+            writer.writeUInt(MAP_BASE, size);
+        }
+    }
+
+
+    @Override
+    public void attrRef(int id) {
+        writer.writeTag(TAG_STRING_REF);
+        writer.writeInt(id);
+    }
+
+
+    @Override
+    public void attrLong(long v) {
+        writer.writeLong(v);
+    }
+
+
+    @Override
+    public void attrBool(boolean v) {
+        writer.write(v ? TRUE_CODE : FALSE_CODE);
+    }
+
+
+    @Override
+    public void attrNull() {
+        writer.write(NULL_CODE);
+    }
+
+
+    @Override
+    public void attrValue(Object v) {
+        writer.writeObj(v);
+    }
+
+
+    @Override
+    public void attrEnd() {
+        if (attrBreak) {
+            writer.write(BREAK_CODE);
+            attrBreak = false;
+        }
+    }
+
+
     @Override
     public void exceptionRef(int ref) {
         writer.writeTag(TAG_EXCEPTION_REF);
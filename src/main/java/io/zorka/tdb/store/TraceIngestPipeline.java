@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-stage trace ingest pipeline. Trace data is translated by agent handler (on caller's thread),
+ * then compressed by a pool of worker threads, appended to data file and finally its metadata is
+ * committed to metadata index. Stages are connected by bounded queues, so stages of consecutive chunks
+ * overlap while callers are throttled when pipeline is full. Append and commit stages process chunks
+ * strictly in submission order, so chunks of a single session are stored in the same order as they
+ * have been received.
+ */
+public class TraceIngestPipeline implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TraceIngestPipeline.class);
+
+    private final SimpleTraceStore store;
+    private final RawTraceDataFile dataFile;
+
+    private final ThreadPoolExecutor compressor;
+
+    private final BlockingQueue<Task> appendQueue;
+    private final BlockingQueue<Task> commitQueue;
+
+    private final Thread appender, committer;
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+
+    private volatile boolean running = true;
+
+    private static final Task POISON = new Task(null, null);
+
+
+    private static class Task {
+        private final Future<ByteBuffer> block;
+        private final List<ChunkMetadata> metadata;
+
+        private Task(Future<ByteBuffer> block, List<ChunkMetadata> metadata) {
+            this.block = block;
+            this.metadata = metadata;
+        }
+    }
+
+
+    public TraceIngestPipeline(SimpleTraceStore store, RawTraceDataFile dataFile, int nthreads, int qsize) {
+        this.store = store;
+        this.dataFile = dataFile;
+
+        String name = String.format("%06x", store.getStoreId());
+
+        this.compressor = new ThreadPoolExecutor(nthreads, nthreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(qsize), r -> daemon(r, "zico-ingest-compress-" + name),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+        this.appendQueue = new ArrayBlockingQueue<>(qsize);
+        this.commitQueue = new ArrayBlockingQueue<>(qsize);
+
+        this.appender = daemon(this::runAppender, "zico-ingest-append-" + name);
+        this.committer = daemon(this::runCommitter, "zico-ingest-commit-" + name);
+
+        appender.start();
+        committer.start();
+    }
+
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+
+    /**
+     * Submits translated chunk to the pipeline. Must be called in the same order chunks are to be stored.
+     * Blocks if pipeline is full.
+     *
+     * @param buf translated chunk data (will be copied)
+     * @param len length of chunk data
+     * @param metadata chunk metadata records (will be copied)
+     */
+    public void submit(byte[] buf, int len, List<ChunkMetadata> metadata) {
+        if (!running) {
+            throw new ZicoException("Ingest pipeline has been closed.");
+        }
+
+        byte[] data = new byte[len];
+        System.arraycopy(buf, 0, data, 0, len);
+
+        // Metadata objects of unfinished traces are reused by indexer when processing next chunk
+        List<ChunkMetadata> mds = new ArrayList<>(metadata.size());
+        for (ChunkMetadata md : metadata) {
+            mds.add(ChunkMetadata.deserialize(ChunkMetadata.serialize(md)));
+        }
+
+        Task task = new Task(CompletableFuture.supplyAsync(() -> dataFile.compress(data, 0, len), compressor), mds);
+
+        submitted.incrementAndGet();
+
+        try {
+            appendQueue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ZicoException("Interrupted when submitting trace chunk.", e);
+        }
+    }
+
+
+    private void runAppender() {
+        while (true) {
+            Task task;
+            try {
+                task = appendQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (task == POISON) {
+                try {
+                    commitQueue.put(POISON);
+                } catch (InterruptedException e) {
+                    committer.interrupt();
+                }
+                break;
+            }
+
+            try {
+                long dataOffs = dataFile.append(task.block.get());
+                for (ChunkMetadata md : task.metadata) {
+                    md.setDataOffs(dataOffs);
+                }
+                commitQueue.put(task);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                log.error("Error appending trace chunk to " + store.getStoreId() + ". Chunk will be dropped.", e);
+                done();
+            }
+        }
+    }
+
+
+    private void runCommitter() {
+        while (true) {
+            Task task;
+            try {
+                task = commitQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (task == POISON) break;
+
+            try {
+                CompletableFuture<?>[] futures = new CompletableFuture<?>[task.metadata.size()];
+                for (int i = 0; i < futures.length; i++) {
+                    futures[i] = store.submitChunkMetadata(task.metadata.get(i));
+                }
+                CompletableFuture.allOf(futures).whenComplete((v, e) -> {
+                    if (e != null) log.error("Error committing trace chunk metadata to " + store.getStoreId(), e);
+                    done();
+                });
+            } catch (Exception e) {
+                log.error("Error committing trace chunk metadata to " + store.getStoreId(), e);
+                done();
+            }
+        }
+    }
+
+
+    private void done() {
+        completed.incrementAndGet();
+        synchronized (completed) {
+            completed.notifyAll();
+        }
+    }
+
+
+    /**
+     * Waits until all chunks submitted so far are appended to data file and committed to metadata index.
+     */
+    public void flush() {
+        long s = submitted.get();
+        synchronized (completed) {
+            while (completed.get() < s && appender.isAlive()) {
+                try {
+                    completed.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /** Returns number of chunks submitted but not committed yet. */
+    public long getPending() {
+        return submitted.get() - completed.get();
+    }
+
+
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        flush();
+        try {
+            appendQueue.put(POISON);
+            appender.join();
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compressor.shutdown();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.util.BloomFilter;
+import org.mapdb.Fun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Maps trace IDs to IDs of archived stores containing chunks of given trace. Trace IDs are kept
+ * as 64-bit hashes in open addressing hash table, so lookups may return false positives (which are
+ * harmless as store lookups are exact). Active store is not covered, its summary Bloom filter is
+ * used instead. Table is persisted in a compact form (occupied slots only) whenever store set changes.
+ */
+public class TraceLocator {
+
+    private static final Logger log = LoggerFactory.getLogger(TraceLocator.class);
+
+    public static final String FILE_NAME = "tlocator.dat";
+
+    private static final int MAGIC = 0x5a544c30;
+
+    private final File file;
+
+    /** Store IDs covered by locator. */
+    private final SortedSet<Integer> covered = new TreeSet<>();
+
+    private long[] keys;
+    private int[] stores;
+    private int size;
+
+
+    private TraceLocator(File file) {
+        this.file = file;
+        clear();
+    }
+
+
+    private void clear() {
+        covered.clear();
+        keys = new long[1024];
+        stores = new int[1024];
+        size = 0;
+    }
+
+
+    private static long key(long traceId1, long traceId2) {
+        long k = BloomFilter.hash(traceId1, traceId2);
+        return k != 0 ? k : 1;
+    }
+
+
+    private void insert(long key, int storeId) {
+        if (size * 10 >= keys.length * 7) {
+            resize(keys.length * 2);
+        }
+
+        int mask = keys.length - 1;
+        for (int i = (int)key & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == 0) {
+                keys[i] = key;
+                stores[i] = storeId;
+                size++;
+                return;
+            }
+            if (keys[i] == key && stores[i] == storeId) return;
+        }
+    }
+
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldStores = stores;
+        keys = new long[capacity];
+        stores = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) insert(oldKeys[i], oldStores[i]);
+        }
+    }
+
+
+    /**
+     * Returns IDs of archived stores that may contain given trace.
+     */
+    public synchronized List<Integer> find(long traceId1, long traceId2) {
+        List<Integer> rslt = new ArrayList<>(2);
+        long key = key(traceId1, traceId2);
+        int mask = keys.length - 1;
+        for (int i = (int)key & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key && !rslt.contains(stores[i])) rslt.add(stores[i]);
+        }
+        return rslt;
+    }
+
+
+    /**
+     * Adds all traces of given (archived) store.
+     */
+    public synchronized void addStore(SimpleTraceStore store) {
+        int storeId = (int)store.getStoreId();
+        if (covered.contains(storeId)) return;
+
+        long t1 = 0, t2 = 0;
+        boolean first = true;
+        for (Fun.Tuple4<Long,Long,Long,Integer> t : store.getTraceKeys()) {
+            if (first || t.a != t1 || t.b != t2) {
+                t1 = t.a;
+                t2 = t.b;
+                first = false;
+                insert(key(t1, t2), storeId);
+            }
+        }
+
+        covered.add(storeId);
+    }
+
+
+    /**
+     * Removes all traces of given store (eg. when it expires).
+     */
+    public synchronized void removeStore(int storeId) {
+        if (!covered.remove(storeId)) return;
+
+        long[] oldKeys = keys;
+        int[] oldStores = stores;
+        keys = new long[oldKeys.length];
+        stores = new int[oldKeys.length];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && oldStores[i] != storeId) insert(oldKeys[i], oldStores[i]);
+        }
+    }
+
+
+    public synchronized boolean covers(int storeId) {
+        return covered.contains(storeId);
+    }
+
+
+    public synchronized int size() {
+        return size;
+    }
+
+
+    public synchronized void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(covered.size());
+            for (int id : covered) {
+                os.writeInt(id);
+            }
+            os.writeInt(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    os.writeLong(keys[i]);
+                    os.writeInt(stores[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new ZicoException("Cannot write trace locator: " + file, e);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new ZicoException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+
+    private boolean load() {
+        if (!file.exists()) return false;
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC) {
+                log.warn("Invalid trace locator file: " + file + " (will be rebuilt)");
+                return false;
+            }
+            for (int i = is.readInt(); i > 0; i--) {
+                covered.add(is.readInt());
+            }
+            int n = is.readInt();
+            resize(Integer.highestOneBit(Math.max(n * 2, 512)) * 2);
+            for (int i = 0; i < n; i++) {
+                insert(is.readLong(), is.readInt());
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("Cannot read trace locator file: " + file + " (will be rebuilt)", e);
+            clear();
+            return false;
+        }
+    }
+
+
+    /**
+     * Opens locator and synchronizes it with current set of archived stores: traces of stores
+     * missing from locator are added, stores that no longer exist are removed.
+     */
+    public static TraceLocator open(File file, List<SimpleTraceStore> archived) {
+        TraceLocator tl = new TraceLocator(file);
+        boolean changed = !tl.load();
+
+        Set<Integer> ids = new HashSet<>();
+        for (SimpleTraceStore s : archived) {
+            ids.add((int)s.getStoreId());
+            if (!tl.covers((int)s.getStoreId())) {
+                log.info("Adding store " + s.getStoreId() + " to trace locator.");
+                tl.addStore(s);
+                changed = true;
+            }
+        }
+
+        for (int id : new ArrayList<>(tl.covered)) {
+            if (!ids.contains(id)) {
+                tl.removeStore(id);
+                changed = true;
+            }
+        }
+
+        if (changed) tl.save();
+
+        return tl;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * Size bounded LRU cache of search results for archived (immutable) stores. Entries are keyed by
+ * store ID and canonical form of query without time window and contain timestamps of all matching
+ * chunks (newest first), delta encoded as varints. Time window is applied when cached results are
+ * scanned, so the same entry serves all refreshes of a dashboard.
+ *
+ * Building an entry requires full scan of store, so entries are admitted only for queries that missed
+ * at least twice (one-off queries are served by live search that stops as soon as enough results are
+ * found). Queries matching more than MAX_RESULTS chunks of a store are not cached at all, as live search
+ * finds their results quickly anyway.
+ */
+public class TraceQueryCache {
+
+    /** Marks queries with too many results to be cached. */
+    public static final byte[] TOO_BIG = new byte[0];
+
+    /** Maximum number of results of single entry. */
+    public static final int MAX_RESULTS = 65536;
+
+    /** Number of recently missed queries remembered for admission. */
+    private static final int MAX_MISSED = 4096;
+
+    /** Query flags that affect set of matching chunks. */
+    private static final int MATCH_FLAGS = TraceSearchQuery.ERRORS_ONLY
+        | TraceSearchQuery.MATCH_START | TraceSearchQuery.MATCH_END;
+
+    private final long maxSize;
+
+    private long size;
+
+    private final LinkedHashMap<Key,byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    /** Queries that missed once (admitted to cache on second miss). */
+    private final LinkedHashMap<Key,Boolean> missed = new LinkedHashMap<Key,Boolean>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Boolean> eldest) {
+            return size() > MAX_MISSED;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+
+    private static class Key {
+        private final long storeId;
+        private final String query;
+
+        private Key(long storeId, String query) {
+            this.storeId = storeId;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).storeId == storeId && ((Key) o).query.equals(query);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)storeId * 31 + query.hashCode();
+        }
+    }
+
+
+    /**
+     * Collects timestamps of matching chunks and encodes them. Stops (and returns TOO_BIG)
+     * when number of results exceeds limit.
+     */
+    public static class Builder implements LongPredicate {
+        private final int limit;
+        private long[] tstamps = new long[64];
+        private int count;
+
+        private Builder(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean test(long tst) {
+            if (count >= limit) {
+                count++;
+                return false;
+            }
+            if (count == tstamps.length) {
+                tstamps = Arrays.copyOf(tstamps, count * 2);
+            }
+            tstamps[count++] = tst;
+            return true;
+        }
+
+        public byte[] build() {
+            if (count > limit) return TOO_BIG;
+
+            byte[] buf = new byte[10 * (count + 1)];
+            int pos = writeVarLong(buf, 0, count);
+            for (int i = 0; i < count; i++) {
+                pos = writeVarLong(buf, pos, i == 0 ? tstamps[0] : tstamps[i - 1] - tstamps[i]);
+            }
+
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+
+    /**
+     * @param maxSize maximum size of cached results (bytes)
+     */
+    public TraceQueryCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Returns canonical form of query, ignoring time window and flags not affecting matching.
+     */
+    public static String key(TraceSearchQuery query) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(query.getFlags() & MATCH_FLAGS).append('|').append(query.getMinDuration());
+        if (query.getAttrMatches() != null) {
+            for (Map.Entry<String,String> e : query.getAttrMatches().entrySet()) {
+                sb.append('|').append(e.getKey().length()).append(':').append(e.getKey())
+                  .append('=').append(e.getValue().length()).append(':').append(e.getValue());
+            }
+        }
+        for (AttrRange r : query.getAttrRanges()) {
+            sb.append("|#").append(r.getKey().length()).append(':').append(r);
+        }
+        if (query.getText() != null) {
+            sb.append("|~").append(query.getText());
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns builder for new cache entry. Single entry is limited to MAX_RESULTS and 1/8 of cache size.
+     */
+    public Builder builder() {
+        return new Builder((int)Math.min(MAX_RESULTS, maxSize / 8 / 4));
+    }
+
+
+    /**
+     * Returns true if query missed before and its entry should be built now. Otherwise query is
+     * remembered and caller should perform live search.
+     */
+    public synchronized boolean admit(long storeId, String query) {
+        Key key = new Key(storeId, query);
+        if (missed.remove(key) != null) return true;
+        missed.put(key, Boolean.TRUE);
+        return false;
+    }
+
+
+    public byte[] get(long storeId, String query) {
+        byte[] data;
+
+        synchronized (this) {
+            data = entries.get(new Key(storeId, query));
+        }
+
+        if (data != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        return data;
+    }
+
+
+    public synchronized void put(long storeId, String query, byte[] data) {
+        Key key = new Key(storeId, query);
+        byte[] old = entries.put(key, data);
+
+        if (old != null) {
+            size -= length(key, old);
+        }
+
+        size += length(key, data);
+
+        Iterator<Map.Entry<Key,byte[]>> iter = entries.entrySet().iterator();
+        while (size > maxSize && iter.hasNext()) {
+            Map.Entry<Key,byte[]> e = iter.next();
+            size -= length(e.getKey(), e.getValue());
+            iter.remove();
+        }
+    }
+
+
+    private static long length(Key key, byte[] data) {
+        return data.length + 2 * key.query.length() + 64;
+    }
+
+
+    /**
+     * Passes cached timestamps from given time window (newest first) to sink until sink returns false.
+     *
+     * @param minTstamp lower bound (inclusive)
+     * @param maxTstamp upper bound (exclusive)
+     */
+    public static void scan(byte[] data, long minTstamp, long maxTstamp, LongPredicate sink) {
+        long[] v = new long[1];
+        int pos = readVarLong(data, 0, v);
+        long count = v[0], tst = 0;
+
+        for (long i = 0; i < count; i++) {
+            pos = readVarLong(data, pos, v);
+            tst = i == 0 ? v[0] : tst - v[0];
+            if (tst >= maxTstamp) continue;
+            if (tst < minTstamp || !sink.test(tst)) return;
+        }
+    }
+
+
+    private static int writeVarLong(byte[] buf, int pos, long v) {
+        while ((v & ~0x7fL) != 0) {
+            buf[pos++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte)v;
+        return pos;
+    }
+
+
+    private static int readVarLong(byte[] buf, int pos, long[] rslt) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[pos++];
+            v |= (long)(b & 0x7f) << shift;
+            if (b >= 0) break;
+        }
+        rslt[0] = v;
+        return pos;
+    }
+
+
+    /**
+     * Removes all entries of given store from cache.
+     */
+    public synchronized void invalidate(long storeId) {
+        missed.keySet().removeIf(k -> k.storeId == storeId);
+        Iterator<Map.Entry<Key,byte[]>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key,byte[]> e = iter.next();
+            if (e.getKey().storeId == storeId) {
+                size -= length(e.getKey(), e.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+
+    public synchronized void clear() {
+        entries.clear();
+        missed.clear();
+        size = 0;
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+}
@@ -44,6 +44,12 @@ public class TraceRecord {
     /** Logical position (across multiple chunks) */
     private int pos;
 
+    /** Number of chunk (of trace span) record starts in */
+    private int chunkNum;
+
+    /** Number of direct children not included in retrieved tree (lazy retrieval) */
+    private int hiddenChildren;
+
     /** Method descriptor (as string) */
     private String method;
 
@@ -222,6 +228,22 @@ public class TraceRecord {
         this.pos = pos;
     }
 
+    public int getChunkNum() {
+        return chunkNum;
+    }
+
+    public void setChunkNum(int chunkNum) {
+        this.chunkNum = chunkNum;
+    }
+
+    public int getHiddenChildren() {
+        return hiddenChildren;
+    }
+
+    public void setHiddenChildren(int hiddenChildren) {
+        this.hiddenChildren = hiddenChildren;
+    }
+
     public boolean hasError() {
         return 0 != (flags & TF_ERROR_MARK);
     }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.util.BloomFilter;
+
+import java.util.*;
+
+/**
+ * Streaming search over a list of stores (newest first). Results are returned in the same order as
+ * offset/limit search, but are fetched from stores in small batches, each starting right below
+ * timestamp of previous one. Current position can be saved at any time as continuation token, so
+ * fetching next page costs O(page) regardless of how many pages were fetched before.
+ *
+ * Duplicates (chunks of already returned traces) are skipped using a bounded window of recently
+ * returned trace IDs, so chunks of the same trace lying further apart than SEEN_WINDOW results
+ * can be returned again. Window passed in encoded tokens is shorter (see TraceSearchToken).
+ */
+public class TraceSearchCursor implements Iterator<ChunkMetadata> {
+
+    /** Maximum number of recently returned trace IDs kept for duplicate detection. */
+    public static final int SEEN_WINDOW = 4096;
+
+    private static final int MIN_BATCH = 32, MAX_BATCH = 1024;
+
+    private final List<SimpleTraceStore> stores;
+
+    private final TraceSearchQuery query;
+
+    private final LinkedHashSet<Long> seen = new LinkedHashSet<>();
+
+    private final Deque<ChunkMetadata> batch = new ArrayDeque<>();
+
+    private int batchSize = MIN_BATCH;
+
+    /** Index of store searched by next fetch. */
+    private int sidx;
+
+    /** Upper (exclusive) timestamp bound of next fetch. */
+    private long fetchTstamp;
+
+    private ChunkMetadata nextChunk;
+
+    private int lastStoreId;
+    private long lastTstamp;
+
+
+    /**
+     * @param stores stores to search (newest first)
+     * @param query search query
+     * @param token continuation token (or null to start from the beginning)
+     */
+    public TraceSearchCursor(List<SimpleTraceStore> stores, TraceSearchQuery query, TraceSearchToken token) {
+        if (query.hasOrderByDuration()) {
+            throw new ZicoException("Search cursors do not support ordering by duration.");
+        }
+
+        this.query = query;
+        this.fetchTstamp = query.getMaxTstamp();
+
+        if (token != null) {
+            List<SimpleTraceStore> lst = new ArrayList<>(stores.size());
+            for (SimpleTraceStore s : stores) {
+                if (s.getStoreId() <= token.getStoreId()) lst.add(s);
+            }
+            stores = lst;
+            if (!stores.isEmpty() && stores.get(0).getStoreId() == token.getStoreId()) {
+                fetchTstamp = Math.min(fetchTstamp, token.getTstamp());
+            }
+            for (long l : token.getSeen()) {
+                seen.add(l);
+            }
+            lastStoreId = token.getStoreId();
+            lastTstamp = token.getTstamp();
+        } else {
+            lastStoreId = stores.isEmpty() ? 0 : (int)stores.get(0).getStoreId();
+            lastTstamp = fetchTstamp;
+        }
+
+        this.stores = stores;
+    }
+
+
+    private long key(ChunkMetadata cm) {
+        long h = BloomFilter.hash(cm.getTraceId1(), cm.getTraceId2());
+        return query.hasSpansOnly() ? BloomFilter.hash(h, cm.getSpanId()) : h;
+    }
+
+
+    /**
+     * Fetches next batch of results from current store. Moves to next store when current one is exhausted.
+     */
+    private void fetch() {
+        SimpleTraceStore store = stores.get(sidx);
+        TraceSearchQuery q = query.copy().setMaxTstamp(fetchTstamp);
+        TraceSearchResultSet rs = new TraceSearchResultSet(0, batchSize, query.hasSpansOnly());
+
+        if (store.getSummary().mayMatch(q)) {
+            new SimpleTraceStoreSearchContext(store, q).search(rs);
+        }
+
+        batch.addAll(rs.getResults());
+
+        if (rs.size() < batchSize) {
+            sidx++;
+            fetchTstamp = query.getMaxTstamp();
+        } else {
+            // Search stops right after last result, so skipped duplicates all lie above it
+            fetchTstamp = rs.getResults().get(rs.size() - 1).getTstamp();
+            batchSize = Math.min(batchSize * 2, MAX_BATCH);
+        }
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        while (nextChunk == null) {
+            if (batch.isEmpty()) {
+                if (sidx >= stores.size()) return false;
+                fetch();
+            } else {
+                ChunkMetadata cm = batch.poll();
+                if (!seen.contains(key(cm))) nextChunk = cm;
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public ChunkMetadata next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        ChunkMetadata cm = nextChunk;
+        nextChunk = null;
+
+        seen.add(key(cm));
+        if (seen.size() > SEEN_WINDOW) {
+            Iterator<Long> iter = seen.iterator();
+            iter.next();
+            iter.remove();
+        }
+
+        lastStoreId = (int)cm.getStore().getStoreId();
+        lastTstamp = cm.getTstamp();
+
+        return cm;
+    }
+
+
+    /**
+     * Returns list of up to limit next results.
+     */
+    public List<ChunkMetadata> next(int limit) {
+        List<ChunkMetadata> rslt = new ArrayList<>(limit);
+        while (rslt.size() < limit && hasNext()) {
+            rslt.add(next());
+        }
+        return rslt;
+    }
+
+
+    /**
+     * Returns token pointing right after last returned result.
+     */
+    public TraceSearchToken getToken() {
+        long[] s = new long[seen.size()];
+        int i = 0;
+        for (long l : seen) {
+            s[i++] = l;
+        }
+        return new TraceSearchToken(lastStoreId, lastTstamp, s);
+    }
+}
@@ -16,6 +16,8 @@
 
 package io.zorka.tdb.store;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -35,12 +37,17 @@ public class TraceSearchQuery {
 
     public static final int NO_CHILDREN   = 0x20;
 
+    /** Returns longest traces (longest first) instead of newest ones */
+    public static final int ORDER_BY_DURATION = 0x40;
+
     private int flags = 0;
     private long minTstamp = Long.MIN_VALUE, maxTstamp = Long.MAX_VALUE;
     private long minDuration = 0;
 
     private Map<String,String> attrMatches = new TreeMap<>();
 
+    private List<AttrRange> attrRanges = new ArrayList<>();
+
     private String text;
 
     public TraceSearchQuery attrMatch(String k, String v) {
@@ -48,6 +55,31 @@ public class TraceSearchQuery {
         return this;
     }
 
+    /** Matches integer attribute with value in given range (inclusive). */
+    public TraceSearchQuery attrRange(String k, long min, long max) {
+        attrRanges.add(AttrRange.of(k, min, max));
+        return this;
+    }
+
+    /** Matches double attribute with value in given range (inclusive). */
+    public TraceSearchQuery attrRange(String k, double min, double max) {
+        attrRanges.add(AttrRange.of(k, min, max));
+        return this;
+    }
+
+    public TraceSearchQuery attrEquals(String k, long v) {
+        return attrRange(k, v, v);
+    }
+
+    public TraceSearchQuery attrEquals(String k, boolean v) {
+        attrRanges.add(AttrRange.of(k, v));
+        return this;
+    }
+
+    public List<AttrRange> getAttrRanges() {
+        return attrRanges;
+    }
+
     public int getFlags() {
         return flags;
     }
@@ -120,6 +152,20 @@ public class TraceSearchQuery {
         return this;
     }
 
+    public TraceSearchQuery withOrderByDuration() {
+        flags |= ORDER_BY_DURATION;
+        return this;
+    }
+
+    public TraceSearchQuery withoutOrderByDuration() {
+        flags &= ~ORDER_BY_DURATION;
+        return this;
+    }
+
+    public boolean hasOrderByDuration() {
+        return 0 != (flags & ORDER_BY_DURATION);
+    }
+
     public boolean hasNoChildren() {
         return 0 != (flags & NO_CHILDREN);
     }
@@ -187,5 +233,17 @@ public class TraceSearchQuery {
         return this;
     }
 
+    public TraceSearchQuery copy() {
+        TraceSearchQuery q = new TraceSearchQuery();
+        q.flags = flags;
+        q.minTstamp = minTstamp;
+        q.maxTstamp = maxTstamp;
+        q.minDuration = minDuration;
+        q.attrMatches = attrMatches != null ? new TreeMap<>(attrMatches) : null;
+        q.attrRanges = new ArrayList<>(attrRanges);
+        q.text = text;
+        return q;
+    }
+
 
 }
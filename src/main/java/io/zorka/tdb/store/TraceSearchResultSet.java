@@ -17,28 +17,53 @@ public class TraceSearchResultSet {
     private boolean spansOnly;
 
     /** Visited results. */
-    private Set<String> visited = new HashSet<>();
+    private Set<Tid> visited = new HashSet<>();
 
     /** Collected results. */
     private List<ChunkMetadata> results = new ArrayList<>();
 
+    /** Set when search is cancelled (no more results needed). */
+    private volatile boolean cancelled;
+
     public TraceSearchResultSet(int offset, int limit, boolean spansOnly) {
         this.offset = offset;
         this.limit = limit;
         this.spansOnly = spansOnly;
     }
 
+    private Tid key(long traceId1, long traceId2, long spanId) {
+        return spansOnly ? Tid.s(traceId1, traceId2, spanId) : Tid.t(traceId1, traceId2);
+    }
+
     public void add(ChunkMetadata cm) {
-        String key = cm.getTraceIdHex() + (spansOnly ? cm.getSpanIdHex() : "");
-        if (!visited.contains(key)) {
-            if (visited.size() >= offset) results.add(cm);
-            visited.add(key);
+        if (visited.add(key(cm.getTraceId1(), cm.getTraceId2(), cm.getSpanId())) && visited.size() > offset) {
+            results.add(cm);
+        }
+    }
+
+    /**
+     * Adds chunk pointed by view. Chunk is materialized only if it ends up in results.
+     */
+    public void add(ChunkMetadataView view, SimpleTraceStore store) {
+        if (visited.add(key(view.getTraceId1(), view.getTraceId2(), view.getSpanId())) && visited.size() > offset) {
+            ChunkMetadata cm = view.toChunkMetadata();
+            cm.setStore(store);
+            results.add(cm);
         }
     }
 
     /** Returns true if more results are needed. */
     public boolean needMore() {
-        return visited.size() < limit+offset;
+        return !cancelled && visited.size() < limit+offset;
+    }
+
+    /** Stops search that feeds this result set. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
     }
 
     public int size() {
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+
+import java.io.*;
+import java.util.Base64;
+
+/**
+ * Continuation token of search cursor: ID of store and timestamp of last returned chunk, and hashes
+ * of recently returned trace (or span) IDs used to skip duplicates on subsequent pages. Token can be
+ * passed around as java serialized object or as URL safe string (see encode() and decode()).
+ *
+ * Encoded string carries only ENCODED_WINDOW most recent hashes, so it is never longer than
+ * MAX_ENCODED_LENGTH (1392) characters and fits in URLs and headers. Duplicates of traces returned
+ * further back than that can reappear on pages fetched with decoded token.
+ */
+public class TraceSearchToken implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x5a535430;
+
+    /** Maximum number of hashes of returned trace IDs kept in encoded token. */
+    public static final int ENCODED_WINDOW = 128;
+
+    /** Maximum length of encoded token: header and hashes, base64 encoded without padding. */
+    public static final int MAX_ENCODED_LENGTH = ((20 + 8 * ENCODED_WINDOW) * 4 + 2) / 3;
+
+    private final int storeId;
+
+    private final long tstamp;
+
+    private final long[] seen;
+
+
+    public TraceSearchToken(int storeId, long tstamp, long[] seen) {
+        this.storeId = storeId;
+        this.tstamp = tstamp;
+        this.seen = seen;
+    }
+
+
+    /** ID of store containing last returned chunk. */
+    public int getStoreId() {
+        return storeId;
+    }
+
+
+    /** Timestamp of last returned chunk (search resumes below it). */
+    public long getTstamp() {
+        return tstamp;
+    }
+
+
+    /** Hashes of recently returned trace IDs (oldest first). */
+    public long[] getSeen() {
+        return seen;
+    }
+
+
+    /**
+     * Returns URL safe form of token (at most MAX_ENCODED_LENGTH characters).
+     */
+    public String encode() {
+        int n = Math.min(seen.length, ENCODED_WINDOW);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(20 + 8 * n);
+        try (DataOutputStream os = new DataOutputStream(bos)) {
+            os.writeInt(MAGIC);
+            os.writeInt(storeId);
+            os.writeLong(tstamp);
+            os.writeInt(n);
+            for (int i = seen.length - n; i < seen.length; i++) {
+                os.writeLong(seen[i]);
+            }
+        } catch (IOException e) {
+            throw new ZicoException("Cannot encode search token", e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bos.toByteArray());
+    }
+
+
+    public static TraceSearchToken decode(String s) {
+        try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(s)))) {
+            if (is.readInt() != MAGIC) {
+                throw new ZicoException("Invalid search token: " + s);
+            }
+            int storeId = is.readInt();
+            long tstamp = is.readLong();
+            int n = is.readInt();
+            if (n < 0 || n > ENCODED_WINDOW) {
+                throw new ZicoException("Invalid search token: " + s);
+            }
+            long[] seen = new long[n];
+            for (int i = 0; i < seen.length; i++) {
+                seen[i] = is.readLong();
+            }
+            return new TraceSearchToken(storeId, tstamp, seen);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ZicoException("Invalid search token: " + s, e);
+        }
+    }
+}
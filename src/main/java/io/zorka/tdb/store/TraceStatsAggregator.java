@@ -0,0 +1,422 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.text.StructuredTextIndex;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.jitlogic.zorka.cbor.TraceInfoConstants.*;
+import static com.jitlogic.zorka.cbor.TraceRecordFlags.TF_ERROR_MARK;
+
+/**
+ * Computes per method statistics (as TraceStatsRecordFilter does for single trace) over all traces
+ * matching search query. Matching traces are decoded in per store batches on fork-join pool, each worker thread
+ * accumulates statistics in its own primitive keyed table, tables are merged when results are requested.
+ * Partial results can be fetched at any time while aggregation is still running.
+ */
+public class TraceStatsAggregator {
+
+    /** Number of traces decoded by single task. */
+    public static final int BATCH_SIZE = 64;
+
+    private final RotatingTraceStore store;
+
+    private final List<SimpleTraceStore> stores;
+
+    private final TraceSearchQuery query;
+
+    private final ForkJoinPool pool;
+
+    private final Map<Thread,Accumulator> accumulators = new ConcurrentHashMap<>();
+
+    private final AtomicLong traces = new AtomicLong();
+
+    private volatile boolean cancelled;
+
+    private volatile ForkJoinTask<?> task;
+
+
+    /**
+     * @param store store traces are retrieved from
+     * @param stores stores to search (newest first)
+     * @param query search query selecting traces
+     * @param pool pool decoding tasks are executed on
+     */
+    public TraceStatsAggregator(RotatingTraceStore store, List<SimpleTraceStore> stores,
+                                TraceSearchQuery query, ForkJoinPool pool) {
+        this.store = store;
+        this.stores = stores;
+        this.query = query;
+        this.pool = pool;
+    }
+
+
+    /**
+     * Starts aggregation in background.
+     */
+    public TraceStatsAggregator start() {
+        task = pool.submit(this::run);
+        return this;
+    }
+
+
+    private void run() {
+        Set<Tid> crossing = ConcurrentHashMap.newKeySet();
+        Deque<ForkJoinTask<?>> tasks = new ArrayDeque<>();
+        ChunkMetadataView view = new ChunkMetadataView();
+        int window = 4 * pool.getParallelism();
+
+        for (int i = 0; i < stores.size(); i++) {
+            if (cancelled) break;
+            SimpleTraceStore s = stores.get(i);
+            if (!s.getSummary().mayMatch(query)) continue;
+
+            SimpleTraceStore newer = i > 0 ? stores.get(i-1) : null;
+            Set<Tid> seen = new HashSet<>();
+            long[] batch = new long[BATCH_SIZE];
+            int[] n = { 0 };
+
+            new SimpleTraceStoreSearchContext(s, query).scan(tst -> {
+                if (!s.getChunkMetadata(tst, view)) return !cancelled;
+                if (seen.add(Tid.s(view.getTraceId1(), view.getTraceId2(), view.getSpanId()))) {
+                    batch[n[0]++] = tst;
+                    if (n[0] == BATCH_SIZE) {
+                        submit(tasks, s, newer, crossing, Arrays.copyOf(batch, n[0]), window);
+                        n[0] = 0;
+                    }
+                }
+                return !cancelled;
+            });
+
+            if (n[0] > 0) submit(tasks, s, newer, crossing, Arrays.copyOf(batch, n[0]), window);
+        }
+
+        while (!tasks.isEmpty()) {
+            tasks.poll().join();
+        }
+    }
+
+
+    /**
+     * Forks task decoding batch of chunks of given store. Oldest tasks are joined when too many are pending,
+     * so search does not run too far ahead of decoding.
+     */
+    private void submit(Deque<ForkJoinTask<?>> tasks, SimpleTraceStore s, SimpleTraceStore newer,
+                        Set<Tid> crossing, long[] tstamps, int window) {
+        tasks.add(ForkJoinTask.adapt(() -> process(s, newer, crossing, tstamps)).fork());
+        while (tasks.size() > window) {
+            tasks.poll().join();
+        }
+    }
+
+
+    /**
+     * Decodes spans of given chunks. Chunks of a span are normally looked up in the same store. Only spans
+     * that might continue across store rotation are looked up in all stores, and only once.
+     */
+    private void process(SimpleTraceStore s, SimpleTraceStore newer, Set<Tid> crossing, long[] tstamps) {
+        Accumulator acc = accumulators.computeIfAbsent(Thread.currentThread(), t -> new Accumulator());
+        StatsRetriever rtr = new StatsRetriever(acc);
+        ChunkMetadataView view = new ChunkMetadataView();
+        List<ChunkMetadata> chunks = new ArrayList<>();
+
+        synchronized (acc) {
+            for (long tst : tstamps) {
+                if (cancelled) return;
+                if (!s.getChunkMetadata(tst, view)) continue;
+                Tid t = Tid.s(view.getTraceId1(), view.getTraceId2(), view.getSpanId());
+                chunks.clear();
+                s.getChunks(t, chunks);
+                if (chunks.isEmpty()) continue;
+                chunks.sort(Comparator.comparingInt(ChunkMetadata::getChunkNum));
+                if (chunks.get(0).getChunkNum() != 0 || (newer != null && newer.getSummary().mayContain(t))) {
+                    if (!crossing.add(t)) continue;
+                    chunks = store.getChunks(t);
+                }
+                rtr.clear();
+                for (int i = 0; i < chunks.size(); i++) {
+                    ChunkMetadata c = chunks.get(i);
+                    rtr.storeId = (int)c.getStore().getStoreId();
+                    c.getStore().retrieveChunk(c, i == 0 ? c.getStartOffs() : -1, rtr);
+                }
+                rtr.commit();
+                traces.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Returns statistics gathered so far (most time consuming methods first).
+     */
+    public List<TraceStatsResultItem> snapshot() {
+        Map<Integer,SimpleTraceStore> byId = new HashMap<>();
+        for (SimpleTraceStore s : stores) {
+            byId.put((int)s.getStoreId(), s);
+        }
+
+        Map<String,TraceStatsResultItem> merged = new HashMap<>();
+
+        for (Accumulator acc : accumulators.values()) {
+            synchronized (acc) {
+                for (int i = 0; i < acc.keys.length; i++) {
+                    if (acc.recs[i] == 0) continue;
+                    int storeId = (int)(acc.keys[i] >>> 32), mid = (int)acc.keys[i];
+                    SimpleTraceStore s = byId.get(storeId);
+                    String method = s != null ? s.getTextIndex().resolve(mid) : null;
+                    if (method == null) method = "#" + storeId + ":" + mid;
+                    TraceStatsResultItem itm = merged.computeIfAbsent(method, m -> new TraceStatsResultItem(mid, m));
+                    itm.add(acc.recs[i], acc.errors[i], acc.sum[i], acc.min[i], acc.max[i]);
+                }
+            }
+        }
+
+        List<TraceStatsResultItem> rslt = new ArrayList<>(merged.values());
+        rslt.sort(Comparator.comparingLong(TraceStatsResultItem::getSumDuration).reversed());
+        return rslt;
+    }
+
+
+    /**
+     * Waits for aggregation to finish and returns final results.
+     */
+    public List<TraceStatsResultItem> getResults() {
+        if (task == null) start();
+        task.join();
+        return snapshot();
+    }
+
+
+    public boolean isDone() {
+        ForkJoinTask<?> t = task;
+        return t != null && t.isDone();
+    }
+
+
+    /**
+     * Stops aggregation. Results gathered so far are still available.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+
+    /**
+     * Returns number of traces (spans) processed so far.
+     */
+    public long getTraceCount() {
+        return traces.get();
+    }
+
+
+    /**
+     * Per thread statistics table: open addressing hash table keyed by (storeId, mid) with statistics
+     * kept in parallel primitive arrays. Slots with zero record count are empty.
+     */
+    private static class Accumulator {
+        private long[] keys;
+        private int[] recs, errors;
+        private long[] sum, min, max;
+        private int size;
+
+        private Accumulator() {
+            alloc(256);
+        }
+
+        private void alloc(int n) {
+            keys = new long[n];
+            recs = new int[n];
+            errors = new int[n];
+            sum = new long[n];
+            min = new long[n];
+            max = new long[n];
+        }
+
+        private int slot(long key) {
+            int m = keys.length - 1;
+            for (int i = (int)((key * 0x9E3779B97F4A7C15L) >>> 40) & m; ; i = (i + 1) & m) {
+                if (recs[i] == 0 || keys[i] == key) return i;
+            }
+        }
+
+        private void add(long key, long dur, boolean err) {
+            int i = slot(key);
+            if (recs[i] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    i = slot(key);
+                }
+                keys[i] = key;
+                min[i] = Long.MAX_VALUE;
+                size++;
+            }
+            recs[i]++;
+            if (err) errors[i]++;
+            sum[i] += dur;
+            min[i] = Math.min(min[i], dur);
+            max[i] = Math.max(max[i], dur);
+        }
+
+        private void grow() {
+            long[] k0 = keys, s0 = sum, n0 = min, x0 = max;
+            int[] r0 = recs, e0 = errors;
+            alloc(keys.length * 2);
+            for (int j = 0; j < k0.length; j++) {
+                if (r0[j] == 0) continue;
+                int i = slot(k0[j]);
+                keys[i] = k0[j];
+                recs[i] = r0[j];
+                errors[i] = e0[j];
+                sum[i] = s0[j];
+                min[i] = n0[j];
+                max[i] = x0[j];
+            }
+        }
+    }
+
+
+    /**
+     * Lightweight retriever that does not reconstruct call tree, only tracks method, start, stop
+     * and flags of records on current path and passes finished records to accumulator.
+     */
+    private static class StatsRetriever implements TraceDataRetriever<Object>, StreamingDataProcessor {
+
+        private final Accumulator acc;
+
+        private int storeId;
+
+        private int depth;
+        private long[] tstarts = new long[64], tstops = new long[64], keys = new long[64];
+        private int[] flags = new int[64];
+
+        private StatsRetriever(Accumulator acc) {
+            this.acc = acc;
+        }
+
+        @Override
+        public void traceStart(int pos) {
+            if (depth == keys.length) {
+                int n = depth * 2;
+                tstarts = Arrays.copyOf(tstarts, n);
+                tstops = Arrays.copyOf(tstops, n);
+                keys = Arrays.copyOf(keys, n);
+                flags = Arrays.copyOf(flags, n);
+            }
+            tstarts[depth] = 0;
+            tstops[depth] = 0;
+            keys[depth] = ((long)storeId) << 32;
+            flags[depth] = 0;
+            depth++;
+        }
+
+        @Override
+        public void traceEnd() {
+            if (depth == 0) return;
+            depth--;
+            acc.add(keys[depth], tstops[depth] - tstarts[depth], 0 != (flags[depth] & TF_ERROR_MARK));
+        }
+
+        @Override
+        public void traceInfo(int k, long v) {
+            if (depth == 0) return;
+            int d = depth - 1;
+            switch (k) {
+                case TI_TSTART:
+                    tstarts[d] = v;
+                    break;
+                case TI_TSTOP:
+                    tstops[d] = v;
+                    break;
+                case TI_METHOD:
+                    // Method IDs are local to text index of store chunk comes from
+                    keys[d] = (((long)storeId) << 32) | (v & 0xffffffffL);
+                    break;
+                case TI_FLAGS:
+                    flags[d] = (int)v;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void attrStart(int size) {
+        }
+
+        @Override
+        public void attrRef(int id) {
+        }
+
+        @Override
+        public void attrLong(long v) {
+        }
+
+        @Override
+        public void attrBool(boolean v) {
+        }
+
+        @Override
+        public void attrNull() {
+        }
+
+        @Override
+        public void attrValue(Object v) {
+        }
+
+        @Override
+        public void attrEnd() {
+        }
+
+        @Override
+        public void exceptionRef(int ref) {
+        }
+
+        @Override
+        public void exception(ExceptionData ex) {
+        }
+
+        @Override
+        public void commit() {
+            while (depth > 0) {
+                traceEnd();
+            }
+        }
+
+        @Override
+        public void setResolver(StructuredTextIndex resolver) {
+        }
+
+        @Override
+        public void clear() {
+            depth = 0;
+        }
+
+        @Override
+        public Object getResult() {
+            return null;
+        }
+
+        @Override
+        public void setReader(TraceDataReader reader) {
+        }
+    }
+}
@@ -16,6 +16,22 @@ public class TraceStatsResultItem {
         add(tr);
     }
 
+    public TraceStatsResultItem(int mid, String method) {
+        this.mid = mid;
+        this.method = method;
+    }
+
+    /**
+     * Merges partial statistics of the same method.
+     */
+    public void add(int recs, int errors, long sumDuration, long minDuration, long maxDuration) {
+        this.recs += recs;
+        this.errors += errors;
+        this.sumDuration += sumDuration;
+        this.minDuration = Math.min(this.minDuration, minDuration);
+        this.maxDuration = Math.max(this.maxDuration, maxDuration);
+    }
+
     public void add(TraceRecord tr) {
         this.recs++;
         this.sumDuration += tr.getDuration();
@@ -1,16 +1,41 @@
 package io.zorka.tdb.store;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 public interface TraceStore extends Closeable {
 
-    void handleTraceData(String sessionUUID, byte[] data, ChunkMetadata md);
+    /**
+     * Ingests trace data read straight from given buffer (heap, direct or mapped), from its position to limit.
+     * Data is fully processed before method returns, so buffer can be reused afterwards.
+     */
+    void handleTraceData(String sessionUUID, ByteBuffer data, ChunkMetadata md);
 
-    void handleAgentData(String sessionUUID, boolean reset, byte[] data);
+    void handleAgentData(String sessionUUID, boolean reset, ByteBuffer data);
+
+    default void handleTraceData(String sessionUUID, byte[] data, ChunkMetadata md) {
+        handleTraceData(sessionUUID, ByteBuffer.wrap(data), md);
+    }
+
+    default void handleAgentData(String sessionUUID, boolean reset, byte[] data) {
+        handleAgentData(sessionUUID, reset, ByteBuffer.wrap(data));
+    }
 
     void open();
 
     long getTstart();
 
     long getTstop();
+
+    /**
+     * Returns streaming search cursor.
+     *
+     * @param query search query
+     * @param token continuation token returned by previous cursor (or null to start new search)
+     */
+    TraceSearchCursor searchCursor(TraceSearchQuery query, TraceSearchToken token);
+
+    default TraceSearchCursor searchCursor(TraceSearchQuery query) {
+        return searchCursor(query, null);
+    }
 }
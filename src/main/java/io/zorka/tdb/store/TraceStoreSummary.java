@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.text.StructuredTextIndex;
+import io.zorka.tdb.util.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Compact summary of a single trace store: timestamp range, maximum duration, error count and
+ * Bloom filters over attribute key/value pairs and trace IDs. It is kept in memory, persisted in
+ * store directory (next to meta.db) and used to skip stores that cannot contain search results.
+ */
+public class TraceStoreSummary {
+
+    private static final Logger log = LoggerFactory.getLogger(TraceStoreSummary.class);
+
+    public static final String FILE_NAME = "summary.dat";
+
+    private static final int MAGIC = 0x5a535330;
+
+    private static final int ATTR_BITS = 1 << 20;
+    private static final int TRACE_BITS = 1 << 23;
+    private static final int NHASH = 4;
+
+    private long minTstamp = Long.MAX_VALUE, maxTstamp = Long.MIN_VALUE;
+    private long maxDuration;
+    private long errorCount;
+    private long chunkCount;
+
+    private final BloomFilter attrs;
+    private final BloomFilter traces;
+
+
+    public TraceStoreSummary() {
+        this(new BloomFilter(ATTR_BITS, NHASH), new BloomFilter(TRACE_BITS, NHASH));
+    }
+
+
+    private TraceStoreSummary(BloomFilter attrs, BloomFilter traces) {
+        this.attrs = attrs;
+        this.traces = traces;
+    }
+
+
+    /**
+     * Adds chunk to summary.
+     *
+     * @param cm chunk metadata (with final tstamp)
+     * @param itext text index used to resolve attribute keys and values
+     */
+    public synchronized void add(ChunkMetadata cm, StructuredTextIndex itext) {
+        chunkCount++;
+        minTstamp = Math.min(minTstamp, cm.getTstamp());
+        maxTstamp = Math.max(maxTstamp, cm.getTstamp());
+        maxDuration = Math.max(maxDuration, cm.getDuration());
+        if (cm.hasError()) errorCount++;
+
+        traces.add(BloomFilter.hash(cm.getTraceId1(), cm.getTraceId2()));
+
+        if (cm.getSattrs() != null) {
+            for (Map.Entry<Integer,Integer> e : cm.getSattrs().entrySet()) {
+                String k = itext.resolve(e.getKey()), v = itext.resolve(e.getValue());
+                if (k != null && v != null) {
+                    attrs.add(BloomFilter.hash(k, v));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns false if store certainly contains no chunks matching given query.
+     */
+    public synchronized boolean mayMatch(TraceSearchQuery query) {
+        if (chunkCount == 0) return false;
+        if (maxTstamp < query.getMinTstamp() || minTstamp >= query.getMaxTstamp()) return false;
+        if (maxDuration < query.getMinDuration()) return false;
+        if (query.hasErrorsOnly() && errorCount == 0) return false;
+
+        for (Map.Entry<String,String> e : query.getAttrMatches().entrySet()) {
+            if (!attrs.mightContain(BloomFilter.hash(e.getKey(), e.getValue()))) return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns false if store certainly contains no chunks of given trace.
+     */
+    public synchronized boolean mayContain(Tid tid) {
+        return chunkCount > 0 && traces.mightContain(BloomFilter.hash(tid.t1, tid.t2));
+    }
+
+
+    public synchronized void save(File f) {
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MAGIC);
+            os.writeLong(minTstamp);
+            os.writeLong(maxTstamp);
+            os.writeLong(maxDuration);
+            os.writeLong(errorCount);
+            os.writeLong(chunkCount);
+            write(os, attrs);
+            write(os, traces);
+        } catch (IOException e) {
+            throw new ZicoException("Cannot write store summary: " + f, e);
+        }
+        if (!tmp.renameTo(f)) {
+            throw new ZicoException("Cannot rename " + tmp + " to " + f);
+        }
+    }
+
+
+    private static void write(DataOutputStream os, BloomFilter bf) throws IOException {
+        long[] bits = bf.getBits();
+        os.writeInt(bf.getNhash());
+        os.writeInt(bits.length);
+        for (long l : bits) {
+            os.writeLong(l);
+        }
+    }
+
+
+    private static BloomFilter read(DataInputStream is) throws IOException {
+        int nhash = is.readInt();
+        long[] bits = new long[is.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = is.readLong();
+        }
+        return new BloomFilter(bits, nhash);
+    }
+
+
+    /**
+     * Loads summary from file.
+     *
+     * @return summary or null if file does not exist or is not readable
+     */
+    public static TraceStoreSummary load(File f) {
+        if (!f.exists()) return null;
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (is.readInt() != MAGIC) {
+                log.warn("Invalid store summary file: " + f + " (will be rebuilt)");
+                return null;
+            }
+            long minTstamp = is.readLong(), maxTstamp = is.readLong(), maxDuration = is.readLong();
+            long errorCount = is.readLong(), chunkCount = is.readLong();
+            TraceStoreSummary s = new TraceStoreSummary(read(is), read(is));
+            s.minTstamp = minTstamp;
+            s.maxTstamp = maxTstamp;
+            s.maxDuration = maxDuration;
+            s.errorCount = errorCount;
+            s.chunkCount = chunkCount;
+            return s;
+        } catch (Exception e) {
+            log.warn("Cannot read store summary file: " + f + " (will be rebuilt)", e);
+            return null;
+        }
+    }
+
+
+    public synchronized long getMinTstamp() {
+        return minTstamp;
+    }
+
+    public synchronized long getMaxTstamp() {
+        return maxTstamp;
+    }
+
+    public synchronized long getMaxDuration() {
+        return maxDuration;
+    }
+
+    public synchronized long getErrorCount() {
+        return errorCount;
+    }
+
+    public synchronized long getChunkCount() {
+        return chunkCount;
+    }
+}
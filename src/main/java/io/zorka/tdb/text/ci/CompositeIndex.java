@@ -17,6 +17,7 @@
 package io.zorka.tdb.text.ci;
 
 
+import io.zorka.tdb.ZicoException;
 import io.zorka.tdb.text.AbstractTextIndex;
 import io.zorka.tdb.text.TextIndex;
 import io.zorka.tdb.text.WritableTextIndex;
@@ -109,19 +110,15 @@ public class CompositeIndex extends AbstractTextIndex implements WritableTextInd
 
 
     private int runMergeCycle() {
-        int tasksDone = 0;
         List<TextIndex> midx = findMergeCoalescing(getCState().getAllIndexes());
-
-        if (midx != null) {
-            try {
-                log.debug("Merging indexes: " + midx);
-                changeState(store.mergeIndex(midx), true);
-                tasksDone++;
-            } catch (Exception e) {
-                log.error("Error merging indexes " + midx, e);
-            }
+        if (midx == null) return 0;
+        try {
+            mergeIndexes(midx);
+            return 1;
+        } catch (ZicoException e) {
+            log.error("Error merging indexes " + midx, e);
+            return 0;
         }
-        return tasksDone;
     }
 
 
@@ -129,10 +126,9 @@ public class CompositeIndex extends AbstractTextIndex implements WritableTextInd
         int tasksDone = 0;
         for (TextIndex idx : findCompressIndexes(getCState().getAllIndexes(), archived)) {
             try {
-                log.debug("Compressing index: " + idx);
-                changeState(store.compressIndex(idx), true);
+                compressIndex(idx);
                 tasksDone++;
-            } catch (Exception e) {
+            } catch (ZicoException e) {
                 log.error("Error compressing index " + idx, e);
             }
         }
@@ -140,28 +136,138 @@ public class CompositeIndex extends AbstractTextIndex implements WritableTextInd
     }
 
 
-    private void runRemovalCycle() {
+    private int runRemovalCycle() {
         List<TextIndex> idxs = getCState().getAllIndexes();
+        int tasksDone = 0;
 
         for (TextIndex idx : findRemoveFmIndexes(idxs)) {
-            removeIndex(idx);
+            if (removeIndex(idx)) tasksDone++;
         }
 
         List<TextIndex> removeWals = findRemoveWalIndexes(idxs);
         for (TextIndex idx : removeWals) {
-            removeIndex(idx);
+            if (removeIndex(idx)) tasksDone++;
+        }
+
+        return tasksDone;
+    }
+
+
+    /**
+     * Returns number of bytes read and written.
+     */
+    private long compressIndex(TextIndex idx) {
+        try {
+            log.debug("Compressing index: " + idx);
+            long len = idx.length();
+            TextIndex cidx = store.compressIndex(idx);
+            changeState(cidx, true);
+            return len + cidx.length();
+        } catch (ZicoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ZicoException("Error compressing index " + idx, e);
+        }
+    }
+
+
+    /**
+     * Returns number of bytes read and written.
+     */
+    private long mergeIndexes(List<TextIndex> midx) {
+        try {
+            log.debug("Merging indexes: " + midx);
+            long len = 0;
+            for (TextIndex idx : midx) {
+                len += idx.length();
+            }
+            TextIndex m = store.mergeIndex(midx);
+            changeState(m, true);
+            return len + m.length();
+        } catch (ZicoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ZicoException("Error merging indexes " + midx, e);
+        }
+    }
+
+
+    public boolean needsCompression() {
+        return !findCompressIndexes(getCState().getAllIndexes(), archived).isEmpty();
+    }
+
+
+    public boolean needsMerge() {
+        return findMergeCoalescing(getCState().getAllIndexes()) != null;
+    }
+
+
+    public boolean needsRemoval() {
+        List<TextIndex> idxs = getCState().getAllIndexes();
+        return !findRemoveFmIndexes(idxs).isEmpty() || !findRemoveWalIndexes(idxs).isEmpty();
+    }
+
+
+    /**
+     * Compresses single WAL index (if there is any to compress). Used by maintenance scheduler,
+     * so that compressions, merges and removals can be scheduled (and throttled) separately.
+     *
+     * @return number of bytes read and written or -1 if nothing has been done
+     * @throws ZicoException if compression failed
+     */
+    public long runCompressTask() {
+        if (!mlock.tryLock()) return -1;
+        try {
+            List<TextIndex> idxs = findCompressIndexes(getCState().getAllIndexes(), archived);
+            return idxs.isEmpty() ? -1 : compressIndex(idxs.get(0));
+        } finally {
+            mlock.unlock();
+        }
+    }
+
+
+    /**
+     * Performs single merge (if there are indexes to merge).
+     *
+     * @return number of bytes read and written or -1 if nothing has been done
+     * @throws ZicoException if merge failed
+     */
+    public long runMergeTask() {
+        if (!mlock.tryLock()) return -1;
+        try {
+            List<TextIndex> midx = findMergeCoalescing(getCState().getAllIndexes());
+            return midx != null ? mergeIndexes(midx) : -1;
+        } finally {
+            mlock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes indexes superseded by compressed or merged ones.
+     *
+     * @return number of removed indexes
+     */
+    public int runRemovalTask() {
+        if (!mlock.tryLock()) return 0;
+        try {
+            return runRemovalCycle();
+        } finally {
+            mlock.unlock();
         }
     }
 
 
-    private void removeIndex(TextIndex idx) {
+    private boolean removeIndex(TextIndex idx) {
         try {
             log.debug("Removing index file: " + idx);
             changeState(idx, false);
             idx.close();
             store.removeIndex(idx);
+            return true;
         } catch (Exception e) {
             log.error("Cannot remove index " + idx + ". Will try again.", e);
+            return false;
         }
     }
 
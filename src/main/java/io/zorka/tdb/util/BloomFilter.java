@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.util;
+
+import io.zorka.tdb.ZicoException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Simple Bloom filter over 64-bit hashes. Bit positions are derived from upper and
+ * lower halves of hash (double hashing), so callers should pass well mixed hashes.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int nhash;
+    private final int mask;
+
+
+    /**
+     * @param nbits number of bits (must be power of 2)
+     * @param nhash number of hash functions
+     */
+    public BloomFilter(int nbits, int nhash) {
+        this(new long[Math.max(1, nbits >>> 6)], nhash);
+    }
+
+
+    public BloomFilter(long[] bits, int nhash) {
+        if (Integer.bitCount(bits.length) != 1) {
+            throw new ZicoException("Bloom filter size must be power of 2: " + bits.length);
+        }
+        this.bits = bits;
+        this.nhash = nhash;
+        this.mask = (bits.length << 6) - 1;
+    }
+
+
+    public void add(long hash) {
+        int h1 = (int)hash, h2 = (int)(hash >>> 32);
+        for (int i = 0; i < nhash; i++) {
+            int b = (h1 + i * h2) & mask;
+            bits[b >>> 6] |= 1L << (b & 63);
+        }
+    }
+
+
+    public boolean mightContain(long hash) {
+        int h1 = (int)hash, h2 = (int)(hash >>> 32);
+        for (int i = 0; i < nhash; i++) {
+            int b = (h1 + i * h2) & mask;
+            if (0 == (bits[b >>> 6] & (1L << (b & 63)))) return false;
+        }
+        return true;
+    }
+
+
+    public long[] getBits() {
+        return bits;
+    }
+
+
+    public int getNhash() {
+        return nhash;
+    }
+
+
+    /** Final mixing step of MurmurHash3 (64-bit). */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    public static long hash(long a, long b) {
+        return mix(mix(a) * 31 + b);
+    }
+
+
+    public static long hash(String s) {
+        long h = 1125899906842597L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = 31 * h + b;
+        }
+        return mix(h);
+    }
+
+
+    public static long hash(String a, String b) {
+        return hash(hash(a), hash(b));
+    }
+}
@@ -18,6 +18,8 @@ package io.zorka.tdb.util;
 
 import io.zorka.tdb.ZicoException;
 
+import java.nio.ByteBuffer;
+
 import static io.zorka.tdb.util.BitUtils.UNSAFE;
 import static io.zorka.tdb.util.BitUtils.BYTE_ARRAY_OFFS;
 
@@ -30,27 +32,70 @@ public class CborBufReader {
 
     private Object obj = null;
 
+    /** Keeps memory region read by this reader reachable (eg. mapped file buffer). */
+    private Object owner = null;
+
     private long addr, end;
     private long pos;
 
     // TODO implement safe version of this reader, merge with CborDataReader
 
     public CborBufReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    public CborBufReader(byte[] buf, int offs, int len) {
+        if (offs < 0 || len < 0 || offs + len > buf.length) {
+            throw new ZicoException("Illegal buffer range: offs=" + offs + ", len=" + len);
+        }
         this.obj = buf;
-        this.addr = BYTE_ARRAY_OFFS;
-        this.end = this.addr + buf.length;
+        this.addr = BYTE_ARRAY_OFFS + offs;
+        this.end = this.addr + len;
+        this.pos = addr;
+    }
+
+    /**
+     * Creates reader over direct memory region.
+     *
+     * @param owner object owning memory region (eg. mapped byte buffer), must be kept reachable
+     * @param addr  memory region address
+     * @param len   memory region length
+     */
+    public CborBufReader(Object owner, long addr, int len) {
+        this.owner = owner;
+        this.addr = addr;
+        this.end = addr + len;
+        this.pos = addr;
+    }
+
+    /**
+     * Creates reader over remaining bytes of a buffer (from position to limit) without copying them.
+     * Both heap and direct (eg. mapped or pooled) buffers are supported. Buffer position is not changed.
+     * Read only heap buffers do not expose their arrays, so their remaining bytes are copied.
+     */
+    public CborBufReader(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            this.obj = buf.array();
+            this.addr = BYTE_ARRAY_OFFS + buf.arrayOffset() + buf.position();
+        } else if (buf.isDirect()) {
+            this.owner = buf;
+            this.addr = BitUtils.addr(buf) + buf.position();
+        } else {
+            byte[] b = new byte[buf.remaining()];
+            buf.duplicate().get(b);
+            this.obj = b;
+            this.addr = BYTE_ARRAY_OFFS;
+        }
+        this.end = this.addr + buf.remaining();
         this.pos = addr;
     }
 
     public byte[] getRawBytes() {
-        if (obj instanceof byte[]) {
+        if (obj instanceof byte[] && addr == BYTE_ARRAY_OFFS && end - addr == ((byte[])obj).length) {
             return (byte[])obj;
         } else {
-            int len = (int) (end - addr);
-            byte[] rslt = new byte[len];
-            for (int i = 0; i < len; i++) {
-                rslt[i] = UNSAFE.getByte(addr+i);
-            }
+            byte[] rslt = new byte[(int)(end - addr)];
+            UNSAFE.copyMemory(obj, addr, rslt, BYTE_ARRAY_OFFS, rslt.length);
             return rslt;
         }
     }
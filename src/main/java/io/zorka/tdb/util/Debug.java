@@ -18,7 +18,7 @@ package io.zorka.tdb.util;
 
 public class Debug {
 
-    public final static boolean TRACE_ENABLED = true;
+    public final static boolean TRACE_ENABLED = false;
 
     public static void trace(String component, String msg) {
 
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.util;
+
+import io.zorka.tdb.ZicoException;
+
+/**
+ * Token bucket rate limiter. Tokens are charged after the fact (when amount is known), so bucket
+ * can go into debt: next caller waits until debt is paid off. This limits average rate even when
+ * single operations are bigger than bucket capacity.
+ */
+public class TokenBucket {
+
+    /** Tokens per second */
+    private final long rate;
+
+    private final long capacity;
+
+    private double tokens;
+
+    private long last;
+
+
+    /**
+     * @param rate tokens added per second
+     * @param capacity maximum number of accumulated tokens (burst size)
+     */
+    public TokenBucket(long rate, long capacity) {
+        if (rate <= 0 || capacity < 0) {
+            throw new ZicoException("Invalid token bucket parameters: rate=" + rate + ", capacity=" + capacity);
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+
+    private void refill(long now) {
+        if (now > last) {
+            tokens = Math.min(capacity, tokens + (now - last) * (double)rate / 1e9);
+            last = now;
+        }
+    }
+
+
+    /**
+     * Charges tokens used.
+     */
+    public synchronized void charge(long n, long now) {
+        refill(now);
+        tokens -= n;
+    }
+
+
+    public void charge(long n) {
+        charge(n, System.nanoTime());
+    }
+
+
+    /**
+     * Returns time (nanoseconds) caller has to wait until bucket is out of debt.
+     */
+    public synchronized long delay(long now) {
+        refill(now);
+        return tokens >= 0 ? 0 : (long)Math.ceil(-tokens * 1e9 / rate);
+    }
+
+
+    /**
+     * Waits until bucket is out of debt.
+     *
+     * @return time spent waiting (nanoseconds)
+     */
+    public long await() throws InterruptedException {
+        long t0 = System.nanoTime();
+        for (long d = delay(t0); d > 0; d = delay(System.nanoTime())) {
+            Thread.sleep(d / 1000000, (int)(d % 1000000));
+        }
+        return System.nanoTime() - t0;
+    }
+
+
+    public synchronized double getTokens() {
+        return tokens;
+    }
+}
@@ -32,20 +32,44 @@ public class LZ4HCJavaSafeCompressor extends LZ4Compressor {
 
     public static final LZ4Compressor INSTANCE = new LZ4HCJavaSafeCompressor();
 
-    class HashTable {
+    /**
+     * Compressor state that can be reused between calls, so that no hash tables are allocated
+     * for each compressed block. Instances of this class are not thread-safe.
+     */
+    public static final class Context {
+        private final HashTable ht = new HashTable();
+        private final LZ4Utils.Match match0 = new LZ4Utils.Match();
+        private final LZ4Utils.Match match1 = new LZ4Utils.Match();
+        private final LZ4Utils.Match match2 = new LZ4Utils.Match();
+        private final LZ4Utils.Match match3 = new LZ4Utils.Match();
+
+        private void reset(int base) {
+            ht.reset(base);
+            match0.start = match0.ref = match0.len = 0;
+            match1.start = match1.ref = match1.len = 0;
+            match2.start = match2.ref = match2.len = 0;
+            match3.start = match3.ref = match3.len = 0;
+        }
+    }
+
+    static class HashTable {
         static final int MAX_ATTEMPTS = 256;
         static final int MASK = LZ4Utils.MAX_DISTANCE - 1;
         int nextToUpdate;
-        private final int base;
+        private int base;
         private final int[] hashTable;
         private final short[] chainTable;
 
-        HashTable(int base) {
+        HashTable() {
+            hashTable = new int[LZ4Utils.HASH_TABLE_SIZE_HC];
+            chainTable = new short[LZ4Utils.MAX_DISTANCE];
+        }
+
+        void reset(int base) {
             this.base = base;
             nextToUpdate = base;
-            hashTable = new int[LZ4Utils.HASH_TABLE_SIZE_HC];
             Arrays.fill(hashTable, -1);
-            chainTable = new short[LZ4Utils.MAX_DISTANCE];
+            Arrays.fill(chainTable, (short)0);
         }
 
         private int hashPointer(byte[] bytes, int off) {
@@ -154,6 +178,15 @@ public class LZ4HCJavaSafeCompressor extends LZ4Compressor {
     @Override
     public int compress(byte[] src, int srcOff, int srcLen, byte[] dest,
                         int destOff, int maxDestLen) {
+        return compress(src, srcOff, srcLen, dest, destOff, maxDestLen, new Context());
+    }
+
+    /**
+     * Same as {@link #compress(byte[], int, int, byte[], int, int)} but uses (and reuses) passed
+     * compressor state instead of allocating new one.
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest,
+                        int destOff, int maxDestLen, Context ctx) {
 
         final int srcEnd = srcOff + srcLen;
         final int destEnd = destOff + maxDestLen;
@@ -164,11 +197,13 @@ public class LZ4HCJavaSafeCompressor extends LZ4Compressor {
         int dOff = destOff;
         int anchor = sOff++;
 
-        final HashTable ht = new HashTable(srcOff);
-        final LZ4Utils.Match match0 = new LZ4Utils.Match();
-        final LZ4Utils.Match match1 = new LZ4Utils.Match();
-        final LZ4Utils.Match match2 = new LZ4Utils.Match();
-        final LZ4Utils.Match match3 = new LZ4Utils.Match();
+        final HashTable ht = ctx.ht;
+        final LZ4Utils.Match match0 = ctx.match0;
+        final LZ4Utils.Match match1 = ctx.match1;
+        final LZ4Utils.Match match2 = ctx.match2;
+        final LZ4Utils.Match match3 = ctx.match3;
+
+        ctx.reset(srcOff);
 
         main:
         while (sOff < mfLimit) {
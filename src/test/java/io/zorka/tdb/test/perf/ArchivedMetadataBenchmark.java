@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.test.perf;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.TestUtil;
+import org.mapdb.Fun;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares metadata of archived store kept in MapDB (meta.db) with compacted sorted tables (meta.sst):
+ * open time, random chunk metadata reads and attribute index scans. Disk footprint of benchmarked
+ * engine is reported as diskBytes secondary result of randomChunkRead.
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.ArchivedMetadataBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ArchivedMetadataBenchmark {
+
+    @Param({"mapdb", "sst"})
+    private String engine;
+
+    @Param({"200000"})
+    private int nchunks;
+
+    /** Reports disk footprint of benchmarked engine. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long diskBytes;
+    }
+
+    private File dir;
+    private long diskBytes;
+    private ChunkMetadataIndex index;
+    private long[] tstamps;
+    private final ChunkMetadataView view = new ChunkMetadataView();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "zico-bench-" + System.nanoTime());
+        if (!dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+        Random rand = new Random(42);
+        tstamps = new long[nchunks];
+        MapDbChunkMetadataIndex src = new MapDbChunkMetadataIndex(dir);
+        long tst = 1000000000L;
+        for (int i = 0; i < nchunks; i++) {
+            tst += 1 + rand.nextInt(1000);
+            tstamps[i] = tst;
+            ChunkMetadata cm = new ChunkMetadata(rand.nextLong(), rand.nextLong(), 0L, rand.nextLong(), 0);
+            cm.setTstamp(tst);
+            cm.setDuration(rand.nextInt(100000));
+            cm.setDataOffs(i * 4096L);
+            for (int j = 0; j < 4; j++) {
+                cm.getSattrs().put(10 + j, 100 + rand.nextInt(50));
+            }
+            cm.getNattrs().put(20 | ChunkMetadata.INT_TYPE, (long)rand.nextInt(1000));
+            src.add(tst, cm.getDuration(), ChunkMetadata.serialize(cm));
+            if (i % 10000 == 0) src.commit();
+        }
+        src.commit();
+
+        SortedChunkMetadataIndex.write(dir, src);
+        src.close();
+
+        if ("sst".equals(engine)) {
+            for (File f : new File(dir, SortedChunkMetadataIndex.DIR_NAME).listFiles()) {
+                diskBytes += f.length();
+            }
+        } else {
+            for (File f : dir.listFiles()) {
+                if (f.getName().startsWith(MapDbChunkMetadataIndex.FILE_NAME)) diskBytes += f.length();
+            }
+        }
+
+        index = open();
+    }
+
+    private ChunkMetadataIndex open() {
+        return "sst".equals(engine) ? new SortedChunkMetadataIndex(dir) : new MapDbChunkMetadataIndex(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        index.close();
+        TestUtil.rmrf(dir.getPath());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 5)
+    public long openAndFirstRead() throws IOException {
+        ChunkMetadataIndex idx = open();
+        try {
+            return idx.getChunk(idx.getTstamps().lastKey()).length;
+        } finally {
+            idx.close();
+        }
+    }
+
+    @Benchmark
+    public long randomChunkRead(Footprint fp) {
+        fp.diskBytes = diskBytes;
+        index.getChunk(tstamps[ThreadLocalRandom.current().nextInt(nchunks)], view);
+        return view.getDataOffs();
+    }
+
+    @Benchmark
+    public int attrScan() {
+        int key = 10 + ThreadLocalRandom.current().nextInt(4), val = 100 + ThreadLocalRandom.current().nextInt(50);
+        return index.getSattrs().subMap(Fun.t3(key, val, Long.MIN_VALUE), Fun.t3(key, val, Long.MAX_VALUE)).size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ArchivedMetadataBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.perf;
+
+import io.zorka.tdb.store.ChunkMetadata;
+import io.zorka.tdb.store.ChunkMetadataView;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.zorka.tdb.store.ChunkMetadata.INT_TYPE;
+
+/**
+ * Reads trace ID and duration of serialized chunk metadata (as search does for each hit): full
+ * deserialization of legacy CBOR and fixed layout records versus flyweight view over fixed layout.
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.ChunkMetadataCodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ChunkMetadataCodecBenchmark {
+
+    private byte[] cbor, fixed;
+
+    private final ChunkMetadataView view = new ChunkMetadataView();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ChunkMetadata cm = new ChunkMetadata(0x1234567890L, 0x9876543210L, 42L, 24L, 0);
+        cm.setTstamp(1500000000000000L);
+        cm.setDuration(12345L << 16);
+        cm.setDataOffs(1L << 30);
+        cm.setCalls(1000);
+        cm.setRecs(200);
+        for (int i = 0; i < 6; i++) {
+            cm.getSattrs().put(100 + i, 1000 + i);
+        }
+        cm.getNattrs().put(200 | INT_TYPE, 42L);
+        cbor = ChunkMetadata.serializeCbor(cm);
+        fixed = ChunkMetadata.serialize(cm);
+    }
+
+    @Benchmark
+    public long deserializeCbor() {
+        ChunkMetadata cm = ChunkMetadata.deserialize(cbor);
+        return cm.getTraceId1() ^ cm.getDuration();
+    }
+
+    @Benchmark
+    public long deserializeFixed() {
+        ChunkMetadata cm = ChunkMetadata.deserialize(fixed);
+        return cm.getTraceId1() ^ cm.getDuration();
+    }
+
+    @Benchmark
+    public long viewFixed() {
+        view.wrap(fixed);
+        return view.getTraceId1() ^ view.getDuration();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ChunkMetadataCodecBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
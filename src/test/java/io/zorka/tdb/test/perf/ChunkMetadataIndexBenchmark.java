@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.test.perf;
+
+import io.zorka.tdb.store.ChunkMetadata;
+import io.zorka.tdb.store.SimpleTraceStore;
+import io.zorka.tdb.test.support.TestUtil;
+import io.zorka.tdb.test.support.TraceTestDataBuilder.WireObj;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static io.zorka.tdb.store.ConfigProps.META_ENGINE;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+
+/**
+ * Compares trace ingest throughput of store with MapDB metadata index and append-only log metadata index.
+ * Each operation submits single trace (as in SubmitTraceUnitTest) and commits its chunk metadata.
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.ChunkMetadataIndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ChunkMetadataIndexBenchmark {
+
+    @Param({"mapdb", "log"})
+    private String engine;
+
+    /** Number of string attributes of each trace */
+    @Param({"2", "16"})
+    private int nattrs;
+
+    private File dir;
+    private SimpleTraceStore store;
+    private String sessnUUID;
+    private byte[] trace;
+    private long tid;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "zico-bench-" + System.nanoTime());
+        File root = new File(dir, "000001");
+        if (!root.mkdirs()) throw new IOException("Cannot create " + root);
+
+        Properties props = new Properties();
+        props.setProperty(META_ENGINE, engine);
+        store = new SimpleTraceStore(root, props, new HashMap<>());
+        store.open();
+
+        sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+
+        WireObj[] objs = new WireObj[nattrs + 1];
+        objs[0] = tb(1500, 1L);
+        for (int i = 0; i < nattrs; i++) {
+            objs[i + 1] = ta("K" + i, "V" + i);
+        }
+        trace = str(tr(true, mid(0, 0, 0), 100, 200, 1, objs)).get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        store.close();
+        TestUtil.rmrf(dir.getPath());
+    }
+
+    @Benchmark
+    public long ingest() {
+        tid++;
+        store.handleTraceData(sessnUUID, trace, new ChunkMetadata(tid, 24L, 0L, 1L, 0));
+        return tid;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ChunkMetadataIndexBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
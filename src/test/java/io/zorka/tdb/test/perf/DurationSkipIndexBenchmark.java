@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.perf;
+
+import io.zorka.tdb.store.DurationSkipIndex;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
+
+import static io.zorka.tdb.store.SimpleTraceStore.ERROR_BIT;
+
+/**
+ * Compares minimum duration / errors only scans over tstamps index of a store with millions of chunks:
+ * stepping chunk by chunk (as search did before) versus jumping over blocks using DurationSkipIndex.
+ * About 0.1% of chunks exceed duration threshold and 0.05% have errors.
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.DurationSkipIndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DurationSkipIndexBenchmark {
+
+    private static final long MIN_DURATION = 1000L << 16;
+
+    @Param({"2000000"})
+    private int nchunks;
+
+    private DB db;
+    private ConcurrentNavigableMap<Long,Long> tstamps;
+    private DurationSkipIndex skipIndex;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        db = DBMaker.newMemoryDB().transactionDisable().make();
+        tstamps = db.getTreeMap("tstamps.map");
+        skipIndex = new DurationSkipIndex();
+
+        Random rand = new Random(42);
+        long tst = 1000000000L;
+        for (int i = 0; i < nchunks; i++) {
+            tst += 1 + rand.nextInt(1000);
+            long dur = (rand.nextInt(1000) == 0 ? 1000 + rand.nextInt(10000) : rand.nextInt(1000)) << 16;
+            if (rand.nextInt(2000) == 0) dur |= ERROR_BIT;
+            tstamps.put(tst, dur);
+            skipIndex.add(tst, dur);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        db.close();
+    }
+
+    private int stepScan(long md, boolean ef) {
+        int n = 0;
+        for (Long tst = tstamps.lastKey(); tst != null; tst = tstamps.lowerKey(tst)) {
+            long dur = tstamps.get(tst);
+            if ((dur & ~ERROR_BIT) >= md && (!ef || 0 != (dur & ERROR_BIT))) n++;
+        }
+        return n;
+    }
+
+    private int skipScan(long md, boolean ef) {
+        int n = 0;
+        for (Long tst = tstamps.lastKey(); tst != null; ) {
+            long bound = skipIndex.floorCandidate(tst, md, ef);
+            if (bound != tst) {
+                tst = bound != Long.MIN_VALUE ? tstamps.lowerKey(bound) : null;
+                continue;
+            }
+            long dur = tstamps.get(tst);
+            if ((dur & ~ERROR_BIT) >= md && (!ef || 0 != (dur & ERROR_BIT))) n++;
+            tst = tstamps.lowerKey(tst);
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int minDurationStep() {
+        return stepScan(MIN_DURATION, false);
+    }
+
+    @Benchmark
+    public int minDurationSkip() {
+        return skipScan(MIN_DURATION, false);
+    }
+
+    @Benchmark
+    public int errorsOnlyStep() {
+        return stepScan(0, true);
+    }
+
+    @Benchmark
+    public int errorsOnlySkip() {
+        return skipScan(0, true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(DurationSkipIndexBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.perf;
+
+import io.zorka.tdb.store.RawTraceDataFile;
+import io.zorka.tdb.test.support.TestUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures chunk read throughput of RawTraceDataFile for increasing number of reader threads
+ * while a single writer thread keeps appending chunks (ingest). Read throughput should scale
+ * with number of readers as reads do not share any lock with each other nor with appends.
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.RawTraceDataFileBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawTraceDataFileBenchmark {
+
+    private static final int NCHUNKS = 4096;
+    private static final int CHUNK_SIZE = 16384;
+
+    private File dir;
+    private RawTraceDataFile file;
+    private long[] positions = new long[NCHUNKS];
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "zico-bench-" + System.nanoTime());
+        if (!dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+        file = new RawTraceDataFile(new File(dir, "traces.dat"), true);
+
+        // Moderately compressible data (similar to trace chunks)
+        Random rand = new Random(42);
+        chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte)(rand.nextInt(16) + 'A');
+        }
+
+        for (int i = 0; i < NCHUNKS; i++) {
+            positions[i] = file.write(chunk);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        file.close();
+        TestUtil.rmrf(dir.getPath());
+    }
+
+    private int read() {
+        return file.read(positions[ThreadLocalRandom.current().nextInt(NCHUNKS)]).size();
+    }
+
+    private long write() {
+        return file.write(chunk);
+    }
+
+    @Benchmark @Group("r1") @GroupThreads(1)
+    public int readers1() {
+        return read();
+    }
+
+    @Benchmark @Group("r1") @GroupThreads(1)
+    public long ingest1() {
+        return write();
+    }
+
+    @Benchmark @Group("r2") @GroupThreads(2)
+    public int readers2() {
+        return read();
+    }
+
+    @Benchmark @Group("r2") @GroupThreads(1)
+    public long ingest2() {
+        return write();
+    }
+
+    @Benchmark @Group("r4") @GroupThreads(4)
+    public int readers4() {
+        return read();
+    }
+
+    @Benchmark @Group("r4") @GroupThreads(1)
+    public long ingest4() {
+        return write();
+    }
+
+    @Benchmark @Group("r8") @GroupThreads(8)
+    public int readers8() {
+        return read();
+    }
+
+    @Benchmark @Group("r8") @GroupThreads(1)
+    public long ingest8() {
+        return write();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(RawTraceDataFileBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.perf;
+
+import io.zorka.tdb.store.RawTraceDataFile;
+import io.zorka.tdb.test.support.TestUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures allocation rate of chunk write and read paths of RawTraceDataFile. In steady state
+ * both paths should allocate (almost) nothing per operation (see gc.alloc.rate.norm).
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.RawTraceDataFileCodecBenchmark
+ * or via JMH runner with -prof gc option.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawTraceDataFileCodecBenchmark {
+
+    private static final int NCHUNKS = 256;
+    private static final int CHUNK_SIZE = 16384;
+
+    @Param({"0", "1", "2"})
+    private int compression;
+
+    private File dir;
+    private RawTraceDataFile file;
+    private long[] positions = new long[NCHUNKS];
+    private byte[] chunk;
+    private int idx;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "zico-bench-" + System.nanoTime());
+        if (!dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+        file = new RawTraceDataFile(new File(dir, "traces.dat"), true,
+            compression | RawTraceDataFile.CRC32_CHECKSUM);
+
+        // Moderately compressible data (similar to trace chunks)
+        Random rand = new Random(42);
+        chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte)(rand.nextInt(16) + 'A');
+        }
+
+        for (int i = 0; i < NCHUNKS; i++) {
+            positions[i] = file.write(chunk);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() throws IOException {
+        file.close();
+        TestUtil.rmrf(dir.getPath());
+    }
+
+    @Benchmark
+    public long write() {
+        return file.write(chunk);
+    }
+
+    @Benchmark
+    public int read() {
+        idx = (idx + 1) % NCHUNKS;
+        return file.read(positions[idx], true).size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(RawTraceDataFileCodecBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
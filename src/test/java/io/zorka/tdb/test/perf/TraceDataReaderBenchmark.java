@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.perf;
+
+import com.jitlogic.zorka.cbor.CborDataWriter;
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.util.CborBufReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.jitlogic.zorka.cbor.TraceInfoConstants.*;
+
+/**
+ * Decodes stored trace chunk with attributes on every record: map based StatelessDataProcessor
+ * (via adapter) versus primitive StreamingDataProcessor callbacks. Run with GC profiler to compare
+ * allocation per operation (gc.alloc.rate.norm).
+ *
+ * Run: java -cp target/test-classes:(test classpath) io.zorka.tdb.test.perf.TraceDataReaderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TraceDataReaderBenchmark {
+
+    @Param({"10000"})
+    private int nrecords;
+
+    private byte[] data;
+
+    /** Consumes attribute maps. */
+    private static class MapConsumer implements StatelessDataProcessor {
+        private final Blackhole bh;
+        private MapConsumer(Blackhole bh) { this.bh = bh; }
+        @Override public void traceStart(int pos) { bh.consume(pos); }
+        @Override public void traceEnd() { }
+        @Override public void traceInfo(int k, long v) { bh.consume(v); }
+        @Override public void attr(Map<Object, Object> data) { bh.consume(data); }
+        @Override public void exceptionRef(int ref) { }
+        @Override public void exception(ExceptionData ex) { }
+        @Override public void commit() { }
+    }
+
+    /** Consumes primitive attribute events. */
+    private static class EventConsumer implements StreamingDataProcessor {
+        private final Blackhole bh;
+        private EventConsumer(Blackhole bh) { this.bh = bh; }
+        @Override public void traceStart(int pos) { bh.consume(pos); }
+        @Override public void traceEnd() { }
+        @Override public void traceInfo(int k, long v) { bh.consume(v); }
+        @Override public void attrStart(int size) { bh.consume(size); }
+        @Override public void attrRef(int id) { bh.consume(id); }
+        @Override public void attrLong(long v) { bh.consume(v); }
+        @Override public void attrBool(boolean v) { bh.consume(v); }
+        @Override public void attrNull() { }
+        @Override public void attrValue(Object v) { bh.consume(v); }
+        @Override public void attrEnd() { }
+        @Override public void exceptionRef(int ref) { }
+        @Override public void exception(ExceptionData ex) { }
+        @Override public void commit() { }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        CborDataWriter w = new CborDataWriter(1024 * 1024, 1024 * 1024);
+        TraceDataWriter tdw = new TraceDataWriter(w);
+        tdw.traceStart(0);
+        for (int i = 0; i < nrecords; i++) {
+            tdw.traceStart(0);
+            tdw.traceInfo(TI_TSTART, 1000L + i);
+            tdw.traceInfo(TI_METHOD, i % 100);
+            Map<Object,Object> attrs = new HashMap<>();
+            attrs.put(new ObjectRef(1), new ObjectRef(100 + i % 50));
+            attrs.put(new ObjectRef(2), (long)i);
+            attrs.put(new ObjectRef(3), new ObjectRef(200 + i % 7));
+            attrs.put(new ObjectRef(4), i % 2 == 0);
+            tdw.attr(attrs);
+            tdw.traceInfo(TI_TSTOP, 1010L + i);
+            tdw.traceInfo(TI_CALLS, 1);
+            tdw.traceEnd();
+        }
+        tdw.traceEnd();
+        data = w.toByteArray();
+    }
+
+    @Benchmark
+    public void decodeMaps(Blackhole bh) {
+        new TraceDataReader(new CborBufReader(data), new MapConsumer(bh)).run();
+    }
+
+    @Benchmark
+    public void decodeEvents(Blackhole bh) {
+        new TraceDataReader(new CborBufReader(data), new EventConsumer(bh)).run();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TraceDataReaderBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -29,7 +29,9 @@ import org.junit.Before;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
 
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.agentData;
 import static org.junit.Assert.*;
 
 public class ZicoTestFixture {
@@ -122,17 +124,77 @@ public class ZicoTestFixture {
     }
 
 
-    protected RotatingTraceStore openRotatingStore() throws Exception {
-        File baseDir = new File(tmpDir, "store");
+    /**
+     * Opens rotating store in given directory.
+     *
+     * @param props configuration (property name, value pairs)
+     */
+    protected RotatingTraceStore openRotatingStore(File baseDir, String...props) {
         if (!baseDir.exists()) {
             assertTrue(baseDir.mkdirs());
         }
-        RotatingTraceStore store = new RotatingTraceStore(baseDir, new Properties(), indexerCache);
+        Properties p = new Properties();
+        for (int i = 0; i < props.length; i += 2) {
+            p.setProperty(props[i], props[i+1]);
+        }
+        RotatingTraceStore store = new RotatingTraceStore(baseDir, p, indexerCache);
         store.open();
         return store;
     }
 
 
+    protected RotatingTraceStore openRotatingStore(String...props) {
+        return openRotatingStore(new File(tmpDir, "store"), props);
+    }
+
+
+    /** Generates i-th trace of s-th store, starting at given clock. */
+    public interface TraceGen {
+        byte[] trace(int s, int i, int clock);
+    }
+
+
+    /**
+     * Submits ntraces traces to each of nstores stores (store is rotated between them). Trace i of store s
+     * starts at clock 1000 + s * step + i and is submitted as span with span ID equal to clock.
+     *
+     * @param traceId computes trace ID from clock
+     */
+    protected void populate(RotatingTraceStore store, int nstores, int ntraces, int step,
+                            IntUnaryOperator traceId, TraceGen gen) {
+        for (int s = 0; s < nstores; s++) {
+            String sessnUUID = UUID.randomUUID().toString();
+            store.handleAgentData(sessnUUID, true, agentData());
+            for (int i = 0; i < ntraces; i++) {
+                int clock = 1000 + s * step + i;
+                store.handleTraceData(sessnUUID, gen.trace(s, i, clock),
+                    md(traceId.applyAsInt(clock), 42L, 0, clock, 0));
+            }
+            if (s < nstores - 1) store.rotate();
+        }
+    }
+
+
+    protected void populate(RotatingTraceStore store, int nstores, int ntraces, TraceGen gen) {
+        populate(store, nstores, ntraces, 100, clock -> clock, gen);
+    }
+
+
+    public static List<Long> tstamps(List<ChunkMetadata> lst) {
+        List<Long> rslt = new ArrayList<>();
+        for (ChunkMetadata cm : lst) {
+            rslt.add(cm.getTstamp());
+        }
+        return rslt;
+    }
+
+
+    /** Returns timestamps of chunks found by offset/limit search. */
+    public static List<Long> search(RotatingTraceStore store, TraceSearchQuery query, int limit, int offset) {
+        return tstamps(store.searchChunks(query, limit, offset).getResults());
+    }
+
+
     protected SimpleTraceStore createSimpleStore(int id) throws Exception {
         File baseDir = new File(tmpDir, String.format("%06x", id));
         assertTrue(baseDir.mkdir());
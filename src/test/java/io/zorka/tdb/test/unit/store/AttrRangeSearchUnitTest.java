@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class AttrRangeSearchUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 2, NTRACES = 40;
+
+    private static final int[] STATUS = { 200, 201, 302, 404, 500 };
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 1 + i % 4, 1,
+            tb(clock, clock), ta("XXX", "V" + (i % 3), "STATUS", STATUS[i % 5], "OK", i % 2 == 0))).get(0));
+    }
+
+    private List<Long> search(RotatingTraceStore store, TraceSearchQuery query) {
+        return search(store, query.withSpansOnly(), 1000, 0);
+    }
+
+    private List<Long> expected(IntPredicate p) {
+        List<Long> rslt = new ArrayList<>();
+        for (int s = NSTORES - 1; s >= 0; s--) {
+            for (int i = NTRACES - 1; i >= 0; i--) {
+                if (p.test(i)) rslt.add((1000 + s * 100 + i) * 1000000L);
+            }
+        }
+        return rslt;
+    }
+
+    @Test
+    public void testNumericRangeQueries() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store);
+
+        assertEquals(expected(i -> STATUS[i % 5] >= 400),
+            search(store, new TraceSearchQuery().attrRange("STATUS", 400, 599)));
+
+        assertEquals(expected(i -> STATUS[i % 5] == 302),
+            search(store, new TraceSearchQuery().attrEquals("STATUS", 302)));
+
+        assertEquals(expected(i -> i % 2 == 0),
+            search(store, new TraceSearchQuery().attrEquals("OK", true)));
+
+        assertEquals(expected(i -> STATUS[i % 5] < 300 && i % 2 == 1 && i % 3 == 2),
+            search(store, new TraceSearchQuery().attrRange("STATUS", 0, 299).attrEquals("OK", false)
+                .attrMatch("XXX", "V2")));
+
+        assertEquals(expected(i -> STATUS[i % 5] == 500 && i % 4 == 3),
+            search(store, new TraceSearchQuery().attrEquals("STATUS", 500).setMinDuration(4L << 16)));
+
+        assertEquals(expected(i -> STATUS[i % 5] == 404).stream().filter(t -> t < 1130 * 1000000L)
+                .collect(Collectors.toList()),
+            search(store, new TraceSearchQuery().attrEquals("STATUS", 404).setMaxTstamp(1130 * 1000000L)
+                .setMinTstamp(1000 * 1000000L).setText("V")));
+
+        assertEquals(0, search(store, new TraceSearchQuery().attrEquals("STATUS", 999)).size());
+        assertEquals(0, search(store, new TraceSearchQuery().attrEquals("NONE", 1)).size());
+
+        store.close();
+    }
+
+    private static boolean matches(AttrRange r, double v) {
+        long bits = Double.doubleToLongBits(v);
+        for (long[] b : r.bounds()) {
+            if (bits >= b[0] && bits <= b[1]) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testDoubleRangeBounds() {
+        double[] vals = { -1e10, -30.0, -7.5, -6.0, -1.0, -0.0, 0.0, 1.5, 3.0, 20.0, 1e10 };
+        double[][] ranges = { { -6.0, 3.0 }, { -30.0, -7.5 }, { 1.5, 20.0 }, { 0.0, 0.0 }, { -0.0, 1.5 },
+            { -1e11, -1.0 }, { 3.0, -3.0 } };
+
+        for (double[] r : ranges) {
+            AttrRange ar = AttrRange.of("X", r[0], r[1]);
+            for (double v : vals) {
+                assertEquals(ar + " ? " + v, v >= r[0] && v <= r[1], matches(ar, v));
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static com.jitlogic.zorka.cbor.TraceRecordFlags.TF_ERROR_MARK;
+import static io.zorka.tdb.store.ChunkMetadata.*;
+import static io.zorka.tdb.store.ConfigProps.META_LEGACY_FORMAT;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class ChunkMetadataViewUnitTest extends ZicoTestFixture {
+
+    private static ChunkMetadata sample() {
+        ChunkMetadata cm = new ChunkMetadata(42L, -24L, 51L, 22L, 99);
+        cm.setFlags(TF_ERROR_MARK);
+        cm.setTstamp(1500000000L);
+        cm.setDuration(123L << 16);
+        cm.setDataOffs(1L << 40);
+        cm.setStartOffs(17);
+        cm.setStackDepth(3);
+        cm.setCalls(1000);
+        cm.setErrors(2);
+        cm.setRecs(50);
+        cm.setTstart(100);
+        cm.setTstop(-1);
+        cm.getSattrs().put(42, 24);
+        cm.getSattrs().put(7, 8);
+        cm.getNattrs().put(5 | INT_TYPE, -1L);
+        cm.getNattrs().put(6 | BOOL_TYPE, 1L);
+        return cm;
+    }
+
+    private static void assertSame(ChunkMetadata e, ChunkMetadataView v) {
+        assertEquals(e.getTraceId1(), v.getTraceId1());
+        assertEquals(e.getTraceId2(), v.getTraceId2());
+        assertEquals(e.getParentId(), v.getParentId());
+        assertEquals(e.getSpanId(), v.getSpanId());
+        assertEquals(e.getChunkNum(), v.getChunkNum());
+        assertEquals(e.getFlags(), v.getFlags());
+        assertEquals(e.hasError(), v.hasError());
+        assertEquals(e.getTstamp(), v.getTstamp());
+        assertEquals(e.getDuration(), v.getDuration());
+        assertEquals(e.getDataOffs(), v.getDataOffs());
+        assertEquals(e.getStartOffs(), v.getStartOffs());
+        assertEquals(e.getStackDepth(), v.getStackDepth());
+        assertEquals(e.getCalls(), v.getCalls());
+        assertEquals(e.getErrors(), v.getErrors());
+        assertEquals(e.getRecs(), v.getRecs());
+        assertEquals(e.getTstart(), v.getTstart());
+        assertEquals(e.getTstop(), v.getTstop());
+
+        ChunkMetadata m = v.toChunkMetadata();
+        assertEquals(e.getZeroLevel(), m.getZeroLevel());
+        assertEquals(e.getSattrs(), m.getSattrs());
+        assertEquals(e.getNattrs(), m.getNattrs());
+    }
+
+    @Test
+    public void testFixedLayoutRoundTrip() {
+        ChunkMetadata cm = sample();
+        byte[] b = ChunkMetadata.serialize(cm);
+        assertTrue(ChunkMetadataView.isFixedLayout(b));
+        assertEquals(ChunkMetadataView.size(2, 2), b.length);
+
+        ChunkMetadataView v = new ChunkMetadataView().wrap(b);
+        assertSame(cm, v);
+        assertEquals(2, v.getSattrCount());
+        assertEquals(7, v.getSattrKey(0));
+        assertEquals(8, v.getSattrValue(0));
+        assertEquals(2, v.getNattrCount());
+        assertEquals(6 | BOOL_TYPE, v.getNattrKey(0));
+        assertEquals(1L, v.getNattrValue(0));
+        assertEquals(5 | INT_TYPE, v.getNattrKey(1));
+        assertEquals(-1L, v.getNattrValue(1));
+
+        ChunkMetadata m = ChunkMetadata.deserialize(b);
+        assertEquals(cm.getSattrs(), m.getSattrs());
+        assertEquals(cm.getTstop(), m.getTstop());
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(b.length + 4);
+        bb.putInt(0xdeadbeef);
+        bb.put(b);
+        bb.position(4);
+        assertSame(cm, v.wrap(bb));
+        assertEquals(cm.getNattrs(), ChunkMetadata.deserialize(bb).getNattrs());
+    }
+
+    @Test
+    public void testLegacyFormatStillReadable() {
+        ChunkMetadata cm = sample();
+        byte[] b = ChunkMetadata.serializeCbor(cm);
+        assertFalse(ChunkMetadataView.isFixedLayout(b));
+        assertSame(cm, new ChunkMetadataView().wrap(b));
+        assertEquals(cm.getSattrs(), ChunkMetadata.deserialize(b).getSattrs());
+        assertSame(cm, new ChunkMetadataView().wrap(ByteBuffer.wrap(b)));
+
+        // The same view rewrapped over legacy and fixed layout records
+        ChunkMetadataView v = new ChunkMetadataView();
+        for (byte[] buf : new byte[][] { b, ChunkMetadata.serialize(cm), b }) {
+            v.wrap(buf);
+            assertEquals(2, v.getSattrCount());
+            assertEquals(7, v.getSattrKey(0));
+            assertEquals(24, v.getSattrValue(1));
+            assertEquals(5 | INT_TYPE, v.getNattrKey(1));
+            assertEquals(-1L, v.getNattrValue(1));
+            assertSame(cm, v);
+            assertEquals(cm.getSpanId(), v.getSpanId());
+        }
+    }
+
+    @Test
+    public void testSearchOverMixedFormats() throws Exception {
+        File baseDir = new File(tmpDir, "store");
+        assertTrue(baseDir.mkdirs());
+        String sessnUUID = UUID.randomUUID().toString();
+
+        // First store writes legacy records, second one (after reopening) fixed layout records
+        for (int i = 0; i < 2; i++) {
+            Properties props = new Properties();
+            props.setProperty(META_LEGACY_FORMAT, "" + (i == 0));
+            RotatingTraceStore store = new RotatingTraceStore(baseDir, props, indexerCache);
+            store.open();
+            store.handleAgentData(sessnUUID, true, agentData());
+            for (int j = 0; j < 5; j++) {
+                int clock = 1000 + i * 100 + j;
+                store.handleTraceData(sessnUUID, str(tr(true, mid(0, 0, 0), clock, clock + 10, 1,
+                    tb(clock, clock), ta("XXX", "V" + j % 2))).get(0), md(clock, 42L, 0, clock, 0));
+            }
+            store.close();
+        }
+
+        RotatingTraceStore store = new RotatingTraceStore(baseDir, new Properties(), indexerCache);
+        store.open();
+        List<ChunkMetadata> rslt = store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).getResults();
+        assertEquals(4, rslt.size());
+        for (ChunkMetadata cm : rslt) {
+            assertNotNull(cm.getStore());
+            assertNotNull(store.retrieve(Tid.s(cm.getTraceId1(), cm.getTraceId2(), cm.getSpanId()), rtr()));
+        }
+
+        assertEquals(9, store.searchChunks(new TraceSearchQuery(), 100, 1).size());
+        store.close();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.*;
+
+import static io.zorka.tdb.store.SimpleTraceStore.ERROR_BIT;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class DurationSkipIndexUnitTest extends ZicoTestFixture {
+
+    /** Walks map downwards the same way search context does, using skip index to jump over blocks. */
+    private static List<Long> skipScan(NavigableMap<Long,Long> tstamps, DurationSkipIndex si, long md, boolean ef) {
+        List<Long> rslt = new ArrayList<>();
+        for (Long tst = tstamps.lastKey(); tst != null; ) {
+            long bound = si.floorCandidate(tst, md, ef);
+            if (bound != tst) {
+                tst = bound != Long.MIN_VALUE ? tstamps.lowerKey(bound) : null;
+                continue;
+            }
+            long dur = tstamps.get(tst);
+            if ((dur & ~ERROR_BIT) >= md && (!ef || 0 != (dur & ERROR_BIT))) rslt.add(tst);
+            tst = tstamps.lowerKey(tst);
+        }
+        return rslt;
+    }
+
+    private static List<Long> bruteForce(NavigableMap<Long,Long> tstamps, long md, boolean ef) {
+        List<Long> rslt = new ArrayList<>();
+        for (Map.Entry<Long,Long> e : tstamps.descendingMap().entrySet()) {
+            long dur = e.getValue();
+            if ((dur & ~ERROR_BIT) >= md && (!ef || 0 != (dur & ERROR_BIT))) rslt.add(e.getKey());
+        }
+        return rslt;
+    }
+
+    @Test
+    public void testSkipScanMatchesBruteForce() {
+        Random rand = new Random(42);
+        TreeMap<Long,Long> tstamps = new TreeMap<>();
+        DurationSkipIndex si = new DurationSkipIndex();
+
+        for (int i = 0; i < 20000; i++) {
+            // Mostly ascending timestamps with some chunks arriving out of order
+            long tst = rand.nextInt(10) == 0 ? rand.nextInt(i * 10 + 1) : i * 10L;
+            if (tstamps.containsKey(tst)) continue;
+            long dur = rand.nextInt(1000) == 0 ? 1000 + rand.nextInt(1000) : rand.nextInt(100);
+            if (rand.nextInt(500) == 0) dur |= ERROR_BIT;
+            tstamps.put(tst, dur);
+            si.add(tst, dur);
+        }
+
+        assertTrue(si.size() < tstamps.size() / (DurationSkipIndex.BLOCK_SIZE / 2));
+
+        for (long md : new long[] { 0, 50, 1000, 1500, 5000 }) {
+            assertEquals(bruteForce(tstamps, md, false), skipScan(tstamps, si, md, false));
+            assertEquals(bruteForce(tstamps, md, true), skipScan(tstamps, si, md, true));
+        }
+
+        DurationSkipIndex si2 = DurationSkipIndex.build(tstamps);
+        assertEquals(bruteForce(tstamps, 1000, false), skipScan(tstamps, si2, 1000, false));
+    }
+
+    @Test
+    public void testMinDurationSearchWithSkipIndex() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        List<Long> expected = new ArrayList<>();
+
+        for (int s = 0; s < 2; s++) {
+            String sessnUUID = UUID.randomUUID().toString();
+            store.handleAgentData(sessnUUID, true, agentData());
+            for (int i = 0; i < 600; i++) {
+                int clock = 1000 + s * 1000 + i;
+                int dur = i % 97 == 0 ? 50 : 1;
+                byte[] trc = str(tr(true, mid(0, 0, 0), clock, clock + dur, 1, tb(clock, clock))).get(0);
+                store.handleTraceData(sessnUUID, trc, md(clock, 42L, 0, clock, 0));
+                if (dur == 50) expected.add(clock * 1000000L);
+            }
+            if (s == 0) store.rotate();
+        }
+
+        Collections.reverse(expected);
+
+        List<Long> rslt = new ArrayList<>();
+        for (ChunkMetadata cm : store.searchChunks(
+            new TraceSearchQuery().withSpansOnly().setMinDuration(10L << 16), 1000, 0).getResults()) {
+            rslt.add(cm.getTstamp());
+        }
+        assertEquals(expected, rslt);
+
+        rslt.clear();
+        for (ChunkMetadata cm : store.searchChunks(new TraceSearchQuery().withSpansOnly().setMinDuration(10L << 16)
+            .setMinTstamp(1100 * 1000000L).setMaxTstamp(2300 * 1000000L), 1000, 0).getResults()) {
+            rslt.add(cm.getTstamp());
+        }
+        List<Long> windowed = new ArrayList<>();
+        for (Long t : expected) {
+            if (t >= 1100 * 1000000L && t < 2300 * 1000000L) windowed.add(t);
+        }
+        assertEquals(windowed, rslt);
+
+        store.close();
+    }
+}
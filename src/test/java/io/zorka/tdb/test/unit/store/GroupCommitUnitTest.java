@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class GroupCommitUnitTest extends ZicoTestFixture {
+
+    private RotatingTraceStore openStore(boolean pipeline) {
+        return openRotatingStore(META_GROUP_COMMIT, "true", META_GROUP_COMMIT_SIZE, "16",
+            META_GROUP_COMMIT_LATENCY, "5", INGEST_PIPELINE, "" + pipeline);
+    }
+
+    private void submitConcurrently(RotatingTraceStore store, int nsessions, int ntraces) throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+
+        for (int s = 0; s < nsessions; s++) {
+            final long tid = s + 1;
+            Thread t = new Thread(() -> {
+                try {
+                    String sessnUUID = UUID.randomUUID().toString();
+                    store.handleAgentData(sessnUUID, true, agentData());
+                    for (int i = 0; i < ntraces; i++) {
+                        store.handleTraceData(sessnUUID, trc(i+1, 100 + i, 100 + i),
+                            md(tid, i+1, 0, i+1, 0));
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) t.join();
+
+        assertEquals("Errors: " + errors, 0, errors.size());
+    }
+
+    @Test
+    public void testConcurrentSessionsWithGroupCommit() throws Exception {
+        RotatingTraceStore store = openStore(false);
+        submitConcurrently(store, 4, 50);
+
+        TraceSearchResultSet rs = store.searchChunks(new TraceSearchQuery().withSpansOnly(), 1000, 0);
+        assertEquals(200, rs.size());
+
+        // Committer thread of archived store is stopped
+        String name = String.format("zico-group-commit-%06x", store.getCurrent().getStoreId());
+        store.rotate();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            assertNotEquals(name, t.getName());
+        }
+        assertEquals(200, store.searchChunks(new TraceSearchQuery().withSpansOnly(), 1000, 0).size());
+
+        store.close();
+    }
+
+    @Test
+    public void testPipelinedIngestWithGroupCommit() throws Exception {
+        RotatingTraceStore store = openStore(true);
+        submitConcurrently(store, 4, 50);
+        store.flush();
+
+        TraceSearchResultSet rs = store.searchChunks(new TraceSearchQuery().withSpansOnly(), 1000, 0);
+        assertEquals(200, rs.size());
+
+        assertNotNull(store.retrieve(Tid.s(3, 7, 7), rtr()));
+
+        store.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class LazyTraceRetrievalUnitTest extends ZicoTestFixture {
+
+    private static final Tid TID = Tid.s(42L, 24L, 1L);
+
+    /** Root with 5 children of different durations, each child has 3 leaf children. */
+    private RotatingTraceStore populate() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+
+        List<WireObj> children = new ArrayList<>();
+        long t = 110;
+        for (int i = 0; i < 5; i++) {
+            long dur = 10 + (i * 7) % 5 * 4;
+            List<WireObj> leaves = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+                leaves.add(tr(true, mid(2, j, 0), t + 1 + j * 2, t + 2 + j * 2, 1));
+            }
+            children.add(tr(true, mid(1, i, 0), t, t + dur, 4, leaves.toArray(new WireObj[0])));
+            t += dur + 1;
+        }
+
+        List<WireObj> objs = new ArrayList<>();
+        objs.add(ta("XXX", "YYY"));
+        objs.add(tb(1500, 1L));
+        objs.addAll(children);
+
+        store.handleTraceData(sessnUUID, str(tr(true, mid(0, 0, 0), 100, t + 10, 21,
+            objs.toArray(new WireObj[0]))).get(0), md(42L, 24L, 0L, 1L, 0));
+
+        return store;
+    }
+
+    private static TraceRecord child(TraceRecord tr, int i) {
+        return (TraceRecord)tr.getChildren().get(i);
+    }
+
+    private static void assertSameRecord(TraceRecord expected, TraceRecord actual) {
+        assertEquals(expected.getMethod(), actual.getMethod());
+        assertEquals(expected.getTstart(), actual.getTstart());
+        assertEquals(expected.getTstop(), actual.getTstop());
+        assertEquals(expected.getPos(), actual.getPos());
+    }
+
+    @Test
+    public void testDepthLimitedRetrieval() throws Exception {
+        RotatingTraceStore store = populate();
+        TraceRecord full = store.retrieve(TID, rtr());
+
+        TraceRecord r1 = store.retrieveLazy(TID, new LazyTraceDataRetriever(1));
+        assertSameRecord(full, r1);
+        assertNull(r1.getChildren());
+        assertEquals(5, r1.getHiddenChildren());
+        assertEquals(full.getAttrs(), r1.getAttrs());
+
+        TraceRecord r2 = store.retrieveLazy(TID, new LazyTraceDataRetriever(2));
+        assertEquals(0, r2.getHiddenChildren());
+        assertEquals(5, r2.getChildren().size());
+        for (int i = 0; i < 5; i++) {
+            assertSameRecord(child(full, i), child(r2, i));
+            assertNull(child(r2, i).getChildren());
+            assertEquals(3, child(r2, i).getHiddenChildren());
+            assertEquals(1, child(r2, i).getLevel());
+        }
+
+        // Expanding collapsed record starts right at its position
+        TraceRecord c3 = child(r2, 3);
+        TraceRecord e3 = store.expand(TID, c3.getChunkNum(), c3.getPos(), new LazyTraceDataRetriever(2));
+        assertSameRecord(c3, e3);
+        assertEquals(0, e3.getHiddenChildren());
+        assertEquals(3, e3.getChildren().size());
+        for (int j = 0; j < 3; j++) {
+            assertSameRecord(child(child(full, 3), j), child(e3, j));
+        }
+
+        TraceRecord r3 = store.retrieveLazy(TID, new LazyTraceDataRetriever(10));
+        assertEquals(0, child(r3, 4).getHiddenChildren());
+        assertSameRecord(child(child(full, 4), 2), child(child(r3, 4), 2));
+
+        store.close();
+    }
+
+    @Test
+    public void testTopChildrenByDuration() throws Exception {
+        RotatingTraceStore store = populate();
+        TraceRecord full = store.retrieve(TID, rtr());
+
+        TraceRecord r = store.retrieveLazy(TID, new LazyTraceDataRetriever(2, 2));
+        assertEquals(2, r.getChildren().size());
+        assertEquals(3, r.getHiddenChildren());
+
+        // Two longest children (durations 26, 22), in original order
+        assertSameRecord(child(full, 2), child(r, 0));
+        assertSameRecord(child(full, 4), child(r, 1));
+
+        TraceRecord r0 = store.retrieveLazy(TID, new LazyTraceDataRetriever(3, 0));
+        assertNull(r0.getChildren());
+        assertEquals(5, r0.getHiddenChildren());
+
+        store.close();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+import org.mapdb.Fun;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static io.zorka.tdb.store.ConfigProps.META_ENGINE;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class LogChunkMetadataIndexUnitTest extends ZicoTestFixture {
+
+    private static byte[] chunk(long tst, long tid, int sval) {
+        ChunkMetadata cm = new ChunkMetadata(tid, 1L, 0L, 2L, 0);
+        cm.setTstamp(tst);
+        cm.setDuration(tst * 10);
+        cm.getSattrs().put(1, sval);
+        return ChunkMetadata.serialize(cm);
+    }
+
+    @Test
+    public void testAddReopenAndRecoverTornTail() throws Exception {
+        File root = new File(tmpDir);
+        ChunkMetadataIndex idx = new LogChunkMetadataIndex(root);
+        for (long tst = 1; tst <= 10; tst++) {
+            idx.add(tst, tst * 10, chunk(tst, tst, (int)(tst % 3)));
+        }
+        idx.addSkipTable(100L, new byte[] { 1, 2, 3 });
+        idx.commit();
+        idx.close();
+
+        idx = new LogChunkMetadataIndex(root);
+        assertEquals(10, idx.getTstamps().size());
+        assertEquals(Long.valueOf(7L), idx.getTids().get(Fun.t4(7L, 1L, 2L, 0)));
+        assertEquals(4, idx.getSattrs().subMap(Fun.t3(1, 1, 0L), Fun.t3(1, 1, Long.MAX_VALUE)).size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, idx.getSkipTable(100L));
+        ChunkMetadataView v = new ChunkMetadataView();
+        assertTrue(idx.getChunk(5L, v));
+        assertEquals(50L, v.getDuration());
+        assertEquals(5L, ChunkMetadata.deserialize(idx.getChunk(5L)).getTraceId1());
+        idx.close();
+        // View wrapped before close still reads valid memory
+        assertEquals(50L, v.getDuration());
+
+        // Damage last record (skip table), it has to be discarded, new records are appended in its place
+        File f = new File(root, LogChunkMetadataIndex.FILE_NAME);
+        long end = 10 * (8 + 17 + chunk(1, 1, 1).length) + 8 + 17 + 3;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(end - 1);
+            raf.write(42);
+        }
+
+        idx = new LogChunkMetadataIndex(root);
+        assertEquals(10, idx.getTstamps().size());
+        assertNull(idx.getSkipTable(100L));
+        idx.add(11L, 110L, chunk(11L, 11L, 0));
+        idx.close();
+
+        idx = new LogChunkMetadataIndex(root);
+        assertEquals(11, idx.getTstamps().size());
+        assertNull(idx.getSkipTable(100L));
+        assertFalse(idx.isArchived());
+        idx.setArchived();
+        idx.close();
+
+        idx = new LogChunkMetadataIndex(root);
+        assertTrue(idx.isArchived());
+        idx.close();
+    }
+
+    @Test
+    public void testRecordsSpanningMultipleSegments() throws Exception {
+        File root = new File(tmpDir);
+        ChunkMetadataIndex idx = new LogChunkMetadataIndex(root);
+        byte[] st = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < 12; i++) {
+            st[0] = (byte)i;
+            idx.addSkipTable(i, st);
+            idx.add(i + 1, 1, chunk(i + 1, i, 0));
+        }
+        idx.close();
+
+        idx = new LogChunkMetadataIndex(root);
+        assertEquals(12, idx.getTstamps().size());
+        for (int i = 0; i < 12; i++) {
+            assertEquals(i, idx.getSkipTable(i)[0]);
+            assertEquals(i, ChunkMetadata.deserialize(idx.getChunk(i + 1)).getTraceId1());
+        }
+        idx.close();
+    }
+
+    @Test
+    public void testSearchAndRetrieveWithLogEngine() throws Exception {
+        File baseDir = new File(tmpDir, "store");
+        assertTrue(baseDir.mkdirs());
+        Properties props = new Properties();
+        props.setProperty(META_ENGINE, "log");
+        String sessnUUID = UUID.randomUUID().toString();
+
+        RotatingTraceStore store = new RotatingTraceStore(baseDir, props, indexerCache);
+        store.open();
+        store.handleAgentData(sessnUUID, true, agentData());
+        for (int j = 0; j < 5; j++) {
+            int clock = 1000 + j;
+            store.handleTraceData(sessnUUID, str(tr(true, mid(0, 0, 0), clock, clock + 10, 1,
+                tb(clock, clock), ta("XXX", "V" + j % 2))).get(0), md(clock, 42L, 0, clock, 0));
+        }
+        store.close();
+
+        // Engine of existing store is detected from its files
+        store = new RotatingTraceStore(baseDir, new Properties(), indexerCache);
+        store.open();
+        assertTrue(new File(new File(baseDir, "000000"), LogChunkMetadataIndex.FILE_NAME).exists());
+        assertFalse(new File(new File(baseDir, "000000"), MapDbChunkMetadataIndex.FILE_NAME).exists());
+
+        List<ChunkMetadata> rslt = store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V0"), 100, 0).getResults();
+        assertEquals(3, rslt.size());
+        for (ChunkMetadata cm : rslt) {
+            TraceRecord tr = store.retrieve(Tid.s(cm.getTraceId1(), cm.getTraceId2(), cm.getSpanId()), rtr());
+            assertNotNull(tr);
+            assertEquals(cm.getSpanId(), tr.getSpanId());
+        }
+        store.close();
+    }
+}
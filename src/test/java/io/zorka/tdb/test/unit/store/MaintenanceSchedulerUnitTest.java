@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import io.zorka.tdb.util.TokenBucket;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.store.MaintenanceScheduler.TaskType.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class MaintenanceSchedulerUnitTest extends ZicoTestFixture {
+
+    private RotatingTraceStore openStore(boolean scheduler) {
+        return openRotatingStore(MAINT_SCHEDULER, "" + scheduler, MAINT_INTERVAL, "50", MAINT_IO_RATE, "64");
+    }
+
+    /** Submits traces with long unique attribute values, so text index WAL gets rotated. */
+    private void fill(RotatingTraceStore store, int n) {
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+        Random rand = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.setLength(0);
+            while (sb.length() < 4096) sb.append(Long.toHexString(rand.nextLong()));
+            store.handleTraceData(sessnUUID, trc(i+1, 100 + i, 100 + i, "XXX", "V" + i, "YYY", sb.toString()),
+                md(i+1, 42L, 0, i+1, 0));
+        }
+    }
+
+    private static void await(SimpleTraceStore s, MaintenanceScheduler.TaskType type) throws Exception {
+        for (int i = 0; i < 600 && s.needsMaintenance(type); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse("Pending " + type + " task.", s.needsMaintenance(type));
+    }
+
+    @Test
+    public void testTokenBucketDebt() {
+        TokenBucket tb = new TokenBucket(1000, 1000);
+        long t = System.nanoTime();
+        assertEquals(0, tb.delay(t));
+
+        tb.charge(3000, t);
+        assertEquals(2000000000L, tb.delay(t), 1000);
+        assertEquals(1000000000L, tb.delay(t + 1000000000L), 1000);
+        assertEquals(0, tb.delay(t + 2000000000L));
+
+        // Refill is capped by bucket capacity
+        assertEquals(0, tb.delay(t + 10000000000L));
+        assertEquals(1000.0, tb.getTokens(), 0.01);
+    }
+
+    @Test
+    public void testCompressInBackground() throws Exception {
+        RotatingTraceStore store = openStore(true);
+        MaintenanceScheduler ms = store.getMaintenanceScheduler();
+        assertNotNull(ms);
+
+        fill(store, 1200);
+        await(store.getCurrent(), COMPRESS);
+        await(store.getCurrent(), REMOVE);
+
+        assertTrue(ms.getTaskCount(COMPRESS) > 0);
+        assertTrue(ms.getTaskBytes(COMPRESS) > 0);
+        assertTrue(ms.getMaxTaskTime(COMPRESS) > 0);
+        assertTrue(ms.getTaskTime(COMPRESS) >= ms.getMaxTaskTime(COMPRESS));
+
+        TraceSearchResultSet rs = store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V7").withSpansOnly(), 10, 0);
+        assertEquals(1, rs.size());
+
+        store.close();
+        assertNull(store.getMaintenanceScheduler());
+    }
+
+    /** Waits until no task is running and given number of tasks failed. */
+    private static void awaitFailures(MaintenanceScheduler ms, MaintenanceScheduler.TaskType type, long n) throws Exception {
+        for (int i = 0; i < 500 && (ms.getFailureCount(type) < n || ms.getActiveTasks() > 0); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, ms.getFailureCount(type));
+        assertEquals(0, ms.getActiveTasks());
+    }
+
+    @Test
+    public void testPauseUnderIngestBacklog() throws Exception {
+        RotatingTraceStore store = openStore(false);
+        assertNull(store.getMaintenanceScheduler());
+        fill(store, 1200);
+
+        SimpleTraceStore s = store.getCurrent();
+        assertTrue(s.needsMaintenance(COMPRESS));
+
+        AtomicLong backlog = new AtomicLong(100), clock = new AtomicLong(1000000000L);
+        MaintenanceScheduler ms = new MaintenanceScheduler(() -> Collections.singletonList(s), backlog::get,
+            1, 3600000, 0, 16, 1000, clock::get);
+
+        ms.schedule();
+        for (int i = 0; i < 500 && ms.getActiveTasks() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, ms.getActiveTasks());
+        assertEquals(0, ms.getTaskCount(COMPRESS));
+
+        // Task already pending for the same store is not queued again
+        ms.schedule();
+        assertEquals(0, ms.getQueueDepth());
+
+        // Task held back for maximum pause time runs despite ingest backlog
+        clock.addAndGet(1000000000L);
+        for (int i = 0; i < 500 && ms.getTaskCount(COMPRESS) == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(ms.getTaskCount(COMPRESS) > 0);
+        assertEquals(1000000000L, ms.getPausedTime());
+
+        backlog.set(0);
+        await(s, COMPRESS);
+        assertEquals(1000000000L, ms.getPausedTime());
+
+        ms.close();
+        store.close();
+    }
+
+    @Test
+    public void testFailingTaskBacksOff() throws Exception {
+        File root = new File(tmpDir, "000001");
+        assertTrue(root.mkdirs());
+        AtomicLong attempts = new AtomicLong();
+        SimpleTraceStore s = new SimpleTraceStore(root, new Properties(), indexerCache) {
+            @Override
+            public boolean needsMaintenance(MaintenanceScheduler.TaskType type) {
+                return type == MERGE;
+            }
+            @Override
+            public long runMaintenanceTask(MaintenanceScheduler.TaskType type) {
+                attempts.incrementAndGet();
+                throw new ZicoException("Merge failed.");
+            }
+        };
+
+        // Planner runs every 20ms, but clock does not move unless test moves it
+        AtomicLong clock = new AtomicLong(1000000000L);
+        MaintenanceScheduler ms = new MaintenanceScheduler(() -> Collections.singletonList(s), () -> 0,
+            1, 20, 0, 16, 1000, clock::get);
+
+        assertEquals(Long.MIN_VALUE, ms.getRetryTime(s, MERGE));
+        ms.schedule();
+
+        // Backoff starts at check interval and doubles up to 64 intervals
+        long[] backoffs = { 20, 40, 80, 160, 320, 640, 1280, 1280 };
+        for (int i = 0; i < backoffs.length; i++) {
+            awaitFailures(ms, MERGE, i + 1);
+            long retryAt = ms.getRetryTime(s, MERGE);
+            assertEquals("attempt " + (i + 1), clock.get() + backoffs[i] * 1000000L, retryAt);
+
+            // Not retried before backoff time passes
+            clock.set(retryAt - 1);
+            ms.schedule();
+            assertEquals(0, ms.getQueueDepth());
+            assertEquals(0, ms.getActiveTasks());
+            assertEquals(i + 1, attempts.get());
+
+            clock.set(retryAt);
+            ms.schedule();
+        }
+
+        awaitFailures(ms, MERGE, backoffs.length + 1);
+        ms.close();
+
+        assertEquals(backoffs.length + 1, attempts.get());
+        assertEquals(0, ms.getFailureCount(COMPRESS));
+        assertEquals(0, ms.getTaskCount(MERGE));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class ParallelSearchUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 4, NTRACES = 25;
+
+    private RotatingTraceStore openStore(boolean parallel) {
+        return openRotatingStore(SEARCH_PARALLEL, "" + parallel, SEARCH_PARALLEL_THREADS, "2");
+    }
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 10, 1,
+            tb(clock, clock), ta("XXX", "V" + (i % 5)))).get(0));
+    }
+
+    @Test
+    public void testParallelSearchMatchesSerialSearch() throws Exception {
+        RotatingTraceStore store = openStore(true);
+        populate(store);
+
+        TraceSearchQuery[] queries = {
+            new TraceSearchQuery().withSpansOnly(),
+            new TraceSearchQuery().attrMatch("XXX", "V3").withSpansOnly(),
+            new TraceSearchQuery().attrMatch("XXX", "NONE").withSpansOnly()
+        };
+
+        int[][] pages = { { 10, 0 }, { 10, 20 }, { 30, 15 }, { 1000, 0 }, { 5, 95 } };
+
+        List<List<Long>> parallel = new ArrayList<>();
+        for (TraceSearchQuery q : queries) {
+            for (int[] p : pages) {
+                parallel.add(search(store, q, p[0], p[1]));
+            }
+        }
+
+        store.close();
+
+        store = openStore(false);
+
+        int n = 0;
+        for (TraceSearchQuery q : queries) {
+            for (int[] p : pages) {
+                assertEquals("query " + n, search(store, q, p[0], p[1]), parallel.get(n++));
+            }
+        }
+
+        assertEquals(NSTORES * NTRACES, search(store, queries[0], 1000, 0).size());
+        assertEquals(10, parallel.get(0).size());
+        assertTrue(parallel.get(0).get(0) > parallel.get(0).get(9));
+        assertEquals(NSTORES * NTRACES / 5, parallel.get(8).size());
+
+        store.close();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class PipelinedIngestUnitTest extends ZicoTestFixture {
+
+    private RotatingTraceStore openPipelinedStore() {
+        return openRotatingStore(INGEST_PIPELINE, "true", INGEST_PIPELINE_THREADS, "4", INGEST_PIPELINE_QSIZE, "8");
+    }
+
+    @Test
+    public void testSubmitAndSearchPipelined() throws Exception {
+        RotatingTraceStore store = openPipelinedStore();
+        assertNotNull(store.getCurrent().getIngestPipeline());
+
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+
+        for (int i = 0; i < 200; i++) {
+            store.handleTraceData(sessnUUID, trc(i+1, 100 + i, 100 + i, "XXX", "V" + (i % 10), "YYY", "UVW"),
+                md(i+1, 42L, 0, i+1, 0));
+        }
+
+        store.flush();
+
+        TraceSearchResultSet rs = store.searchChunks(new TraceSearchQuery().withSpansOnly(), 1000, 0);
+        assertEquals(200, rs.size());
+
+        rs = store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V3").withSpansOnly(), 1000, 0);
+        assertEquals(20, rs.size());
+
+        TraceRecord tr = store.retrieve(Tid.s(1000L, 42L, 1000L), rtr());
+        assertNull(tr);
+
+        tr = store.retrieve(Tid.s(43L, 42L, 43L), rtr());
+        assertNotNull(tr);
+        assertEquals(1, tr.getChildren().size());
+
+        // Archived store no longer needs its pipeline threads
+        SimpleTraceStore archived = store.getCurrent();
+        store.rotate();
+        assertNull(archived.getIngestPipeline());
+        assertNotNull(store.getCurrent().getIngestPipeline());
+        assertEquals(200, store.searchChunks(new TraceSearchQuery().withSpansOnly(), 1000, 0).size());
+
+        store.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class PostingIndexUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 3, NTRACES = 60;
+
+    private RotatingTraceStore openStore(boolean postings) {
+        return openRotatingStore(SEARCH_POSTINGS, "" + postings);
+    }
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 1 + i % 7, 1,
+            tb(clock, clock), ta("A", "A" + (i % 3)), ta("B", "B" + (i % 2)))).get(0));
+    }
+
+    @Test
+    public void testIntersect() {
+        assertArrayEquals(new int[] { 3, 7 }, PostingIndex.intersect(new int[] { 1, 3, 5, 7 }, new int[] { 2, 3, 7, 9 }));
+        assertArrayEquals(new int[0], PostingIndex.intersect(new int[] { 1, 2 }, new int[] { 3, 4 }));
+
+        int[] big = new int[1000];
+        for (int i = 0; i < big.length; i++) big[i] = i * 2;
+        assertArrayEquals(new int[] { 4, 1998 }, PostingIndex.intersect(new int[] { 3, 4, 1998, 2001 }, big));
+    }
+
+    @Test
+    public void testPostingSearchMatchesTreeSearch() throws Exception {
+        RotatingTraceStore store = openStore(true);
+        populate(store);
+
+        assertTrue(new File(tmpDir, "store/000001/" + PostingIndex.FILE_NAME).exists());
+        assertFalse(new File(tmpDir, "store/000003/" + PostingIndex.FILE_NAME).exists());
+
+        TraceSearchQuery[] queries = {
+            new TraceSearchQuery().attrMatch("A", "A1").withSpansOnly(),
+            new TraceSearchQuery().attrMatch("A", "A1").attrMatch("B", "B0").withSpansOnly(),
+            new TraceSearchQuery().attrMatch("A", "A2").attrMatch("B", "B1")
+                .setMinTstamp(1020 * 1000000L).setMaxTstamp(1140 * 1000000L).withSpansOnly(),
+            new TraceSearchQuery().attrMatch("A", "A0").attrMatch("B", "B1").setMinDuration(4L << 16).withSpansOnly(),
+            new TraceSearchQuery().attrMatch("A", "A0").attrMatch("B", "NONE").withSpansOnly()
+        };
+
+        int[][] pages = { { 10, 0 }, { 10, 20 }, { 1000, 0 } };
+
+        List<List<Long>> withPostings = new ArrayList<>();
+        for (TraceSearchQuery q : queries) {
+            for (int[] p : pages) {
+                withPostings.add(search(store, q, p[0], p[1]));
+            }
+        }
+
+        // Search holding posting index of a store that is being closed can still read it
+        PostingIndex pi = PostingIndex.open(new File(tmpDir, "store/000001/" + PostingIndex.FILE_NAME));
+        long tst = pi.tstamp(0);
+        pi.close();
+        assertEquals(tst, pi.tstamp(0));
+
+        store.close();
+
+        store = openStore(false);
+
+        int n = 0;
+        for (TraceSearchQuery q : queries) {
+            for (int[] p : pages) {
+                assertEquals("query " + n, search(store, q, p[0], p[1]), withPostings.get(n++));
+            }
+        }
+
+        assertEquals(NSTORES * NTRACES / 6, withPostings.get(5).size());
+        assertTrue(withPostings.get(5).get(0) > withPostings.get(5).get(1));
+        assertTrue(withPostings.get(8).size() > 0);
+        assertTrue(withPostings.get(11).size() > 0 && withPostings.get(11).size() < NSTORES * NTRACES / 6);
+        assertEquals(0, withPostings.get(14).size());
+
+        store.close();
+    }
+}
@@ -24,6 +24,8 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -82,4 +84,104 @@ public class RawTraceStoreUnitTest extends ZicoTestFixture {
         assertEquals(4, rdr2.size());
         assertEquals(71, rdr2.peek());
     }
+
+
+    @Test
+    public void testConcurrentReadsAndAppends() throws Exception {
+        RawTraceDataFile tdf = new RawTraceDataFile(new File(tmpDir, "traces.dat"), true);
+
+        int nthreads = 4, nchunks = 200;
+        long[][] positions = new long[nthreads][nchunks];
+        AtomicInteger errors = new AtomicInteger();
+
+        Thread[] threads = new Thread[nthreads];
+        for (int t = 0; t < nthreads; t++) {
+            final int tn = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < nchunks; i++) {
+                    byte[] b = ("T" + tn + "-C" + i).getBytes();
+                    positions[tn][i] = tdf.write(b);
+                    // Read back some of previously written chunks
+                    int j = i / 2;
+                    String s = new String(tdf.read(positions[tn][j]).getRawBytes());
+                    if (!s.equals("T" + tn + "-C" + j)) errors.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) t.join();
+
+        assertEquals(0, errors.get());
+
+        for (int t = 0; t < nthreads; t++) {
+            for (int i = 0; i < nchunks; i++) {
+                assertEquals("T" + t + "-C" + i, new String(tdf.read(positions[t][i]).getRawBytes()));
+            }
+        }
+
+        tdf.close();
+    }
+
+
+    private void checkMappedReads(int flags) throws Exception {
+        RawTraceDataFile tdf = new RawTraceDataFile(new File(tmpDir, "traces" + flags + ".dat"),
+            true, flags | RawTraceDataFile.CRC32_CHECKSUM);
+
+        long pos1 = tdf.write("ABCDE".getBytes());
+        long pos2 = tdf.write("GHIJ".getBytes());
+
+        tdf.mmap();
+        assertTrue(tdf.isMapped());
+
+        long pos3 = tdf.write("KLMNOP".getBytes());
+
+        assertEquals("ABCDE", new String(tdf.read(pos1).getRawBytes()));
+        assertEquals("GHIJ", new String(tdf.read(pos2, true).getRawBytes()));
+        assertEquals("KLMNOP", new String(tdf.read(pos3, true).getRawBytes()));
+
+        CborBufReader rdr = tdf.read(pos2, true);
+        assertEquals(4, rdr.size());
+        assertEquals(71, rdr.peek());
+
+        // Reader obtained before close is still usable (mapped memory is not released under it)
+        CborBufReader r1 = tdf.read(pos1);
+        tdf.close();
+        assertEquals("ABCDE", new String(r1.getRawBytes()));
+    }
+
+
+    @Test
+    public void testMappedReads() throws Exception {
+        checkMappedReads(RawTraceDataFile.NO_COMPRESSION);
+        checkMappedReads(RawTraceDataFile.ZLIB_COMPRESSION);
+        checkMappedReads(RawTraceDataFile.LZ4_COMPRESSION);
+    }
+
+
+    @Test
+    public void testReuseCodecContexts() throws Exception {
+        for (int flags : new int[] { RawTraceDataFile.ZLIB_COMPRESSION, RawTraceDataFile.LZ4_COMPRESSION }) {
+            RawTraceDataFile tdf = new RawTraceDataFile(new File(tmpDir, "traces" + flags + ".dat"),
+                true, flags | RawTraceDataFile.CRC32_CHECKSUM);
+
+            Random rand = new Random(flags);
+            byte[][] chunks = new byte[16][];
+            long[] positions = new long[chunks.length];
+
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = new byte[1000 * (i + 1) + rand.nextInt(1000)];
+                for (int j = 0; j < chunks[i].length; j++) {
+                    chunks[i][j] = (byte)('A' + rand.nextInt(4 + i));
+                }
+                positions[i] = tdf.write(chunks[i]);
+            }
+
+            for (int i = chunks.length - 1; i >= 0; i--) {
+                assertArrayEquals(chunks[i], tdf.read(positions[i], true).getRawBytes());
+            }
+
+            tdf.close();
+        }
+    }
 }
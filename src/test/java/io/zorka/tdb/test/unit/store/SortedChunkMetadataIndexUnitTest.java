@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+import org.mapdb.Fun;
+
+import java.io.File;
+import java.util.*;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class SortedChunkMetadataIndexUnitTest extends ZicoTestFixture {
+
+    private static <K> void assertSameNavigation(NavigableMap<K,Long> e, NavigableMap<K,Long> a, List<K> probes) {
+        assertEquals(e.size(), a.size());
+        assertEquals(new ArrayList<>(e.entrySet()), new ArrayList<>(a.entrySet()));
+        assertEquals(new ArrayList<>(e.keySet()), new ArrayList<>(a.keySet()));
+        if (!e.isEmpty()) {
+            assertEquals(e.firstKey(), a.firstKey());
+            assertEquals(e.lastKey(), a.lastKey());
+        }
+        for (K k : probes) {
+            assertEquals(e.get(k), a.get(k));
+            assertEquals(e.lowerKey(k), a.lowerKey(k));
+            assertEquals(e.floorKey(k), a.floorKey(k));
+            assertEquals(e.ceilingKey(k), a.ceilingKey(k));
+            assertEquals(e.higherKey(k), a.higherKey(k));
+            assertEquals(e.floorEntry(k), a.floorEntry(k));
+        }
+    }
+
+    @Test
+    public void testSortedTableMapNavigation() throws Exception {
+        Random rand = new Random(42);
+        TreeMap<Fun.Tuple2<Integer,Long>,Long> data = new TreeMap<>();
+        for (int i = 0; i < 2000; i++) {
+            data.put(Fun.t2(rand.nextInt(10), (long)rand.nextInt(100000)), (long)i);
+        }
+
+        File f = new File(tmpDir, "test.sst");
+        SortedTable.write(f, "IL", SortedTable.LONG_VALUE, 64, data);
+        SortedTable t = new SortedTable(f);
+        SortedTableMap<Fun.Tuple2<Integer,Long>,Long> m = new SortedTableMap<>(t);
+
+        List<Fun.Tuple2<Integer,Long>> probes = new ArrayList<>(data.keySet()).subList(0, 100);
+        for (int i = 0; i < 100; i++) {
+            probes.add(Fun.t2(rand.nextInt(12) - 1, (long)rand.nextInt(100000)));
+        }
+
+        assertSameNavigation(data, m, probes);
+        assertSameNavigation(data.descendingMap(), m.descendingMap(), probes);
+
+        for (int i = 0; i < 20; i++) {
+            Fun.Tuple2<Integer,Long> k1 = probes.get(rand.nextInt(probes.size())), k2 = probes.get(rand.nextInt(probes.size()));
+            if (k1.compareTo(k2) > 0) {
+                Fun.Tuple2<Integer,Long> k = k1; k1 = k2; k2 = k;
+            }
+            assertSameNavigation(data.subMap(k1, true, k2, false), m.subMap(k1, true, k2, false), probes);
+            assertSameNavigation(data.subMap(k1, false, k2, true), m.subMap(k1, false, k2, true), probes);
+            assertSameNavigation(data.descendingMap().subMap(k2, true, k1, false),
+                m.descendingMap().subMap(k2, true, k1, false), probes);
+            assertSameNavigation(data.headMap(k1, true), m.headMap(k1, true), probes);
+            assertSameNavigation(data.tailMap(k1, false), m.tailMap(k1, false), probes);
+            assertSameNavigation(data.descendingMap().headMap(k2, false), m.descendingMap().headMap(k2, false), probes);
+            assertSameNavigation(data.descendingMap().tailMap(k2, true), m.descendingMap().tailMap(k2, true), probes);
+        }
+
+        assertTrue(m.subMap(Fun.t2(5, 0L), Fun.t2(4, 0L)).isEmpty());
+        t.close();
+    }
+
+    @Test
+    public void testBytesTable() throws Exception {
+        TreeMap<Long,byte[]> data = new TreeMap<>();
+        for (long i = 0; i < 100; i++) {
+            byte[] b = new byte[(int)i];
+            Arrays.fill(b, (byte)i);
+            data.put(i * 3, b);
+        }
+        File f = new File(tmpDir, "test.sst");
+        SortedTable.write(f, "L", SortedTable.BYTES_VALUE, 16, data);
+        SortedTable t = new SortedTable(f);
+        SortedTableMap<Long,byte[]> m = new SortedTableMap<>(t);
+        assertEquals(100, m.size());
+        for (Map.Entry<Long,byte[]> e : data.entrySet()) {
+            assertArrayEquals(e.getValue(), m.get(e.getKey()));
+        }
+        assertNull(m.get(4L));
+        t.close();
+        // Map of closed table remains readable for searches that still hold it
+        assertArrayEquals(data.get(297L), m.get(297L));
+    }
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, 1, 20, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 10 + i, 1,
+            tb(clock, clock), ta("XXX", "V" + i % 4))).get(0));
+    }
+
+    @Test
+    public void testArchivedStoreServedFromSortedTables() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store);
+
+        List<ChunkMetadata> before = store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).getResults();
+        assertEquals(5, before.size());
+
+        // Searches running across compaction keep using maps of old index
+        Map<Long,Long> oldTstamps = store.getCurrent().getTstamps();
+
+        store.rotate();
+
+        File root = new File(new File(tmpDir, "store"), "000000");
+        assertTrue(new File(root, SortedChunkMetadataIndex.DIR_NAME).isDirectory());
+
+        List<ChunkMetadata> after = store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).getResults();
+        assertEquals(5, after.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(before.get(i).getTstamp(), after.get(i).getTstamp());
+            assertEquals(before.get(i).getSpanId(), after.get(i).getSpanId());
+        }
+        for (ChunkMetadata cm : after) {
+            assertNotNull(store.retrieve(Tid.s(cm.getTraceId1(), cm.getTraceId2(), cm.getSpanId()), rtr()));
+        }
+
+        // Old index is kept until store is closed
+        store.runMaintenance();
+        assertTrue(new File(root, MapDbChunkMetadataIndex.FILE_NAME).exists());
+        assertEquals(20, oldTstamps.size());
+        store.close();
+        assertFalse(new File(root, MapDbChunkMetadataIndex.FILE_NAME).exists());
+
+        // Reopened archived store uses sorted tables
+        store = openRotatingStore();
+        assertEquals(5, store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).size());
+        assertEquals(20, store.searchChunks(new TraceSearchQuery(), 100, 0).size());
+        store.close();
+    }
+
+    @Test
+    public void testCompactExistingArchivedStoresOnlyWhenEnabled() throws Exception {
+        RotatingTraceStore store = openRotatingStore(ConfigProps.META_ARCHIVE_COMPACT, "false");
+        populate(store);
+        store.rotate();
+        store.close();
+
+        File root = new File(new File(tmpDir, "store"), "000000");
+        File mdb = new File(root, MapDbChunkMetadataIndex.FILE_NAME), sst = new File(root, SortedChunkMetadataIndex.DIR_NAME);
+        assertFalse(sst.exists());
+
+        // Stores archived before upgrade are left as they are by default
+        store = openRotatingStore();
+        assertEquals(5, store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).size());
+        store.close();
+        assertTrue(mdb.exists());
+        assertFalse(sst.exists());
+
+        store = openRotatingStore(ConfigProps.META_ARCHIVE_COMPACT_EXISTING, "true");
+        assertEquals(5, store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).size());
+        store.close();
+        assertFalse(mdb.exists());
+        assertTrue(sst.isDirectory());
+    }
+
+    @Test
+    public void testMismatchedSortedTablesDoNotReplaceOriginalIndex() throws Exception {
+        RotatingTraceStore store = openRotatingStore(ConfigProps.META_ARCHIVE_COMPACT, "false");
+        populate(store);
+        store.rotate();
+        store.close();
+
+        // Sorted tables left by interrupted compaction do not match original index
+        File root = new File(new File(tmpDir, "store"), "000000");
+        File empty = new File(tmpDir, "empty");
+        assertTrue(empty.mkdirs());
+        LogChunkMetadataIndex src = new LogChunkMetadataIndex(empty);
+        SortedChunkMetadataIndex.write(root, src);
+        src.close();
+
+        File mdb = new File(root, MapDbChunkMetadataIndex.FILE_NAME), sst = new File(root, SortedChunkMetadataIndex.DIR_NAME);
+        assertTrue(sst.isDirectory());
+
+        store = openRotatingStore(ConfigProps.META_ARCHIVE_COMPACT, "false");
+        assertEquals(5, store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "V1"), 100, 0).size());
+        store.close();
+        assertTrue(mdb.exists());
+        assertFalse(sst.exists());
+    }
+}
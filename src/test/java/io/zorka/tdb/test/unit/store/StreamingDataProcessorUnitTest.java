@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import com.jitlogic.zorka.cbor.CborDataWriter;
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.util.CborBufReader;
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.jitlogic.zorka.cbor.TraceInfoConstants.*;
+import static org.junit.Assert.*;
+
+public class StreamingDataProcessorUnitTest {
+
+    /** Records attribute maps passed by TraceDataReader (via adapter). */
+    private static class MapCollector implements StatelessDataProcessor {
+        private final List<Map<Object,Object>> attrs = new ArrayList<>();
+        private int starts, ends;
+        @Override public void traceStart(int pos) { starts++; }
+        @Override public void traceEnd() { ends++; }
+        @Override public void traceInfo(int k, long v) { }
+        @Override public void attr(Map<Object, Object> data) { attrs.add(data); }
+        @Override public void exceptionRef(int ref) { }
+        @Override public void exception(ExceptionData ex) { }
+        @Override public void commit() { }
+    }
+
+    /** Records primitive attribute events as strings. */
+    private static class EventCollector implements StreamingDataProcessor {
+        private final List<String> events = new ArrayList<>();
+        @Override public void traceStart(int pos) { events.add("start"); }
+        @Override public void traceEnd() { events.add("end"); }
+        @Override public void traceInfo(int k, long v) { events.add("ti:" + k + "=" + v); }
+        @Override public void attrStart(int size) { events.add("attrs:" + size); }
+        @Override public void attrRef(int id) { events.add("ref:" + id); }
+        @Override public void attrLong(long v) { events.add("long:" + v); }
+        @Override public void attrBool(boolean v) { events.add("bool:" + v); }
+        @Override public void attrNull() { events.add("null"); }
+        @Override public void attrValue(Object v) { events.add("obj:" + v); }
+        @Override public void attrEnd() { events.add("/attrs"); }
+        @Override public void exceptionRef(int ref) { }
+        @Override public void exception(ExceptionData ex) { }
+        @Override public void commit() { }
+    }
+
+    private static Map<Object,Object> sampleAttrs() {
+        Map<Object,Object> m = new LinkedHashMap<>();
+        m.put(new ObjectRef(1), new ObjectRef(2));
+        m.put(new ObjectRef(3), 42L);
+        m.put(new ObjectRef(4), -7L);
+        m.put(new ObjectRef(5), true);
+        m.put(new ObjectRef(6), null);
+        m.put(new ObjectRef(7), "abc");
+        m.put(new ObjectRef(8), Arrays.asList(1L, 2L));
+        return m;
+    }
+
+    private static byte[] sampleData() {
+        CborDataWriter w = new CborDataWriter(1024, 1024);
+        TraceDataWriter tdw = new TraceDataWriter(w);
+        tdw.traceStart(0);
+        tdw.traceInfo(TI_TSTART, 100);
+        tdw.attr(sampleAttrs());
+        tdw.traceStart(0);
+        tdw.attrStart(-1);
+        tdw.attrRef(9);
+        tdw.attrBool(false);
+        tdw.attrEnd();
+        tdw.traceEnd();
+        tdw.traceEnd();
+        return w.toByteArray();
+    }
+
+    @Test
+    public void testAdapterRebuildsAttributeMaps() {
+        MapCollector mc = new MapCollector();
+        new TraceDataReader(new CborBufReader(sampleData()), mc).run();
+
+        assertEquals(2, mc.starts);
+        assertEquals(2, mc.ends);
+        assertEquals(2, mc.attrs.size());
+        assertEquals(sampleAttrs(), mc.attrs.get(0));
+        assertEquals(Collections.singletonMap(new ObjectRef(9), false), mc.attrs.get(1));
+    }
+
+    @Test
+    public void testPrimitiveAttributeEvents() {
+        EventCollector ec = new EventCollector();
+        new TraceDataReader(new CborBufReader(sampleData()), ec).run();
+
+        assertEquals(Arrays.asList(
+            "start", "ti:" + TI_TSTART + "=100",
+            "attrs:7", "ref:1", "ref:2", "ref:3", "long:42", "ref:4", "long:-7", "ref:5", "bool:true",
+            "ref:6", "null", "ref:7", "obj:abc", "ref:8", "obj:[1, 2]", "/attrs",
+            "start", "attrs:-1", "ref:9", "bool:false", "/attrs", "end", "end"),
+            ec.events);
+    }
+
+    @Test
+    public void testReplayMapAsEvents() {
+        EventCollector ec = new EventCollector();
+        Map<Object,Object> m = new LinkedHashMap<>();
+        m.put(new ObjectRef(1), 5L);
+        m.put(new ObjectRef(2), "x");
+        ec.attr(m);
+        assertEquals(Arrays.asList("attrs:2", "ref:1", "long:5", "ref:2", "obj:x", "/attrs"), ec.events);
+    }
+}
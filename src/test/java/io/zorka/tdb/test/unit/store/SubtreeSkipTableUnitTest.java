@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import io.zorka.tdb.text.StructuredTextIndex;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class SubtreeSkipTableUnitTest extends ZicoTestFixture {
+
+    private static final Tid TID = Tid.s(42L, 24L, 1L);
+
+    /** Counts decoded records, skips all records below given depth. */
+    private static class CountingRetriever implements TraceDataRetriever<Integer> {
+        private final boolean useSkips;
+        private TraceDataReader reader;
+        private int depth, starts, ends;
+
+        private CountingRetriever(boolean useSkips) {
+            this.useSkips = useSkips;
+        }
+
+        @Override
+        public void traceStart(int pos) {
+            starts++;
+            if (++depth > 1) reader.skip();
+        }
+
+        @Override
+        public void traceEnd() {
+            depth--;
+            ends++;
+        }
+
+        @Override public void traceInfo(int k, long v) { }
+        @Override public void attr(Map<Object, Object> data) { }
+        @Override public void exceptionRef(int ref) { }
+        @Override public void exception(ExceptionData ex) { }
+        @Override public void commit() { }
+        @Override public void setResolver(StructuredTextIndex resolver) { }
+        @Override public void clear() { depth = starts = ends = 0; }
+        @Override public Integer getResult() { return starts; }
+        @Override public void setReader(TraceDataReader reader) { this.reader = reader; }
+        @Override public boolean usesSkipTable() { return useSkips; }
+    }
+
+    @Test
+    public void testEncodeDecodeSkipTable() {
+        SubtreeSkipTable.Builder b = new SubtreeSkipTable.Builder();
+        b.add(1000, 5000);
+        b.add(10, 20);
+        b.add(300, 900);
+        b.add(0, 100000);
+        b.add(-1, 2000);
+
+        SubtreeSkipTable st = SubtreeSkipTable.decode(b.build());
+        assertEquals(3, st.size());
+        assertEquals(100000, st.end(0));
+        assertEquals(900, st.end(300));
+        assertEquals(5000, st.end(1000));
+        assertEquals(-1, st.end(10));
+        assertEquals(-1, st.end(301));
+    }
+
+    @Test
+    public void testSkipSubtreesOnRetrieval() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+
+        List<WireObj> objs = new ArrayList<>();
+        objs.add(tb(1500, 1L));
+        long t = 110;
+        for (int i = 0; i < 3; i++) {
+            List<WireObj> leaves = new ArrayList<>();
+            for (int j = 0; j < 30; j++) {
+                leaves.add(tr(true, mid(2, j % 5, 0), t + 1 + j, t + 2 + j, 1, ta("K", "V" + j)));
+            }
+            objs.add(tr(true, mid(1, i, 0), t, t + 40, 31, leaves.toArray(new WireObj[0])));
+            t += 41;
+        }
+
+        store.handleTraceData(sessnUUID, str(tr(true, mid(0, 0, 0), 100, t + 10, 94,
+            objs.toArray(new WireObj[0]))).get(0), md(42L, 24L, 0L, 1L, 0));
+
+        assertEquals(Integer.valueOf(94), store.retrieve(TID, new CountingRetriever(false)));
+
+        CountingRetriever cr = new CountingRetriever(true);
+        assertEquals(Integer.valueOf(4), store.retrieve(TID, cr));
+        assertEquals(4, cr.ends);
+
+        TraceRecord full = store.retrieve(TID, rtr());
+        TraceRecord lazy = store.retrieveLazy(TID, new LazyTraceDataRetriever(1));
+        assertEquals(full.getTstop(), lazy.getTstop());
+        assertEquals(3, lazy.getHiddenChildren());
+
+        TraceRecord lazy2 = store.retrieveLazy(TID, new LazyTraceDataRetriever(2));
+        assertEquals(3, lazy2.getChildren().size());
+        assertEquals(30, ((TraceRecord)lazy2.getChildren().get(2)).getHiddenChildren());
+        assertEquals(((TraceRecord)full.getChildren().get(2)).getTstop(),
+            ((TraceRecord)lazy2.getChildren().get(2)).getTstop());
+
+        store.close();
+    }
+}
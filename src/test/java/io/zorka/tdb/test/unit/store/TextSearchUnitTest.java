@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TextSearchUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 2, NTRACES = 50;
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 1 + i % 4, 1,
+            tb(clock, clock), ta("URL", "/api/item/" + i), ta("A", "A" + (i % 3)))).get(0));
+    }
+
+    private List<Long> search(RotatingTraceStore store, TraceSearchQuery query) {
+        return search(store, query, 1000, 0);
+    }
+
+    /** Expected results (newest first) for chunks with given trace index predicate. */
+    private List<Long> expected(IntPredicate p, int minClock, int maxClock) {
+        List<Long> rslt = new ArrayList<>();
+        for (int s = NSTORES - 1; s >= 0; s--) {
+            for (int i = NTRACES - 1; i >= 0; i--) {
+                int clock = 1000 + s * 100 + i;
+                if (p.test(i) && clock >= minClock && clock < maxClock) {
+                    rslt.add(clock * 1000000L);
+                }
+            }
+        }
+        return rslt;
+    }
+
+    @Test
+    public void testTextSearchWithFilters() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store);
+
+        assertEquals(expected(i -> i == 1 || i / 10 == 1, 0, 9999),
+            search(store, new TraceSearchQuery().setText("/api/item/1").withSpansOnly()));
+
+        assertEquals(expected(i -> true, 0, 9999),
+            search(store, new TraceSearchQuery().setText("item").withSpansOnly()));
+
+        assertEquals(expected(i -> i % 3 == 1, 1020, 1130),
+            search(store, new TraceSearchQuery().setText("item").attrMatch("A", "A1")
+                .setMinTstamp(1020 * 1000000L).setMaxTstamp(1130 * 1000000L).withSpansOnly()));
+
+        assertEquals(expected(i -> i % 4 == 3 && i % 3 == 0, 0, 9999),
+            search(store, new TraceSearchQuery().setText("item").attrMatch("A", "A0")
+                .setMinDuration(4L << 16).withSpansOnly()));
+
+        assertEquals(0, search(store, new TraceSearchQuery().setText("nonexistent").withSpansOnly()).size());
+
+        assertEquals(10, store.searchChunks(new TraceSearchQuery().setText("item").withSpansOnly(), 10, 0).size());
+
+        store.close();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TopDurationSearchUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 3, NTRACES = 40;
+
+    /** Unique durations, not correlated with time */
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock,
+            clock + ((i * NSTORES + s) * 7) % (NSTORES * NTRACES) + 1, 1,
+            tb(clock, clock), ta("XXX", "V" + (i % 3)))).get(0));
+    }
+
+    /** Brute force: all matching chunks sorted by duration. */
+    private List<Long> expected(RotatingTraceStore store, TraceSearchQuery query, int limit, int offset) {
+        List<ChunkMetadata> all = new ArrayList<>(store.searchChunks(query.copy().withoutOrderByDuration(),
+            10000, 0).getResults());
+        all.sort(Comparator.comparingLong(ChunkMetadata::getDuration).reversed());
+        return tstamps(all.subList(Math.min(offset, all.size()), Math.min(offset + limit, all.size())));
+    }
+
+    @Test
+    public void testTopDurationMatchesBruteForce() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store);
+
+        TraceSearchQuery[] queries = {
+            new TraceSearchQuery().withSpansOnly().withOrderByDuration(),
+            new TraceSearchQuery().withSpansOnly().withOrderByDuration()
+                .setMinTstamp(1015 * 1000000L).setMaxTstamp(1210 * 1000000L),
+            new TraceSearchQuery().withSpansOnly().withOrderByDuration().attrMatch("XXX", "V1"),
+            new TraceSearchQuery().withSpansOnly().withOrderByDuration().setMinDuration(100L << 16),
+        };
+
+        for (TraceSearchQuery q : queries) {
+            for (int[] p : new int[][] { { 10, 0 }, { 5, 3 }, { 1000, 0 } }) {
+                List<Long> rslt = tstamps(store.searchChunks(q, p[0], p[1]).getResults());
+                assertEquals(expected(store, q, p[0], p[1]), rslt);
+            }
+        }
+
+        List<ChunkMetadata> top = store.searchChunks(queries[0], 3, 0).getResults();
+        assertEquals(3, top.size());
+        assertEquals(120L << 16, top.get(0).getDuration());
+        assertEquals(119L << 16, top.get(1).getDuration());
+
+        store.close();
+    }
+
+    @Test
+    public void testDurationBuckets() {
+        assertEquals(0, TopDurationCollector.bucket(0));
+        assertEquals(Long.MAX_VALUE, TopDurationCollector.bucketMax(TopDurationCollector.bucket(Long.MAX_VALUE)));
+
+        int last = 0;
+        for (long d = 1; d > 0 && d < Long.MAX_VALUE / 3; d = d * 3 / 2 + 1) {
+            int b = TopDurationCollector.bucket(d);
+            assertTrue(b >= last);
+            assertTrue(d <= TopDurationCollector.bucketMax(b));
+            assertTrue(b == 0 || d > TopDurationCollector.bucketMax(b - 1));
+            last = b;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.UUID;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TraceChunkCacheUnitTest extends ZicoTestFixture {
+
+    private void checkCacheHitsAndEvictions(boolean offHeap) throws Exception {
+        RawTraceDataFile tdf = new RawTraceDataFile(new File(tmpDir, "traces" + offHeap + ".dat"), true);
+        TraceChunkCache cache = new TraceChunkCache(1024, offHeap);
+
+        long[] pos = new long[16];
+        for (int i = 0; i < pos.length; i++) {
+            byte[] b = new byte[100];
+            b[0] = (byte)i;
+            pos[i] = tdf.write(b);
+        }
+
+        assertEquals(0, cache.get(1, pos[0], tdf).peek());
+        assertEquals(0, cache.get(1, pos[0], tdf).peek());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // The same offset in other store is a different chunk
+        assertEquals(3, cache.get(2, pos[3], tdf).peek());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getCount());
+
+        for (int i = 0; i < pos.length; i++) {
+            assertEquals(i, cache.get(3, pos[i], tdf).peek());
+        }
+
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getSize() <= 1024);
+
+        cache.invalidate(3);
+        assertEquals(0, cache.getSize());
+
+        tdf.close();
+    }
+
+
+    @Test
+    public void testCacheOnHeap() throws Exception {
+        checkCacheHitsAndEvictions(false);
+    }
+
+
+    @Test
+    public void testCacheOffHeap() throws Exception {
+        checkCacheHitsAndEvictions(true);
+    }
+
+
+    @Test
+    public void testCacheDisabledByDefault() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        assertNull(store.getChunkCache());
+        store.close();
+    }
+
+
+    @Test
+    public void testRetrieveTracesViaCache() throws Exception {
+        File baseDir = new File(tmpDir, "store");
+        assertTrue(baseDir.mkdirs());
+        Properties props = new Properties();
+        props.setProperty(CHUNK_CACHE_SIZE, "1");
+        RotatingTraceStore store = new RotatingTraceStore(baseDir, props, indexerCache);
+        store.open();
+
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+        store.handleTraceData(sessnUUID, trc(1, 100, 100, "XXX", "YYY", "UVW", "ABC"), md(1, 42L, 0, 1, 0));
+
+        TraceChunkCache cache = store.getChunkCache();
+        assertNotNull(cache);
+
+        TraceRecord tr1 = store.retrieve(Tid.s(1L, 42L, 1L), rtr());
+        TraceRecord tr2 = store.retrieve(Tid.s(1L, 42L, 1L), rtr());
+
+        assertNotNull(tr1);
+        assertNotNull(tr2);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        store.close();
+        assertEquals(0, cache.getCount());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TraceLocatorUnitTest extends ZicoTestFixture {
+
+    private void submit(RotatingTraceStore store, long traceId1, long spanId) {
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, agentData());
+        store.handleTraceData(sessnUUID, trc(spanId, 100, 100, "XXX", "YYY", "UVW", "ABC"),
+            md(traceId1, 42L, 0, spanId, 0));
+    }
+
+    @Test
+    public void testLocateTracesAcrossStores() throws Exception {
+        RotatingTraceStore store = openRotatingStore(ConfigProps.TRACE_LOCATOR, "true");
+
+        submit(store, 1L, 11L);
+        submit(store, 2L, 21L);
+        store.rotate();
+        submit(store, 2L, 22L);       // Trace 2 spans stores 0 and 1
+        submit(store, 3L, 31L);
+        store.rotate();
+        submit(store, 4L, 41L);
+
+        TraceLocator tl = store.getLocator();
+        assertNotNull(tl);
+        assertEquals(Collections.singletonList(0), tl.find(1L, 42L));
+        assertEquals(Arrays.asList(0, 1), sorted(tl.find(2L, 42L)));
+        assertEquals(Collections.emptyList(), tl.find(4L, 42L));
+
+        assertEquals(2, store.getChunks(Tid.t(2L, 42L)).size());
+        assertEquals(1, store.getChunks(Tid.t(4L, 42L)).size());
+        assertEquals(0, store.getChunks(Tid.t(5L, 42L)).size());
+        assertNotNull(store.retrieve(Tid.s(3L, 42L, 31L), rtr()));
+
+        store.close();
+
+        assertTrue(new File(tmpDir, "store/" + TraceLocator.FILE_NAME).exists());
+
+        // Expired store is removed from locator when store is reopened
+        ZorkaUtil.rmrf(new File(tmpDir, "store/000000"));
+
+        store = openRotatingStore(ConfigProps.TRACE_LOCATOR, "true");
+        tl = store.getLocator();
+        assertEquals(Collections.emptyList(), tl.find(1L, 42L));
+        assertEquals(Collections.singletonList(1), tl.find(2L, 42L));
+        assertEquals(1, store.getChunks(Tid.t(2L, 42L)).size());
+        assertEquals(1, store.getChunks(Tid.t(3L, 42L)).size());
+
+        store.close();
+    }
+
+    @Test
+    public void testRebuildLocatorFromDamagedFile() throws Exception {
+        RotatingTraceStore store = openRotatingStore(ConfigProps.TRACE_LOCATOR, "true");
+        submit(store, 1L, 11L);
+        submit(store, 2L, 21L);
+        store.rotate();
+        submit(store, 2L, 22L);
+        submit(store, 3L, 31L);
+        store.rotate();
+        store.close();
+
+        ZorkaUtil.rmrf(new File(tmpDir, "store/000000"));
+
+        // Truncated file is discarded as a whole, partially loaded entries do not survive
+        File f = new File(tmpDir, "store/" + TraceLocator.FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(raf.length() - 6);
+        }
+
+        store = openRotatingStore(ConfigProps.TRACE_LOCATOR, "true");
+        TraceLocator tl = store.getLocator();
+        assertEquals(Collections.emptyList(), tl.find(1L, 42L));
+        assertEquals(Collections.singletonList(1), tl.find(2L, 42L));
+        assertEquals(2, tl.size());
+        store.close();
+    }
+
+    private static List<Integer> sorted(List<Integer> l) {
+        Collections.sort(l);
+        return l;
+    }
+}
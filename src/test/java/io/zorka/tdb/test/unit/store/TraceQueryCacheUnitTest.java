@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TraceQueryCacheUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 3, NTRACES = 30;
+
+    private RotatingTraceStore openStore(int cacheSize) {
+        return openRotatingStore(QUERY_CACHE_SIZE, "" + cacheSize);
+    }
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 1 + i % 5, 1,
+            tb(clock, clock), ta("XXX", "V" + (i % 3)))).get(0));
+    }
+
+    private static TraceSearchQuery query(long minClock, long maxClock) {
+        return new TraceSearchQuery().attrMatch("XXX", "V1").setMinDuration(2L << 16).withSpansOnly()
+            .setMinTstamp(minClock * 1000000L).setMaxTstamp(maxClock * 1000000L);
+    }
+
+    @Test
+    public void testCachedResultsMatchLiveSearch() throws Exception {
+        long[][] windows = { { 0, 9999 }, { 1010, 1120 }, { 1105, 1106 }, { 1120, 1250 } };
+
+        RotatingTraceStore store = openStore(0);
+        populate(store);
+        assertNull(store.getQueryCache());
+
+        List<List<Long>> expected = new ArrayList<>();
+        for (long[] w : windows) {
+            expected.add(search(store, query(w[0], w[1]), 1000, 0));
+        }
+        store.close();
+
+        store = openStore(16);
+        TraceQueryCache cache = store.getQueryCache();
+
+        for (int i = 0; i < windows.length; i++) {
+            assertEquals(expected.get(i), search(store, query(windows[i][0], windows[i][1]), 1000, 0));
+        }
+
+        // Entries are built on second miss, single entry per archived store serves all time windows
+        assertEquals(2, cache.getCount());
+        assertEquals(4, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+
+        assertEquals(expected.get(0).subList(2, 7), search(store, query(0, 9999), 5, 2));
+        assertEquals(2, cache.getCount());
+
+        store.close();
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void testOneOffQueriesAreNotCached() throws Exception {
+        RotatingTraceStore store = openStore(16);
+        populate(store);
+        TraceQueryCache cache = store.getQueryCache();
+
+        assertEquals(30, search(store, new TraceSearchQuery().attrMatch("XXX", "V2").withSpansOnly(), 100, 0).size());
+        assertEquals(30, search(store, new TraceSearchQuery().attrMatch("XXX", "V0").withSpansOnly(), 100, 0).size());
+        assertEquals(0, cache.getCount());
+
+        // Repeated query gets cached in both archived stores
+        assertEquals(30, search(store, new TraceSearchQuery().attrMatch("XXX", "V2").withSpansOnly(), 100, 0).size());
+        assertEquals(2, cache.getCount());
+
+        store.close();
+    }
+
+    @Test
+    public void testCacheKeyIgnoresTimeWindow() {
+        TraceSearchQuery q1 = new TraceSearchQuery().attrMatch("A", "B").setText("x").withSpansOnly()
+            .setMinTstamp(100);
+        TraceSearchQuery q2 = new TraceSearchQuery().attrMatch("A", "B").setText("x").setMaxTstamp(200);
+        assertEquals(TraceQueryCache.key(q1), TraceQueryCache.key(q2));
+        assertNotEquals(TraceQueryCache.key(q1), TraceQueryCache.key(q2.copy().withErrorsOnly()));
+        assertNotEquals(TraceQueryCache.key(q1), TraceQueryCache.key(q2.copy().attrMatch("C", "D")));
+    }
+
+    @Test
+    public void testEncodingAndEviction() {
+        TraceQueryCache cache = new TraceQueryCache(512);
+
+        TraceQueryCache.Builder b = cache.builder();
+        for (long tst : new long[] { 5000000000L, 4000000000L, 17, -3 }) {
+            assertTrue(b.test(tst));
+        }
+        byte[] data = b.build();
+
+        List<Long> rslt = new ArrayList<>();
+        TraceQueryCache.scan(data, 0, 4500000000L, rslt::add);
+        assertEquals(2, rslt.size());
+        assertEquals(4000000000L, (long)rslt.get(0));
+        assertEquals(17L, (long)rslt.get(1));
+
+        TraceQueryCache.Builder b2 = cache.builder();
+        for (int i = 0; b2.test(1000 - i); i++);
+        assertSame(TraceQueryCache.TOO_BIG, b2.build());
+
+        for (int i = 0; i < 10; i++) {
+            cache.put(1, "q" + i, data);
+        }
+        assertTrue(cache.getSize() <= 512);
+        assertNull(cache.get(1, "q0"));
+        assertNotNull(cache.get(1, "q9"));
+
+        cache.invalidate(1);
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.ZicoException;
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TraceSearchCursorUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 3, NTRACES = 40;
+
+    /** Two consecutive spans share trace ID, so whole trace search returns half of chunks. */
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, 100, clock -> clock / 2, (s, i, clock) -> str(tr(true, mid(0, 0, 0),
+            clock, clock + 10, 1, tb(clock, clock), ta("XXX", "V" + (i % 3)))).get(0));
+    }
+
+    /** Fetches all results page by page, each page with a new cursor created from encoded token. */
+    private List<Long> paged(RotatingTraceStore store, TraceSearchQuery query, int pageSize) {
+        List<Long> rslt = new ArrayList<>();
+        String token = null;
+        while (true) {
+            TraceSearchCursor cursor = store.searchCursor(query, token != null ? TraceSearchToken.decode(token) : null);
+            List<ChunkMetadata> page = cursor.next(pageSize);
+            rslt.addAll(tstamps(page));
+            if (page.size() < pageSize) return rslt;
+            token = cursor.getToken().encode();
+        }
+    }
+
+    @Test
+    public void testPagedCursorMatchesOffsetSearch() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store);
+
+        TraceSearchQuery[] queries = {
+            new TraceSearchQuery().withSpansOnly(),
+            new TraceSearchQuery(),
+            new TraceSearchQuery().attrMatch("XXX", "V1").withSpansOnly(),
+            new TraceSearchQuery().attrMatch("XXX", "V2")
+                .setMinTstamp(1010 * 1000000L).setMaxTstamp(1130 * 1000000L),
+            new TraceSearchQuery().attrMatch("XXX", "NONE")
+        };
+
+        for (TraceSearchQuery q : queries) {
+            List<Long> expected = tstamps(store.searchChunks(q, 1000, 0).getResults());
+            assertEquals(expected, tstamps(store.searchCursor(q).next(1000)));
+            assertEquals(expected, paged(store, q, 7));
+            assertEquals(expected, paged(store, q, 50));
+        }
+
+        assertEquals(NSTORES * NTRACES, paged(store, queries[0], 7).size());
+        assertEquals(NSTORES * NTRACES / 2, paged(store, queries[1], 7).size());
+
+        store.close();
+    }
+
+    @Test
+    public void testTokenSurvivesRotation() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store);
+
+        TraceSearchQuery q = new TraceSearchQuery().withSpansOnly();
+        TraceSearchCursor cursor = store.searchCursor(q);
+        List<Long> first = tstamps(cursor.next(10));
+        TraceSearchToken token = cursor.getToken();
+
+        store.rotate();
+
+        List<Long> rest = tstamps(store.searchCursor(q, token).next(1000));
+        assertEquals(NSTORES * NTRACES - 10, rest.size());
+        assertTrue(first.get(9) > rest.get(0));
+
+        store.close();
+    }
+
+    @Test
+    public void testEncodedTokenSizeIsBounded() {
+        long[] seen = new long[TraceSearchCursor.SEEN_WINDOW];
+        for (int i = 0; i < seen.length; i++) {
+            seen[i] = i * 31L;
+        }
+
+        String s = new TraceSearchToken(3, 1234L, seen).encode();
+        assertEquals(TraceSearchToken.MAX_ENCODED_LENGTH, s.length());
+
+        TraceSearchToken t = TraceSearchToken.decode(s);
+        assertEquals(3, t.getStoreId());
+        assertEquals(1234L, t.getTstamp());
+        assertEquals(TraceSearchToken.ENCODED_WINDOW, t.getSeen().length);
+        assertEquals(seen[seen.length - 1], t.getSeen()[t.getSeen().length - 1]);
+    }
+
+    @Test(expected = ZicoException.class)
+    public void testInvalidToken() {
+        TraceSearchToken.decode("AAAA");
+    }
+}
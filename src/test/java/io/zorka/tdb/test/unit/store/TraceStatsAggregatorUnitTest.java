@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static com.jitlogic.zorka.cbor.TraceRecordFlags.TF_ERROR_MARK;
+import static io.zorka.tdb.store.ConfigProps.*;
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TraceStatsAggregatorUnitTest extends ZicoTestFixture {
+
+    private static final int NSTORES = 3, NTRACES = 150;
+
+    private RotatingTraceStore openStore(boolean parallel) {
+        return openRotatingStore(new File(tmpDir, "store-" + parallel),
+            SEARCH_PARALLEL, "" + parallel, SEARCH_PARALLEL_THREADS, "3");
+    }
+
+    private void populate(RotatingTraceStore store) {
+        populate(store, NSTORES, NTRACES, 1000, clock -> clock, (s, i, clock) -> str(
+            tr(true, mid(0, 0, 0), clock, clock + 20 + i % 7, 3,
+                tb(clock, clock), ta("XXX", "V" + (i % 3)),
+                tr(true, mid(1, 1, 1), clock + 1, clock + 5 + i % 3, 1),
+                tr(true, mid(3, 5, 0), clock + 6, clock + 10 + i % 5, 1,
+                    i % 4 == 0 ? tf(TF_ERROR_MARK) : tf(0))
+            )).get(0));
+    }
+
+    /** Computes statistics trace by trace using TraceStatsRecordFilter. */
+    private Map<String,TraceStatsResultItem> expected(RotatingTraceStore store, TraceSearchQuery query) {
+        Map<String,TraceStatsResultItem> rslt = new HashMap<>();
+        for (ChunkMetadata cm : store.searchChunks(query, 100000, 0).getResults()) {
+            TraceStatsRecordFilter filter = new TraceStatsRecordFilter();
+            store.retrieve(Tid.s(cm.getTraceId1(), cm.getTraceId2(), cm.getSpanId()),
+                new RecursiveTraceDataRetriever<>(filter));
+            for (TraceStatsResultItem itm : filter.getStats()) {
+                rslt.computeIfAbsent(itm.getMethod(), m -> new TraceStatsResultItem(itm.getMid(), m))
+                    .add(itm.getRecs(), itm.getErrors(), itm.getSumDuration(), itm.getMinDuration(), itm.getMaxDuration());
+            }
+        }
+        return rslt;
+    }
+
+    private void check(Map<String,TraceStatsResultItem> expected, List<TraceStatsResultItem> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (TraceStatsResultItem a : actual) {
+            TraceStatsResultItem e = expected.get(a.getMethod());
+            assertNotNull(a.getMethod(), e);
+            assertEquals(e.getRecs(), a.getRecs());
+            assertEquals(e.getErrors(), a.getErrors());
+            assertEquals(e.getSumDuration(), a.getSumDuration());
+            assertEquals(e.getMinDuration(), a.getMinDuration());
+            assertEquals(e.getMaxDuration(), a.getMaxDuration());
+        }
+    }
+
+    @Test
+    public void testAggregateMatchesPerTraceStats() throws Exception {
+        for (boolean parallel : new boolean[] { false, true }) {
+            RotatingTraceStore store = openStore(parallel);
+            populate(store);
+
+            TraceSearchQuery[] queries = {
+                new TraceSearchQuery().withSpansOnly(),
+                new TraceSearchQuery().withSpansOnly().attrMatch("XXX", "V1"),
+                new TraceSearchQuery().withSpansOnly()
+                    .setMinTstamp(1050 * 1000000L).setMaxTstamp(2100 * 1000000L),
+            };
+
+            for (TraceSearchQuery q : queries) {
+                TraceStatsAggregator agg = store.aggregateStats(q);
+                List<TraceStatsResultItem> rslt = agg.getResults();
+                assertTrue(agg.isDone());
+                check(expected(store, q), rslt);
+                assertEquals(3, rslt.size());
+                assertEquals(store.searchChunks(q, 100000, 0).size(), agg.getTraceCount());
+            }
+
+            List<TraceStatsResultItem> all = store.aggregateStats(new TraceSearchQuery()).getResults();
+            TraceStatsResultItem root = all.get(0);
+            assertEquals(NSTORES * NTRACES, root.getRecs());
+            assertEquals(0, root.getErrors());
+            assertEquals(NSTORES * ((NTRACES + 3) / 4), all.get(1).getErrors() + all.get(2).getErrors());
+
+            store.close();
+        }
+    }
+}
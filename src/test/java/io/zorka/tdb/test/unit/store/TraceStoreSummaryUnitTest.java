@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import org.junit.Test;
+
+import java.io.File;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class TraceStoreSummaryUnitTest extends ZicoTestFixture {
+
+    private void populate(RotatingTraceStore store, int nstores) {
+        populate(store, nstores, 10, (s, i, clock) -> str(tr(true, mid(0, 0, 0), clock, clock + 10 * (s + 1), 1,
+            tb(clock, clock), ta("STORE", "S" + s))).get(0));
+    }
+
+    @Test
+    public void testSummaryPruning() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store, 3);
+
+        TraceStoreSummary ts = store.getCurrent().getSummary();
+
+        assertEquals(10, ts.getChunkCount());
+        assertEquals(1200 * 1000000L, ts.getMinTstamp());
+        assertEquals(1209 * 1000000L, ts.getMaxTstamp());
+
+        assertTrue(ts.mayMatch(new TraceSearchQuery().attrMatch("STORE", "S2")));
+        assertFalse(ts.mayMatch(new TraceSearchQuery().attrMatch("STORE", "S0")));
+        assertFalse(ts.mayMatch(new TraceSearchQuery().withErrorsOnly()));
+        assertFalse(ts.mayMatch(new TraceSearchQuery().setMaxTstamp(1100 * 1000000L)));
+        assertFalse(ts.mayMatch(new TraceSearchQuery().setMinDuration(ts.getMaxDuration() + 1)));
+
+        assertTrue(ts.mayContain(Tid.t(1205L, 42L)));
+        assertFalse(ts.mayContain(Tid.t(1005L, 42L)));
+
+        assertEquals(10, store.searchChunks(new TraceSearchQuery().attrMatch("STORE", "S0").withSpansOnly(),
+            100, 0).size());
+        assertNotNull(store.retrieve(Tid.s(1005L, 42L, 1005L), rtr()));
+
+        store.close();
+    }
+
+    @Test
+    public void testSummaryPersistedAndLoadedWithoutOpeningStore() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        populate(store, 3);
+        store.close();
+
+        assertTrue(new File(tmpDir, "store/000001/" + TraceStoreSummary.FILE_NAME).exists());
+
+        store = openRotatingStore();
+
+        assertNotNull(store.retrieve(Tid.s(1105L, 42L, 1105L), rtr()));
+        assertEquals(1, store.searchChunks(new TraceSearchQuery().attrMatch("STORE", "S1").withSpansOnly()
+            .setMaxTstamp(1101 * 1000000L), 100, 0).size());
+
+        File sf = new File(tmpDir, "store/000002/" + TraceStoreSummary.FILE_NAME);
+        assertFalse("Summary of active store should be removed when open", sf.exists());
+
+        store.close();
+        assertTrue(sf.exists());
+    }
+}
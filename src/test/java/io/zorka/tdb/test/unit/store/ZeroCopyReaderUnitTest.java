@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.store;
+
+import io.zorka.tdb.store.*;
+import io.zorka.tdb.test.support.ZicoTestFixture;
+import io.zorka.tdb.util.CborBufReader;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static io.zorka.tdb.test.support.TraceTestDataBuilder.*;
+import static org.junit.Assert.*;
+
+public class ZeroCopyReaderUnitTest extends ZicoTestFixture {
+
+    /** Places data in the middle of a buffer, surrounded by garbage. */
+    private static ByteBuffer embed(byte[] data, boolean direct) {
+        ByteBuffer bb = direct ? ByteBuffer.allocateDirect(data.length + 32) : ByteBuffer.allocate(data.length + 32);
+        for (int i = 0; i < 16; i++) bb.put((byte)0xff);
+        bb.put(data);
+        for (int i = 0; i < 16; i++) bb.put((byte)0xff);
+        bb.position(16);
+        bb.limit(16 + data.length);
+        return direct ? bb : bb.slice();
+    }
+
+    @Test
+    public void testReadFromHeapAndDirectBuffers() {
+        byte[] data = { 0x18, 0x2a, 0x19, 0x01, 0x00, 0x61, 0x41 };
+        for (int i = 0; i < 4; i++) {
+            boolean direct = i % 2 == 1;
+            // Read only heap buffers do not expose their arrays
+            ByteBuffer bb = i < 2 ? embed(data, direct) : embed(data, direct).asReadOnlyBuffer();
+            CborBufReader r = new CborBufReader(bb);
+            assertEquals(data.length, r.size());
+            assertEquals(42, r.readInt());
+            assertEquals(256, r.readLong());
+            assertEquals("A", r.readStr());
+            assertEquals(data.length, r.position());
+            assertArrayEquals(data, r.getRawBytes());
+            assertEquals(direct ? 16 : 0, bb.position());
+        }
+    }
+
+    @Test
+    public void testDeserializeMetadataFromDirectBuffer() {
+        ChunkMetadata m1 = new ChunkMetadata(42L, 24L, 51L, 22L, 99);
+        m1.getSattrs().put(42, 24);
+        ChunkMetadata m2 = ChunkMetadata.deserialize(embed(ChunkMetadata.serialize(m1), true));
+        assertEquals(42L, m2.getTraceId1());
+        assertEquals(22L, m2.getSpanId());
+        assertEquals(99, m2.getChunkNum());
+        assertEquals((Integer)24, m2.getSattrs().get(42));
+    }
+
+    @Test
+    public void testIngestFromDirectBuffer() throws Exception {
+        RotatingTraceStore store = openRotatingStore();
+        String sessnUUID = UUID.randomUUID().toString();
+        store.handleAgentData(sessnUUID, true, embed(agentData(), true));
+
+        byte[] trc = str(tr(true, mid(0, 0, 0), 100, 200, 2, tb(1500, 1L), ta("XXX", "YYY"),
+            tr(true, mid(1, 1, 1), 110, 150, 1))).get(0);
+        store.handleTraceData(sessnUUID, embed(trc, true), md(42L, 24L, 0L, 1L, 0));
+        store.handleTraceData(sessnUUID, trc, md(42L, 25L, 0L, 1L, 0));
+
+        TraceRecord r1 = store.retrieve(Tid.s(42L, 24L, 1L), rtr());
+        TraceRecord r2 = store.retrieve(Tid.s(42L, 25L, 1L), rtr());
+        assertNotNull(r1);
+        assertEquals(r2.getMethod(), r1.getMethod());
+        assertEquals(r2.getAttrs(), r1.getAttrs());
+        assertEquals(r2.getTstop(), r1.getTstop());
+        assertEquals(r2.getNcalls(), r1.getNcalls());
+
+        assertEquals(2, store.searchChunks(new TraceSearchQuery().attrMatch("XXX", "YYY").withSpansOnly(), 10, 0).size());
+
+        store.close();
+    }
+}
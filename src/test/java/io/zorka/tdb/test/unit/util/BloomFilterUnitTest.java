@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.zorka.tdb.test.unit.util;
+
+import io.zorka.tdb.util.BloomFilter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BloomFilterUnitTest {
+
+    @Test
+    public void testNoFalseNegativesAndFewFalsePositives() {
+        BloomFilter bf = new BloomFilter(1 << 16, 4);
+
+        for (long i = 0; i < 4096; i++) {
+            bf.add(BloomFilter.hash(i, 42L));
+        }
+
+        for (long i = 0; i < 4096; i++) {
+            assertTrue(bf.mightContain(BloomFilter.hash(i, 42L)));
+        }
+
+        int fp = 0;
+        for (long i = 0; i < 4096; i++) {
+            if (bf.mightContain(BloomFilter.hash(i, 43L))) fp++;
+        }
+
+        assertTrue("Too many false positives: " + fp, fp < 100);
+
+        assertFalse(bf.mightContain(BloomFilter.hash("XXX", "YYY")));
+        bf.add(BloomFilter.hash("XXX", "YYY"));
+        assertTrue(bf.mightContain(BloomFilter.hash("XXX", "YYY")));
+    }
+}